@@ -0,0 +1,16 @@
+package com.bimbok.compiler;
+
+// java -jar target/benchmarks.jar [JMH options]
+//
+// The usual JMH command line, with the GC profiler always on: the allocation
+// rate (gc.alloc.rate.norm, bytes per operation) is reported next to the
+// time, since most of our wins so far came from allocating less.
+public class BenchmarkMain {
+  public static void main(String[] args) throws Exception {
+    String[] withGc = new String[args.length + 2];
+    withGc[0] = "-prof";
+    withGc[1] = "gc";
+    System.arraycopy(args, 0, withGc, 2, args.length);
+    org.openjdk.jmh.Main.main(withGc);
+  }
+}
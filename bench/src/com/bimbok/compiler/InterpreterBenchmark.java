@@ -0,0 +1,64 @@
+package com.bimbok.compiler;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Running a prepared tree on the tree-walker, see Workloads.scaled for what
+// size does to each program. Whatever the program prints is thrown away.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InterpreterBenchmark {
+  @Param({ "bubble_sort", "insertion_sort", "selection_sort", "merge_sort", "quick_sort", "fibonacci",
+      "factorial" })
+  public String program;
+
+  @Param({ "10", "100", "1000" })
+  public int size;
+
+  private List<Stmt> statements;
+  private PrintStream stdout;
+
+  @Setup
+  public void setUp() {
+    statements = Workloads.prepare(Workloads.scaled(program, size));
+    stdout = System.out;
+    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+    // One run up front without interpret()'s catch, so a program that fails
+    // at this size stops the benchmark instead of timing an error message
+    Interpreter interpreter = new Interpreter();
+    for (Stmt statement : statements) {
+      statement.accept(interpreter);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    System.setOut(stdout);
+  }
+
+  // A fresh Interpreter each time, so every run starts with empty globals
+  @Benchmark
+  public void interpret() {
+    new Interpreter().interpret(statements);
+  }
+}
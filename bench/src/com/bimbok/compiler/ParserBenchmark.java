@@ -0,0 +1,50 @@
+package com.bimbok.compiler;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Tokens to a tree. The tokens are scanned once up front; a Parser only
+// reads its TokenStream, so every call can parse the same one.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+  @Param({ "bubble_sort", "insertion_sort", "selection_sort", "merge_sort", "quick_sort", "fibonacci",
+      "factorial", "generated" })
+  public String program;
+
+  @Param({ "1", "64", "1024" })
+  public int copies;
+
+  private TokenStream tokens;
+
+  @Setup
+  public void setUp() {
+    tokens = new Scanner(Workloads.repeated(program, copies)).scan();
+    Parser parser = new Parser(tokens);
+    parser.parse();
+    if (parser.hadError()) {
+      throw new IllegalStateException(program + " doesn't parse");
+    }
+  }
+
+  @Benchmark
+  public List<Stmt> parse() {
+    return new Parser(tokens).parse();
+  }
+}
@@ -0,0 +1,51 @@
+package com.bimbok.compiler;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Source text to tokens. copies is how many times the program is repeated.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScannerBenchmark {
+  @Param({ "bubble_sort", "insertion_sort", "selection_sort", "merge_sort", "quick_sort", "fibonacci",
+      "factorial" })
+  public String program;
+
+  @Param({ "1", "64", "1024" })
+  public int copies;
+
+  private String source;
+
+  @Setup
+  public void setUp() {
+    source = Workloads.repeated(program, copies);
+  }
+
+  // The compact stream the Parser reads
+  @Benchmark
+  public TokenStream scan() {
+    return new Scanner(source).scan();
+  }
+
+  // Every token as a Token object
+  @Benchmark
+  public List<Token> scanTokens() {
+    return new Scanner(source).scanTokens();
+  }
+}
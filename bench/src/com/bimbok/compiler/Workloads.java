@@ -0,0 +1,142 @@
+package com.bimbok.compiler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// The programs from test_sizuka/, made bigger so there's something to measure.
+// Plus "generated": 64 KB of the kind of script a templating layer writes out.
+//
+// For the scanner and the parser, bigger just means more text: the program
+// repeated. For the interpreter the program itself is scaled: the hardcoded
+// packs get "size" elements, "say n = 7" becomes "say n = size", and an "in"
+// is answered from the script itself (fibonacci and factorial get size).
+final class Workloads {
+  // A pack of two or more numbers, "[64, 34, 25]" (not "myPack[j]")
+  private static final Pattern NUMBER_PACK = Pattern.compile("\\[\\s*-?\\d+(?:\\s*,\\s*-?\\d+)+\\s*\\]");
+  private static final Pattern SAY_N = Pattern.compile("say n = \\d+");
+  // in "prompt" name, as a statement of its own
+  private static final Pattern INPUT = Pattern.compile("(?m)^(\\s*)in\\s+(?:\"[^\"]*\"\\s+)?(\\w+)");
+
+  private Workloads() {
+  }
+
+  // The program as it is in test_sizuka/
+  static String source(String program) {
+    if (program.equals("generated")) {
+      return generated(64 * 1024);
+    }
+    String path = "/programs/" + program + ".siz";
+    try (InputStream in = Workloads.class.getResourceAsStream(path)) {
+      if (in == null) {
+        throw new IllegalArgumentException("No program " + path + " in the benchmark jar");
+      }
+      return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    } catch (IOException error) {
+      throw new UncheckedIOException(error);
+    }
+  }
+
+  // copies of the program one after the other (only for scanning and parsing)
+  static String repeated(String program, int copies) {
+    String source = source(program);
+    StringBuilder builder = new StringBuilder(source.length() * copies + copies);
+    for (int i = 0; i < copies; i++) {
+      builder.append(source).append('\n');
+    }
+    return builder.toString();
+  }
+
+  // The program working on size elements, with no "in" left in it
+  static String scaled(String program, int size) {
+    String source = source(program);
+    Random random = new Random(42);
+
+    // Packs of zeros are scratch space: pack() makes them without a literal
+    Matcher packs = NUMBER_PACK.matcher(source);
+    StringBuilder builder = new StringBuilder();
+    while (packs.find()) {
+      String replacement = packs.group().matches("\\[[\\s0,]*\\]")
+          ? "pack(" + size + ", 0)"
+          : randomPack(random, size);
+      packs.appendReplacement(builder, replacement);
+    }
+    packs.appendTail(builder);
+    source = builder.toString();
+
+    source = SAY_N.matcher(source).replaceAll("say n = " + size);
+
+    // The sorts read their numbers one by one (idx counts up), the rest read a count
+    String answer = program.equals("insertion_sort") || program.equals("selection_sort")
+        ? "(idx * 7919 + 13) % 1009"
+        : String.valueOf(size);
+    return INPUT.matcher(source).replaceAll("$1$2 = " + answer);
+  }
+
+  private static String randomPack(Random random, int size) {
+    StringBuilder builder = new StringBuilder("[");
+    for (int i = 0; i < size; i++) {
+      if (i > 0) {
+        builder.append(", ");
+      }
+      builder.append(random.nextInt(1000));
+    }
+    return builder.append("]").toString();
+  }
+
+  // Declarations, arithmetic, conditions, loops and packs, roughly in the
+  // proportions generated scripts have them
+  private static String generated(int size) {
+    StringBuilder builder = new StringBuilder(size + 256);
+    int n = 0;
+    while (builder.length() < size) {
+      String a = "value" + (n % 97);
+      String b = "value" + ((n * 7) % 97);
+      switch (n % 6) {
+        case 0:
+          builder.append("say ").append(a).append(" = (").append(n).append(" * 60) * 1000 + ").append(b).append('\n');
+          break;
+        case 1:
+          builder.append(a).append(" = ").append(a).append(" + ").append(b).append(" % 7 - -").append(n % 13).append('\n');
+          break;
+        case 2:
+          builder.append("if (").append(a).append(" > ").append(n).append(" and ").append(b)
+              .append(" != 0) {\n  out \"row \" + ").append(a).append("\n} else {\n  out ").append(b).append("\n}\n");
+          break;
+        case 3:
+          builder.append("from 1 to ").append(n % 50).append(" as i {\n  ").append(a)
+              .append(" = ").append(a).append(" + i * 2\n}\n");
+          break;
+        case 4:
+          builder.append("say grid").append(n % 31).append(" = [").append(a).append(", ").append(b)
+              .append(", [1, 2, 3], \"cell\"]\n");
+          break;
+        default:
+          builder.append("while ").append(a).append(" < 10 or !(").append(b).append(" >= 3) {\n  ")
+              .append(a).append(" = grid").append(n % 31).append("[0] + 1\n}\n");
+          break;
+      }
+      n++;
+    }
+    return builder.toString();
+  }
+
+  // Parsed, optimized, resolved and inferred: what Main hands an engine
+  static List<Stmt> prepare(String source) {
+    Parser parser = new Parser(new Scanner(source).scan());
+    List<Stmt> statements = parser.parse();
+    if (parser.hadError()) {
+      throw new IllegalStateException("The benchmark program doesn't parse");
+    }
+    statements = new Optimizer().optimize(statements);
+    Resolver resolver = new Resolver();
+    resolver.resolve(statements);
+    new TypeInference(true).infer(statements, resolver.globalCount());
+    return statements;
+  }
+}
@@ -0,0 +1,770 @@
+package com.bimbok.compiler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Remembers the finished tree of a script (after the Optimizer, the Resolver
+// and TypeInference) in a small binary file, so running the same script again
+// skips the whole front end. Worth it for short scripts run over and over,
+// where scanning and parsing is most of the time.
+//
+// The file is named after a SHA-256 of the source plus the interpreter's
+// version, so an edited script or a new Sizuka never picks up an old tree.
+// It lives in $SIZUKA_CACHE, or ~/.cache/sizuka if that isn't set.
+//
+// Everything here is best effort: if the cache can't be read or written the
+// script just goes through the front end like it always did.
+final class AstCache {
+  // Bump this whenever the tree, or what the passes store in it, changes
+  private static final int FORMAT = 7;
+  private static final int MAGIC = 0x535a4b41; // "SZKA"
+
+  // Node tags
+  private static final int NONE = 0;
+  private static final int EXPRESSION = 1;
+  private static final int PRINT = 2;
+  private static final int VAR = 3;
+  private static final int IF = 4;
+  private static final int BLOCK = 5;
+  private static final int INPUT = 6;
+  private static final int FROM = 7;
+  private static final int WHILE = 8;
+  private static final int BINARY = 9;
+  private static final int GROUPING = 10;
+  private static final int LITERAL = 11;
+  private static final int UNARY = 12;
+  private static final int VARIABLE = 13;
+  private static final int ASSIGN = 14;
+  private static final int LOGICAL = 15;
+  private static final int PACK_LITERAL = 16;
+  private static final int INDEX_GET = 17;
+  private static final int INDEX_SET = 18;
+  private static final int CALL = 19;
+  private static final int FUNCTION = 20;
+  private static final int RETURN = 21;
+  private static final int SPAWN = 22;
+
+  // Literal value tags
+  private static final int NIL = 0;
+  private static final int NUMBER = 1;
+  private static final int STRING = 2;
+  private static final int TRUE = 3;
+  private static final int FALSE = 4;
+
+  private static final TokenType[] TYPES = TokenType.values();
+
+  // The classes whose changes can change a cached tree
+  private static final String[] FRONT_END = { "Scanner", "Parser", "Optimizer", "Resolver", "TypeInference",
+      "Natives", "Expr", "Stmt", "AstCache" };
+
+  private AstCache() {
+  }
+
+  // The tree cached for this source, or null if there isn't one
+  static List<Stmt> load(byte[] source) {
+    try {
+      byte[] key = key(source);
+      Path file = fileFor(key);
+      if (file == null || !Files.isRegularFile(file)) {
+        return null;
+      }
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(file)));
+      if (in.readInt() != MAGIC || in.readInt() != FORMAT) {
+        return null;
+      }
+      byte[] stored = new byte[key.length];
+      in.readFully(stored);
+      if (!MessageDigest.isEqual(stored, key)) {
+        return null;
+      }
+      return new Reader(in).statements();
+    } catch (IOException | RuntimeException error) {
+      // Unreadable, cut short or from a build that wrote it differently: parse as usual
+      return null;
+    }
+  }
+
+  // Only call this for a tree that came out of the front end without errors
+  static void store(byte[] source, List<Stmt> statements) {
+    try {
+      byte[] key = key(source);
+      Path file = fileFor(key);
+      if (file == null) {
+        return;
+      }
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT);
+      out.write(key);
+      new Writer(out).statements(statements);
+      out.flush();
+
+      // Write it whole, then move it in place: another run of the same
+      // script (say, from cron) never sees half a file
+      Files.createDirectories(file.getParent());
+      Path temporary = Files.createTempFile(file.getParent(), "ast", ".tmp");
+      try {
+        Files.write(temporary, bytes.toByteArray());
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(temporary);
+      }
+    } catch (IOException | RuntimeException error) {
+      // No cache this time, the next run parses again
+    }
+  }
+
+  private static byte[] key(byte[] source) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(version().getBytes(StandardCharsets.UTF_8));
+      digest.update((byte) 0);
+      digest.update(source);
+      return digest.digest();
+    } catch (NoSuchAlgorithmException error) {
+      throw new IllegalStateException(error);
+    }
+  }
+
+  // The release, the file format, and when the interpreter we're running was
+  // built: a rebuilt one may optimize or resolve differently (and the global
+  // slots in the tree come from Natives.NAMES). From a jar that's the jar;
+  // from plain class files (javac -d bin) the classes that make the tree.
+  private static String version() {
+    String version = Main.VERSION + "/" + FORMAT;
+    try {
+      Path code = Paths.get(AstCache.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+      if (Files.isRegularFile(code)) {
+        version += "/" + Files.size(code) + "/" + Files.getLastModifiedTime(code).toMillis();
+      } else if (Files.isDirectory(code)) {
+        Path classes = code.resolve(AstCache.class.getPackageName().replace('.', '/'));
+        for (String name : FRONT_END) {
+          Path file = classes.resolve(name + ".class");
+          version += "/" + Files.size(file) + "/" + Files.getLastModifiedTime(file).toMillis();
+        }
+      }
+    } catch (IOException | URISyntaxException | RuntimeException error) {
+      // Running from somewhere we can't look at, the release has to do
+    }
+    return version;
+  }
+
+  private static Path fileFor(byte[] key) {
+    Path directory;
+    String configured = System.getenv("SIZUKA_CACHE");
+    if (configured != null && !configured.isEmpty()) {
+      directory = Paths.get(configured);
+    } else {
+      String home = System.getProperty("user.home");
+      if (home == null || home.isEmpty()) {
+        return null;
+      }
+      directory = Paths.get(home, ".cache", "sizuka");
+    }
+
+    StringBuilder name = new StringBuilder();
+    for (byte b : key) {
+      name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return directory.resolve(name.append(".ast").toString());
+  }
+
+  // --- Writing ---
+
+  // One node after the other, depth first. Strings go in a table: a name
+  // used a hundred times is written once.
+  private static class Writer implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private final DataOutputStream out;
+    private final Map<String, Integer> strings = new HashMap<>();
+
+    Writer(DataOutputStream out) {
+      this.out = out;
+    }
+
+    void statements(List<Stmt> statements) throws IOException {
+      number(statements.size());
+      for (Stmt statement : statements) {
+        statement(statement);
+      }
+    }
+
+    private void statement(Stmt stmt) {
+      if (stmt == null) {
+        tag(NONE);
+      } else {
+        stmt.accept(this);
+        number(stmt.line);
+      }
+    }
+
+    private void expression(Expr expr) {
+      if (expr == null) {
+        tag(NONE);
+      } else {
+        expr.accept(this);
+      }
+    }
+
+    private void expressions(List<Expr> exprs) {
+      number(exprs.size());
+      for (Expr expr : exprs) {
+        expression(expr);
+      }
+    }
+
+    // The tag, then what TypeInference found out about it
+    private void tag(int tag, Expr expr) {
+      tag(tag);
+      flag(expr.numeric);
+    }
+
+    private void tag(int tag) {
+      try {
+        out.writeByte(tag);
+      } catch (IOException error) {
+        throw new UncheckedIOException(error);
+      }
+    }
+
+    private void flag(boolean value) {
+      tag(value ? 1 : 0);
+    }
+
+    // Unsigned, 7 bits a byte: slots and line numbers are nearly always one byte
+    private void number(int value) {
+      while ((value & ~0x7f) != 0) {
+        tag((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      tag(value);
+    }
+
+    private void string(String value) {
+      Integer index = strings.get(value);
+      if (index != null) {
+        number(index + 1);
+        return;
+      }
+      strings.put(value, strings.size());
+      number(0);
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      number(bytes.length);
+      try {
+        out.write(bytes);
+      } catch (IOException error) {
+        throw new UncheckedIOException(error);
+      }
+    }
+
+    private void token(Token token) {
+      number(token.type.ordinal());
+      string(token.lexeme);
+      number(token.line);
+    }
+
+    // -1 ("not resolved") is stored as 0
+    private void slot(int slot) {
+      number(slot + 1);
+    }
+
+    // --- Statements ---
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+      tag(EXPRESSION);
+      expression(stmt.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+      tag(PRINT);
+      expression(stmt.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+      tag(VAR);
+      token(stmt.name);
+      expression(stmt.initializer);
+      slot(stmt.slot);
+      flag(stmt.numeric);
+      return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+      tag(IF);
+      expression(stmt.condition);
+      statement(stmt.thenBranch);
+      statement(stmt.elseBranch);
+      return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+      tag(BLOCK);
+      number(stmt.statements.size());
+      for (Stmt statement : stmt.statements) {
+        statement(statement);
+      }
+      number(stmt.slotCount);
+      flag(stmt.hasCalls);
+      numbers(stmt.numbers);
+      return null;
+    }
+
+    // A frame's numeric slots, 0 for none (null)
+    private void numbers(boolean[] numbers) {
+      if (numbers == null) {
+        number(0);
+      } else {
+        number(numbers.length + 1);
+        for (boolean number : numbers) {
+          flag(number);
+        }
+      }
+    }
+
+    @Override
+    public Void visitInputStmt(Stmt.Input stmt) {
+      tag(INPUT);
+      token(stmt.name);
+      expression(stmt.prompt);
+      slot(stmt.depth);
+      slot(stmt.slot);
+      return null;
+    }
+
+    @Override
+    public Void visitFromStmt(Stmt.From stmt) {
+      tag(FROM);
+      flag(stmt.parallel);
+      expression(stmt.start);
+      expression(stmt.end);
+      token(stmt.loopVar);
+      statement(stmt.body);
+      slot(stmt.slot);
+      flag(stmt.numeric);
+      return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+      tag(WHILE);
+      expression(stmt.condition);
+      statement(stmt.body);
+      return null;
+    }
+
+    @Override
+    public Void visitSpawnStmt(Stmt.Spawn stmt) {
+      tag(SPAWN);
+      statement(stmt.body);
+      return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+      tag(FUNCTION);
+      token(stmt.name);
+      number(stmt.params.size());
+      for (Token param : stmt.params) {
+        token(param);
+      }
+      number(stmt.memoSize);
+      number(stmt.body.size());
+      for (Stmt statement : stmt.body) {
+        statement(statement);
+      }
+      slot(stmt.slot);
+      number(stmt.slotCount);
+      numbers(stmt.numbers);
+      return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+      tag(RETURN);
+      token(stmt.keyword);
+      expression(stmt.value);
+      return null;
+    }
+
+    // --- Expressions ---
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+      tag(BINARY, expr);
+      expression(expr.left);
+      token(expr.operator);
+      expression(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+      tag(GROUPING, expr);
+      expression(expr.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+      tag(LITERAL, expr);
+      Object value = expr.value;
+      if (value instanceof Double) {
+        tag(NUMBER);
+        try {
+          out.writeDouble((double) value);
+        } catch (IOException error) {
+          throw new UncheckedIOException(error);
+        }
+      } else if (value instanceof Boolean) {
+        tag((boolean) value ? TRUE : FALSE);
+      } else if (value == null) {
+        tag(NIL);
+      } else if (value instanceof String) {
+        tag(STRING);
+        string((String) value);
+      } else {
+        // Only the Parser and the Optimizer make literals, and they don't make anything else
+        throw new IllegalStateException("Can't cache a literal " + value.getClass().getSimpleName());
+      }
+      return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+      tag(UNARY, expr);
+      token(expr.operator);
+      expression(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+      tag(VARIABLE, expr);
+      token(expr.name);
+      slot(expr.depth);
+      slot(expr.slot);
+      return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+      tag(ASSIGN, expr);
+      token(expr.name);
+      expression(expr.value);
+      slot(expr.depth);
+      slot(expr.slot);
+      return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+      tag(LOGICAL, expr);
+      expression(expr.left);
+      token(expr.operator);
+      expression(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitPackLiteralExpr(Expr.PackLiteral expr) {
+      tag(PACK_LITERAL, expr);
+      expressions(expr.elements);
+      return null;
+    }
+
+    @Override
+    public Void visitIndexGetExpr(Expr.IndexGet expr) {
+      tag(INDEX_GET, expr);
+      expression(expr.object);
+      token(expr.bracket);
+      expression(expr.index);
+      return null;
+    }
+
+    @Override
+    public Void visitIndexSetExpr(Expr.IndexSet expr) {
+      tag(INDEX_SET, expr);
+      expression(expr.object);
+      token(expr.bracket);
+      expression(expr.index);
+      expression(expr.value);
+      return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+      tag(CALL, expr);
+      expression(expr.callee);
+      token(expr.paren);
+      expressions(expr.arguments);
+      return null;
+    }
+  }
+
+  // --- Reading ---
+
+  // The Writer in reverse. Anything unexpected throws, and load() gives up.
+  private static class Reader {
+    private final DataInputStream in;
+    private final List<String> strings = new ArrayList<>();
+
+    Reader(DataInputStream in) {
+      this.in = in;
+    }
+
+    List<Stmt> statements() throws IOException {
+      int count = number();
+      List<Stmt> statements = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        statements.add(statement());
+      }
+      return statements;
+    }
+
+    private int number() throws IOException {
+      int value = 0;
+      for (int shift = 0;; shift += 7) {
+        int b = in.readUnsignedByte();
+        value |= (b & 0x7f) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+    }
+
+    private boolean flag() throws IOException {
+      return in.readUnsignedByte() != 0;
+    }
+
+    private String string() throws IOException {
+      int index = number();
+      if (index > 0) {
+        return strings.get(index - 1);
+      }
+      byte[] bytes = new byte[number()];
+      in.readFully(bytes);
+      String value = new String(bytes, StandardCharsets.UTF_8);
+      strings.add(value);
+      return value;
+    }
+
+    private Token token() throws IOException {
+      TokenType type = TYPES[number()];
+      String lexeme = string();
+      return new Token(type, lexeme, null, number());
+    }
+
+    private int slot() throws IOException {
+      return number() - 1;
+    }
+
+    private Stmt statement() throws IOException {
+      int tag = in.readUnsignedByte();
+      if (tag == NONE) {
+        return null;
+      }
+      Stmt stmt = statement(tag);
+      stmt.line = number();
+      return stmt;
+    }
+
+    private Stmt statement(int tag) throws IOException {
+      switch (tag) {
+        case EXPRESSION:
+          return new Stmt.Expression(expression());
+        case PRINT:
+          return new Stmt.Print(expression());
+        case VAR: {
+          Stmt.Var stmt = new Stmt.Var(token(), expression());
+          stmt.slot = slot();
+          stmt.numeric = flag();
+          return stmt;
+        }
+        case IF: {
+          Expr condition = expression();
+          Stmt thenBranch = statement();
+          return new Stmt.If(condition, thenBranch, statement());
+        }
+        case BLOCK: {
+          Stmt.Block stmt = new Stmt.Block(statements());
+          stmt.slotCount = number();
+          stmt.hasCalls = flag();
+          stmt.numbers = numbers();
+          return stmt;
+        }
+        case INPUT: {
+          Stmt.Input stmt = new Stmt.Input(token(), expression());
+          stmt.depth = slot();
+          stmt.slot = slot();
+          return stmt;
+        }
+        case FROM: {
+          boolean parallel = flag();
+          Expr start = expression();
+          Expr end = expression();
+          Token loopVar = token();
+          Stmt.From stmt = new Stmt.From(start, end, loopVar, statement(), parallel);
+          stmt.slot = slot();
+          stmt.numeric = flag();
+          return stmt;
+        }
+        case WHILE: {
+          Expr condition = expression();
+          return new Stmt.While(condition, statement());
+        }
+        case SPAWN: {
+          return new Stmt.Spawn(statement());
+        }
+        case FUNCTION: {
+          Token name = token();
+          int count = number();
+          List<Token> params = new ArrayList<>(count);
+          for (int i = 0; i < count; i++) {
+            params.add(token());
+          }
+          int memoSize = number();
+          Stmt.Function stmt = new Stmt.Function(name, params, statements(), memoSize);
+          stmt.slot = slot();
+          stmt.slotCount = number();
+          stmt.numbers = numbers();
+          return stmt;
+        }
+        case RETURN: {
+          Token keyword = token();
+          return new Stmt.Return(keyword, expression());
+        }
+        default:
+          throw new IllegalStateException("Bad statement tag " + tag);
+      }
+    }
+
+    private boolean[] numbers() throws IOException {
+      int count = number();
+      if (count == 0) {
+        return null;
+      }
+      boolean[] numbers = new boolean[count - 1];
+      for (int i = 0; i < numbers.length; i++) {
+        numbers[i] = flag();
+      }
+      return numbers;
+    }
+
+    private List<Expr> expressions() throws IOException {
+      int count = number();
+      List<Expr> exprs = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        exprs.add(expression());
+      }
+      return exprs;
+    }
+
+    private Expr expression() throws IOException {
+      int tag = in.readUnsignedByte();
+      if (tag == NONE) {
+        return null;
+      }
+      boolean numeric = flag();
+      Expr expr = expression(tag);
+      expr.numeric = numeric;
+      return expr;
+    }
+
+    private Expr expression(int tag) throws IOException {
+      switch (tag) {
+        case BINARY: {
+          Expr left = expression();
+          Token operator = token();
+          return new Expr.Binary(left, operator, expression());
+        }
+        case GROUPING:
+          return new Expr.Grouping(expression());
+        case LITERAL:
+          return new Expr.Literal(literal());
+        case UNARY: {
+          Token operator = token();
+          return new Expr.Unary(operator, expression());
+        }
+        case VARIABLE: {
+          Expr.Variable expr = new Expr.Variable(token());
+          expr.depth = slot();
+          expr.slot = slot();
+          return expr;
+        }
+        case ASSIGN: {
+          Expr.Assign expr = new Expr.Assign(token(), expression());
+          expr.depth = slot();
+          expr.slot = slot();
+          return expr;
+        }
+        case LOGICAL: {
+          Expr left = expression();
+          Token operator = token();
+          return new Expr.Logical(left, operator, expression());
+        }
+        case PACK_LITERAL:
+          return new Expr.PackLiteral(expressions());
+        case INDEX_GET: {
+          Expr object = expression();
+          Token bracket = token();
+          return new Expr.IndexGet(object, bracket, expression());
+        }
+        case INDEX_SET: {
+          Expr object = expression();
+          Token bracket = token();
+          Expr index = expression();
+          return new Expr.IndexSet(object, bracket, index, expression());
+        }
+        case CALL: {
+          Expr callee = expression();
+          Token paren = token();
+          return new Expr.Call(callee, paren, expressions());
+        }
+        default:
+          throw new IllegalStateException("Bad expression tag " + tag);
+      }
+    }
+
+    private Object literal() throws IOException {
+      int tag = in.readUnsignedByte();
+      switch (tag) {
+        case NIL:
+          return null;
+        case NUMBER:
+          return in.readDouble();
+        case STRING:
+          return string();
+        case TRUE:
+          return true;
+        case FALSE:
+          return false;
+        default:
+          throw new IllegalStateException("Bad literal tag " + tag);
+      }
+    }
+  }
+}
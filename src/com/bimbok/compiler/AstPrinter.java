@@ -0,0 +1,179 @@
+package com.bimbok.compiler;
+
+import java.util.List;
+
+// Prints a tree as nested parentheses, one statement per line, so
+// "--dump-ast" can show what the Optimizer did:
+//   (say total (* 120 1000))
+//   (if (> total 5) { (out "big") })
+class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
+  String print(List<Stmt> statements) {
+    StringBuilder builder = new StringBuilder();
+    for (Stmt statement : statements) {
+      builder.append(statement.accept(this)).append("\n");
+    }
+    return builder.toString();
+  }
+
+  private String parenthesize(String name, Object... parts) {
+    StringBuilder builder = new StringBuilder("(").append(name);
+    for (Object part : parts) {
+      builder.append(" ");
+      if (part instanceof Expr) {
+        builder.append(((Expr) part).accept(this));
+      } else if (part instanceof Stmt) {
+        builder.append(((Stmt) part).accept(this));
+      } else {
+        builder.append(part);
+      }
+    }
+    return builder.append(")").toString();
+  }
+
+  // --- Statements ---
+
+  @Override
+  public String visitBlockStmt(Stmt.Block stmt) {
+    StringBuilder builder = new StringBuilder("{");
+    for (Stmt statement : stmt.statements) {
+      builder.append(" ").append(statement.accept(this));
+    }
+    return builder.append(" }").toString();
+  }
+
+  @Override
+  public String visitVarStmt(Stmt.Var stmt) {
+    if (stmt.initializer == null) {
+      return parenthesize("say", stmt.name.lexeme);
+    }
+    return parenthesize("say", stmt.name.lexeme, stmt.initializer);
+  }
+
+  @Override
+  public String visitInputStmt(Stmt.Input stmt) {
+    if (stmt.prompt == null) {
+      return parenthesize("in", stmt.name.lexeme);
+    }
+    return parenthesize("in", stmt.prompt, stmt.name.lexeme);
+  }
+
+  @Override
+  public String visitFromStmt(Stmt.From stmt) {
+    return parenthesize(stmt.parallel ? "par from" : "from", stmt.start, stmt.end, stmt.loopVar.lexeme, stmt.body);
+  }
+
+  @Override
+  public String visitWhileStmt(Stmt.While stmt) {
+    return parenthesize("while", stmt.condition, stmt.body);
+  }
+
+  @Override
+  public String visitSpawnStmt(Stmt.Spawn stmt) {
+    return parenthesize("spawn", stmt.body);
+  }
+
+  @Override
+  public String visitFunctionStmt(Stmt.Function stmt) {
+    StringBuilder params = new StringBuilder("(");
+    for (Token param : stmt.params) {
+      params.append(params.length() > 1 ? " " : "").append(param.lexeme);
+    }
+    StringBuilder body = new StringBuilder("{");
+    for (Stmt statement : stmt.body) {
+      body.append(" ").append(statement.accept(this));
+    }
+    String fun = stmt.memoSize > 0 ? "memo(" + stmt.memoSize + ") fun" : "fun";
+    return parenthesize(fun, stmt.name.lexeme, params.append(")"), body.append(" }"));
+  }
+
+  @Override
+  public String visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value == null) {
+      return "(return)";
+    }
+    return parenthesize("return", stmt.value);
+  }
+
+  @Override
+  public String visitIfStmt(Stmt.If stmt) {
+    if (stmt.elseBranch == null) {
+      return parenthesize("if", stmt.condition, stmt.thenBranch);
+    }
+    return parenthesize("if", stmt.condition, stmt.thenBranch, stmt.elseBranch);
+  }
+
+  @Override
+  public String visitPrintStmt(Stmt.Print stmt) {
+    return parenthesize("out", stmt.expression);
+  }
+
+  @Override
+  public String visitExpressionStmt(Stmt.Expression stmt) {
+    return stmt.expression.accept(this);
+  }
+
+  // --- Expressions ---
+
+  @Override
+  public String visitLiteralExpr(Expr.Literal expr) {
+    if (expr.value instanceof String) {
+      return "\"" + expr.value + "\"";
+    }
+    return Values.stringify(expr.value);
+  }
+
+  @Override
+  public String visitVariableExpr(Expr.Variable expr) {
+    return expr.name.lexeme;
+  }
+
+  @Override
+  public String visitAssignExpr(Expr.Assign expr) {
+    return parenthesize("=", expr.name.lexeme, expr.value);
+  }
+
+  @Override
+  public String visitBinaryExpr(Expr.Binary expr) {
+    return parenthesize(expr.operator.lexeme, expr.left, expr.right);
+  }
+
+  @Override
+  public String visitLogicalExpr(Expr.Logical expr) {
+    return parenthesize(expr.operator.lexeme, expr.left, expr.right);
+  }
+
+  @Override
+  public String visitGroupingExpr(Expr.Grouping expr) {
+    return parenthesize("group", expr.expression);
+  }
+
+  @Override
+  public String visitUnaryExpr(Expr.Unary expr) {
+    return parenthesize(expr.operator.lexeme, expr.right);
+  }
+
+  @Override
+  public String visitPackLiteralExpr(Expr.PackLiteral expr) {
+    return parenthesize("pack", expr.elements.toArray());
+  }
+
+  @Override
+  public String visitIndexGetExpr(Expr.IndexGet expr) {
+    return parenthesize("[]", expr.object, expr.index);
+  }
+
+  @Override
+  public String visitIndexSetExpr(Expr.IndexSet expr) {
+    return parenthesize("[]=", expr.object, expr.index, expr.value);
+  }
+
+  @Override
+  public String visitCallExpr(Expr.Call expr) {
+    Object[] parts = new Object[expr.arguments.size() + 1];
+    parts[0] = expr.callee;
+    for (int i = 0; i < expr.arguments.size(); i++) {
+      parts[i + 1] = expr.arguments.get(i);
+    }
+    return parenthesize("call", parts);
+  }
+}
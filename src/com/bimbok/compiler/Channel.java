@@ -0,0 +1,117 @@
+package com.bimbok.compiler;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// What channel(size) makes: a queue of at most size values that spawned tasks
+// (and the script itself) hand each other values through. send() waits while
+// it's full, receive() while it's empty, so a fast producer can't run away
+// from a slow consumer.
+//
+// Not an ArrayBlockingQueue: that can't hold nil and can't be closed. After
+// close() the values already in it can still be received, then receive()
+// gives nil straight away instead of waiting for values that won't come.
+//
+// An off-heap pack goes along with its memory: the block that receives it
+// owns it from then on, so the sender's task ending doesn't free it. (One
+// left in the channel, never received, stays until the program ends.)
+//
+// The waiting is on a ReentrantLock, not synchronized: a virtual thread
+// waiting on a Condition gives its carrier thread back, one in a synchronized
+// block (on JDK 21) keeps it.
+public final class Channel {
+  private final Object[] values;
+  private int head = 0;
+  private int count = 0;
+  private boolean closed = false;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final Condition notFull = lock.newCondition();
+
+  Channel(int size) {
+    values = new Object[size];
+  }
+
+  void send(Object value) {
+    lock.lock();
+    try {
+      while (count == values.length && !closed) {
+        await(notFull);
+      }
+      if (closed) {
+        throw new RuntimeException("Can't send on a closed channel.");
+      }
+      if (value instanceof OffHeapPack && OffHeap.release((OffHeapPack) value)) {
+        value = new Handed((OffHeapPack) value);
+      }
+      values[(head + count) % values.length] = value;
+      count++;
+      notEmpty.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // The oldest value, or nil once it's closed and empty
+  Object receive() {
+    lock.lock();
+    try {
+      while (count == 0 && !closed) {
+        await(notEmpty);
+      }
+      if (count == 0) {
+        return null;
+      }
+      Object value = values[head];
+      values[head] = null;
+      head = (head + 1) % values.length;
+      count--;
+      notFull.signal();
+      if (value instanceof Handed) {
+        OffHeapPack pack = ((Handed) value).pack;
+        OffHeap.adopt(pack);
+        return pack;
+      }
+      return value;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Wakes everyone waiting: senders fail, receivers get what's left, then nil
+  void close() {
+    lock.lock();
+    try {
+      closed = true;
+      notEmpty.signalAll();
+      notFull.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // An off-heap pack on its way, owned by nobody until it's received.
+  // (Package-private so JvmCompiler can put it in the jar)
+  static final class Handed {
+    final OffHeapPack pack;
+
+    Handed(OffHeapPack pack) {
+      this.pack = pack;
+    }
+  }
+
+  private static void await(Condition condition) {
+    try {
+      condition.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while waiting on a channel.");
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "<channel>";
+  }
+}
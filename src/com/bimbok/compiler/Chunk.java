@@ -0,0 +1,75 @@
+package com.bimbok.compiler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A compiled program: flat bytecode, the constants it refers to, and the
+// source line every instruction came from. A "fun" is a Chunk of its own,
+// and the Chunk is also the function's value while the script runs.
+class Chunk {
+  final String name; // null for the script itself
+  final int arity;
+  final Memo memo; // A "memo fun"'s results, null for anything else
+
+  int[] code = new int[256];
+  int[] lines = new int[256];
+  int count = 0;
+
+  final List<Object> constants = new ArrayList<>();
+  private final Map<Object, Integer> constantIndex = new HashMap<>();
+
+  // Sizes the VM needs for the frame, worked out by the Compiler
+  int maxLocals = 0;
+  int maxStack = 0;
+  // One past the highest global slot its code uses
+  int globalCount = 0;
+
+  // The constants the way the VM reads them (numbers unboxed), made the
+  // first time it runs this chunk
+  Object[] runConstants;
+  double[] constantNumbers;
+
+  Chunk() {
+    this(null, 0, 0);
+  }
+
+  // memoSize: 0 unless it's a "memo fun"
+  Chunk(String name, int arity, int memoSize) {
+    this.name = name;
+    this.arity = arity;
+    this.memo = memoSize > 0 ? new Memo(name, memoSize) : null;
+  }
+
+  void write(int word, int line) {
+    if (count == code.length) {
+      code = Arrays.copyOf(code, count * 2);
+      lines = Arrays.copyOf(lines, count * 2);
+    }
+    code[count] = word;
+    lines[count] = line;
+    count++;
+  }
+
+  // Same number or string twice? Share one constant.
+  int addConstant(Object value) {
+    Integer index = constantIndex.get(value);
+    if (index == null) {
+      index = constants.size();
+      constants.add(value);
+      constantIndex.put(value, index);
+    }
+    return index;
+  }
+
+  int lineAt(int offset) {
+    return lines[offset];
+  }
+
+  @Override
+  public String toString() {
+    return "<fn " + name + ">";
+  }
+}
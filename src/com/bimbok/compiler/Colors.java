@@ -1,19 +1,23 @@
 package com.bimbok.compiler;
 
+// All empty strings unless stdout is a terminal (and NO_COLOR isn't set):
+// piped into a file or another program, escape codes are just noise.
 public class Colors {
-    public static final String RESET = "\033[0m";  // Text Reset
+    static final boolean ENABLED = System.getenv("NO_COLOR") == null && Output.isTerminal(Output.STDOUT);
+
+    public static final String RESET = ENABLED ? "\033[0m" : "";  // Text Reset
 
     // Regular Colors
-    public static final String BLACK = "\033[0;30m";   // BLACK
-    public static final String RED = "\033[0;31m";     // RED
-    public static final String GREEN = "\033[0;32m";   // GREEN
-    public static final String YELLOW = "\033[0;33m";  // YELLOW
-    public static final String BLUE = "\033[0;34m";    // BLUE
-    public static final String PURPLE = "\033[0;35m";  // PURPLE
-    public static final String CYAN = "\033[0;36m";    // CYAN
-    public static final String WHITE = "\033[0;37m";   // WHITE
+    public static final String BLACK = ENABLED ? "\033[0;30m" : "";   // BLACK
+    public static final String RED = ENABLED ? "\033[0;31m" : "";     // RED
+    public static final String GREEN = ENABLED ? "\033[0;32m" : "";   // GREEN
+    public static final String YELLOW = ENABLED ? "\033[0;33m" : "";  // YELLOW
+    public static final String BLUE = ENABLED ? "\033[0;34m" : "";    // BLUE
+    public static final String PURPLE = ENABLED ? "\033[0;35m" : "";  // PURPLE
+    public static final String CYAN = ENABLED ? "\033[0;36m" : "";    // CYAN
+    public static final String WHITE = ENABLED ? "\033[0;37m" : "";   // WHITE
 
     // Bold
-    public static final String GREEN_BOLD = "\033[1;32m";  // GREEN
-    public static final String PURPLE_BOLD = "\033[1;35m"; // PURPLE
+    public static final String GREEN_BOLD = ENABLED ? "\033[1;32m" : "";  // GREEN
+    public static final String PURPLE_BOLD = ENABLED ? "\033[1;35m" : ""; // PURPLE
 }
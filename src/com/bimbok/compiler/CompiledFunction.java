@@ -0,0 +1,38 @@
+package com.bimbok.compiler;
+
+import java.lang.invoke.MethodHandle;
+
+// A "fun" in a compiled script: the static method JvmCompiler made for it.
+// Calls the compiler can see the target of go straight to the method; this
+// is only for the rest (a function passed around in a variable), through
+// Values.call. Public because the generated classes make them.
+public final class CompiledFunction {
+  private final String name;
+  private final int arity;
+  private final MethodHandle method;
+
+  public CompiledFunction(String name, int arity, MethodHandle method) {
+    this.name = name;
+    this.arity = arity;
+    this.method = method;
+  }
+
+  Object call(Object[] arguments) {
+    if (arguments.length != arity) {
+      throw new RuntimeException("Expected " + arity + " arguments but got " + arguments.length + ".");
+    }
+    try {
+      return method.invokeWithArguments(arguments);
+    } catch (RuntimeException | Error error) {
+      throw error;
+    } catch (Throwable error) {
+      // The generated methods don't throw anything checked
+      throw new IllegalStateException(error);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "<fn " + name + ">";
+  }
+}
@@ -0,0 +1,871 @@
+package com.bimbok.compiler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Turns a resolved AST into a flat Chunk for the VM.
+// Every block's locals get their own range in one flat frame, so the VM
+// never allocates a scope: (depth, slot) from the Resolver becomes a single index.
+//
+// Whatever the TypeInference marked numeric is compiled to the NUM_
+// instructions, which work on variables and constants where they are:
+// "total = total + i" is one instruction, not four. The steps in between
+// ("a * b" in "a * b + c") get temporary slots at the end of the frame.
+class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+  // The number operand target that pushes the result
+  private static final int TOP = OpCode.operand(OpCode.PUSH, 0);
+
+  private final Chunk chunk;
+
+  // Where each open block's locals start in the frame. The global scope
+  // isn't in here: globals live in the VM, not the frame.
+  private final List<Integer> scopeBases = new ArrayList<>();
+  private int nextLocal = 0;
+
+  private int stackDepth = 0;
+  private int line = 1;
+  // Blocks with an OffHeap scope open right now: a "return" has to close them
+  private int openScopes = 0;
+
+  Compiler() {
+    this(new Chunk());
+  }
+
+  private Compiler(Chunk chunk) {
+    this.chunk = chunk;
+  }
+
+  Chunk compile(List<Stmt> statements) {
+    for (Stmt statement : statements) {
+      compile(statement);
+    }
+    emit(OpCode.RETURN, 0);
+    return chunk;
+  }
+
+  // A function body: the parameters and the body's locals are the frame
+  // (slots 0..slotCount-1), anything further out is a global
+  private Chunk compileFunction(Stmt.Function function) {
+    line = function.name.line;
+    scopeBases.add(allocateLocals(function.slotCount));
+    for (Stmt statement : function.body) {
+      compile(statement);
+    }
+    // Falling off the end returns nil
+    emit(OpCode.NIL, 1);
+    emit(OpCode.RETURN_VALUE, -1);
+    return chunk;
+  }
+
+  private void compile(Stmt stmt) {
+    // The temporaries the statement needed are free again after it
+    int temps = nextLocal;
+    stmt.accept(this);
+    nextLocal = temps;
+  }
+
+  private void compile(Expr expr) {
+    expr.accept(this);
+  }
+
+  // --- Statements ---
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    compile(stmt.expression);
+    emit(OpCode.PRINT, -1);
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    // "a = 5" on its own line doesn't need its value afterwards
+    if (stmt.expression instanceof Expr.Assign) {
+      Expr.Assign assign = (Expr.Assign) stmt.expression;
+      line = assign.name.line;
+      if (assign.numeric) {
+        assignNumber(assign.depth, assign.slot, assign.name, assign.value);
+        return null;
+      }
+      compile(assign.value);
+      emitStore(assign.depth, assign.slot, assign.name);
+      return null;
+    }
+
+    compile(stmt.expression);
+    emit(OpCode.POP, -1);
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    line = stmt.name.line;
+    if (stmt.numeric) {
+      assignNumber(0, stmt.slot, stmt.name, stmt.initializer);
+      return null;
+    }
+    if (stmt.initializer != null) {
+      compile(stmt.initializer);
+    } else {
+      emit(OpCode.NIL, 1);
+    }
+    emitStore(0, stmt.slot, stmt.name);
+    return null;
+  }
+
+  @Override
+  public Void visitInputStmt(Stmt.Input stmt) {
+    line = stmt.name.line;
+    if (stmt.prompt != null) {
+      compile(stmt.prompt);
+      emit(OpCode.INPUT, 0);
+      emitOperand(1);
+    } else {
+      emit(OpCode.INPUT, 1);
+      emitOperand(0);
+    }
+    emitStore(stmt.depth, stmt.slot, stmt.name);
+    return null;
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    int thenJump = compileCondition(stmt.condition);
+    compile(stmt.thenBranch);
+
+    if (stmt.elseBranch == null) {
+      patchJump(thenJump);
+      return null;
+    }
+
+    int elseJump = emitJump(OpCode.JUMP, 0);
+    patchJump(thenJump);
+    compile(stmt.elseBranch);
+    patchJump(elseJump);
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    Expr.Binary test = numberTest(stmt.condition);
+    if (test != null && bottomJump(test.operator.type) >= 0) {
+      // Tested at the bottom, where it jumps back up: one instruction a lap
+      int entry = emitJump(OpCode.JUMP, 0);
+      int loopStart = chunk.count;
+      compile(stmt.body);
+      patchJump(entry);
+      int a = hasEffects(test.right) ? intoTemp(test.left) : numberOperand(test.left);
+      int b = numberOperand(test.right);
+      line = test.operator.line;
+      emit(bottomJump(test.operator.type), 0);
+      emitOperand(a);
+      emitOperand(b);
+      emitOperand(loopStart - (chunk.count + 1));
+      return null;
+    }
+
+    int loopStart = chunk.count;
+    int exitJump = compileCondition(stmt.condition);
+    compile(stmt.body);
+    emitLoop(loopStart);
+    patchJump(exitJump);
+    return null;
+  }
+
+  // The body goes right here, in the same frame layout, so the task can run
+  // it in a copy of the frame it was spawned from (see VM.spawn)
+  @Override
+  public Void visitSpawnStmt(Stmt.Spawn stmt) {
+    line = stmt.line;
+    int skip = emitJump(OpCode.SPAWN, 0);
+    compile(stmt.body);
+    emit(OpCode.RETURN, 0);
+    patchJump(skip);
+    return null;
+  }
+
+  @Override
+  public Void visitFromStmt(Stmt.From stmt) {
+    line = stmt.loopVar.line;
+    compile(stmt.start);
+    compile(stmt.end);
+
+    // Two hidden locals: the counter and the (already evaluated) end
+    int counter = allocateLocals(2);
+    emit(OpCode.FROM_INIT, -2);
+    emitOperand(counter);
+
+    // A numeric loop variable gets the counter from FROM_TEST and FROM_LOOP
+    int variable = stmt.numeric ? variableOperand(0, stmt.slot) : -1;
+    emit(OpCode.FROM_TEST, 0);
+    emitOperand(counter);
+    emitOperand(variable);
+    int exitJump = chunk.count;
+    emitOperand(-1);
+
+    int loopStart = chunk.count;
+    if (!stmt.numeric) {
+      emit(OpCode.NUM_MOVE, 1);
+      emitOperand(TOP);
+      emitOperand(OpCode.operand(OpCode.LOCAL, counter));
+      emitStore(0, stmt.slot, stmt.loopVar);
+    }
+    if (stmt.parallel) {
+      emit(OpCode.PAR_ENTER, 0);
+      compile(stmt.body);
+      emit(OpCode.PAR_EXIT, 0);
+    } else {
+      compile(stmt.body);
+    }
+
+    line = stmt.loopVar.line;
+    emit(OpCode.FROM_LOOP, 0);
+    emitOperand(counter);
+    emitOperand(variable);
+    emitOperand(loopStart - (chunk.count + 1));
+    patchJump(exitJump);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    Chunk function = new Compiler(new Chunk(stmt.name.lexeme, stmt.params.size(), stmt.memoSize)).compileFunction(stmt);
+    line = stmt.name.line;
+    emit(OpCode.CONSTANT, 1);
+    emitOperand(chunk.addConstant(function));
+    emitStore(0, stmt.slot, stmt.name);
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    line = stmt.keyword.line;
+    if (stmt.value instanceof Expr.Call) {
+      Expr.Call call = (Expr.Call) stmt.value;
+      compile(call.callee);
+      for (Expr argument : call.arguments) {
+        compile(argument);
+      }
+      line = call.paren.line;
+      // The VM leaves the blocks the return is in itself, if it tail calls
+      emit(OpCode.TAIL_CALL, -call.arguments.size());
+      emitOperand(call.arguments.size());
+      emitOperand(openScopes);
+      // Only reached when the VM made it an ordinary call after all (a
+      // built-in, or a memo fun that has to fill its cache on the way out)
+      exitScopes();
+      emit(OpCode.RETURN_VALUE, -1);
+      return null;
+    }
+
+    if (stmt.value != null) {
+      compile(stmt.value);
+    } else {
+      emit(OpCode.NIL, 1);
+    }
+    exitScopes();
+    emit(OpCode.RETURN_VALUE, -1);
+    return null;
+  }
+
+  // What the blocks a "return" jumps out of would have done on the way out
+  private void exitScopes() {
+    for (int i = 0; i < openScopes; i++) {
+      emit(OpCode.SCOPE_EXIT, 0);
+    }
+  }
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    int base = allocateLocals(stmt.slotCount);
+    scopeBases.add(base);
+    if (stmt.hasCalls) {
+      emit(OpCode.SCOPE_ENTER, 0);
+      openScopes++;
+    }
+    for (Stmt statement : stmt.statements) {
+      compile(statement);
+    }
+    if (stmt.hasCalls) {
+      emit(OpCode.SCOPE_EXIT, 0);
+      openScopes--;
+    }
+    scopeBases.remove(scopeBases.size() - 1);
+    nextLocal = base;
+    return null;
+  }
+
+  // --- Expressions ---
+
+  @Override
+  public Void visitLiteralExpr(Expr.Literal expr) {
+    if (expr.value == null) {
+      emit(OpCode.NIL, 1);
+    } else if (expr.value instanceof Boolean) {
+      emit((boolean) expr.value ? OpCode.TRUE : OpCode.FALSE, 1);
+    } else {
+      emit(OpCode.CONSTANT, 1);
+      emitOperand(chunk.addConstant(expr.value));
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitGroupingExpr(Expr.Grouping expr) {
+    compile(expr.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitUnaryExpr(Expr.Unary expr) {
+    if (isNative(expr)) {
+      pushNumber(expr);
+      return null;
+    }
+    compile(expr.right);
+    line = expr.operator.line;
+    if (expr.operator.type == TokenType.MINUS) {
+      emit(OpCode.NEGATE, 0);
+    } else {
+      emit(OpCode.NOT, 0);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpr(Expr.Binary expr) {
+    if (isNative(expr)) {
+      pushNumber(expr);
+      return null;
+    }
+    compile(expr.left);
+    compile(expr.right);
+    line = expr.operator.line;
+
+    switch (expr.operator.type) {
+      case PLUS:
+        emit(OpCode.ADD, -1);
+        break;
+      case MINUS:
+        emit(OpCode.SUBTRACT, -1);
+        break;
+      case STAR:
+        emit(OpCode.MULTIPLY, -1);
+        break;
+      case SLASH:
+        emit(OpCode.DIVIDE, -1);
+        break;
+      case MODULO:
+        emit(OpCode.MODULO, -1);
+        break;
+      case GREATER:
+        emit(OpCode.GREATER, -1);
+        break;
+      case GREATER_EQUAL:
+        emit(OpCode.GREATER_EQUAL, -1);
+        break;
+      case LESS:
+        emit(OpCode.LESS, -1);
+        break;
+      case LESS_EQUAL:
+        emit(OpCode.LESS_EQUAL, -1);
+        break;
+      case BANG_EQUAL:
+        emit(OpCode.NOT_EQUAL, -1);
+        break;
+      case EQUAL_EQUAL:
+        emit(OpCode.EQUAL, -1);
+        break;
+      default:
+        // The tree-walker gives nil for an unknown operator, so do the same
+        emit(OpCode.POP, -1);
+        emit(OpCode.POP, -1);
+        emit(OpCode.NIL, 1);
+        break;
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpr(Expr.Logical expr) {
+    // Keep the left value if it decides the answer, otherwise replace it with the right one
+    compile(expr.left);
+    emit(OpCode.DUP, 1);
+    int endJump;
+    if (expr.operator.type == TokenType.OR) {
+      emit(OpCode.NOT, 0);
+    }
+    endJump = emitJump(OpCode.JUMP_IF_FALSE, -1);
+    emit(OpCode.POP, -1);
+    compile(expr.right);
+    patchJump(endJump);
+    return null;
+  }
+
+  @Override
+  public Void visitVariableExpr(Expr.Variable expr) {
+    line = expr.name.line;
+    if (expr.numeric) {
+      pushNumber(expr);
+      return null;
+    }
+    int scope = scopeIndex(expr.depth);
+    if (scope < 0) {
+      emit(OpCode.GET_GLOBAL, 1);
+      emitOperand(global(expr.slot));
+      emitOperand(chunk.addConstant(expr.name.lexeme));
+    } else {
+      emit(OpCode.GET_LOCAL, 1);
+      emitOperand(scopeBases.get(scope) + expr.slot);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitAssignExpr(Expr.Assign expr) {
+    line = expr.name.line;
+    if (expr.numeric) {
+      assignNumber(expr.depth, expr.slot, expr.name, expr.value);
+      emit(OpCode.NUM_MOVE, 1);
+      emitOperand(TOP);
+      emitOperand(variableOperand(expr.depth, expr.slot));
+      return null;
+    }
+    compile(expr.value);
+    line = expr.name.line;
+    int scope = scopeIndex(expr.depth);
+    if (scope < 0) {
+      emit(OpCode.SET_GLOBAL, 0);
+      emitOperand(global(expr.slot));
+      emitOperand(chunk.addConstant(expr.name.lexeme));
+    } else {
+      emit(OpCode.SET_LOCAL, 0);
+      emitOperand(scopeBases.get(scope) + expr.slot);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitPackLiteralExpr(Expr.PackLiteral expr) {
+    for (Expr element : expr.elements) {
+      compile(element);
+    }
+    emit(OpCode.PACK, 1 - expr.elements.size());
+    emitOperand(expr.elements.size());
+    return null;
+  }
+
+  @Override
+  public Void visitIndexGetExpr(Expr.IndexGet expr) {
+    compile(expr.object);
+    if (isNumber(expr.index)) {
+      int index = numberOperand(expr.index);
+      line = expr.bracket.line;
+      emit(OpCode.INDEX_GET_NUMBER, 0);
+      emitOperand(index);
+      return null;
+    }
+    compile(expr.index);
+    line = expr.bracket.line;
+    emit(OpCode.INDEX_GET, -1);
+    return null;
+  }
+
+  @Override
+  public Void visitIndexSetExpr(Expr.IndexSet expr) {
+    compile(expr.object);
+    if (isNumber(expr.index)) {
+      // "p[i] = (i = 2)" still stores into the i from before
+      int index = hasEffects(expr.value) ? intoTemp(expr.index) : numberOperand(expr.index);
+      compile(expr.value);
+      line = expr.bracket.line;
+      emit(OpCode.INDEX_SET_NUMBER, -1);
+      emitOperand(index);
+      return null;
+    }
+    compile(expr.index);
+    compile(expr.value);
+    line = expr.bracket.line;
+    emit(OpCode.INDEX_SET, -2);
+    return null;
+  }
+
+  @Override
+  public Void visitCallExpr(Expr.Call expr) {
+    compile(expr.callee);
+    for (Expr argument : expr.arguments) {
+      compile(argument);
+    }
+    line = expr.paren.line;
+    emit(OpCode.CALL, -expr.arguments.size());
+    emitOperand(expr.arguments.size());
+    return null;
+  }
+
+  // --- Helpers ---
+
+  // Compiles a branch condition and the jump taken when it is false.
+  // Plain comparisons fuse into one instruction instead of three.
+  private int compileCondition(Expr condition) {
+    condition = unwrap(condition);
+
+    Expr.Binary test = numberTest(condition);
+    if (test != null) {
+      int a = hasEffects(test.right) ? intoTemp(test.left) : numberOperand(test.left);
+      int b = numberOperand(test.right);
+      line = test.operator.line;
+      emit(numberJump(test.operator.type), 0);
+      emitOperand(a);
+      emitOperand(b);
+      emitOperand(-1);
+      return chunk.count - 1;
+    }
+
+    if (condition instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary) condition;
+      int fused = fusedJump(binary.operator.type);
+      if (fused >= 0) {
+        compile(binary.left);
+        compile(binary.right);
+        line = binary.operator.line;
+        return emitJump(fused, -2);
+      }
+    }
+
+    compile(condition);
+    return emitJump(OpCode.JUMP_IF_FALSE, -1);
+  }
+
+  private int fusedJump(TokenType type) {
+    switch (type) {
+      case GREATER:
+        return OpCode.JUMP_IF_NOT_GREATER;
+      case GREATER_EQUAL:
+        return OpCode.JUMP_IF_NOT_GREATER_EQUAL;
+      case LESS:
+        return OpCode.JUMP_IF_NOT_LESS;
+      case LESS_EQUAL:
+        return OpCode.JUMP_IF_NOT_LESS_EQUAL;
+      default:
+        return -1;
+    }
+  }
+
+  private int numberJump(TokenType type) {
+    switch (type) {
+      case GREATER:
+        return OpCode.NUM_JUMP_IF_NOT_GREATER;
+      case GREATER_EQUAL:
+        return OpCode.NUM_JUMP_IF_NOT_GREATER_EQUAL;
+      case LESS:
+        return OpCode.NUM_JUMP_IF_NOT_LESS;
+      case LESS_EQUAL:
+        return OpCode.NUM_JUMP_IF_NOT_LESS_EQUAL;
+      case EQUAL_EQUAL:
+        return OpCode.NUM_JUMP_IF_NOT_EQUAL;
+      case BANG_EQUAL:
+        return OpCode.NUM_JUMP_IF_EQUAL;
+      default:
+        return -1;
+    }
+  }
+
+  // The same tests the other way round, for the bottom of a while loop
+  private int bottomJump(TokenType type) {
+    switch (type) {
+      case GREATER:
+        return OpCode.NUM_JUMP_IF_GREATER;
+      case GREATER_EQUAL:
+        return OpCode.NUM_JUMP_IF_GREATER_EQUAL;
+      case LESS:
+        return OpCode.NUM_JUMP_IF_LESS;
+      case LESS_EQUAL:
+        return OpCode.NUM_JUMP_IF_LESS_EQUAL;
+      default:
+        return -1;
+    }
+  }
+
+  // --- Numbers ---
+
+  // A comparison the NUM_ jumps can do, or null. == can compare anything, so
+  // there both sides have to be numbers.
+  private Expr.Binary numberTest(Expr condition) {
+    condition = unwrap(condition);
+    if (!(condition instanceof Expr.Binary)) {
+      return null;
+    }
+    Expr.Binary binary = (Expr.Binary) condition;
+    if (numberJump(binary.operator.type) < 0) {
+      return null;
+    }
+    if (binary.operator.type == TokenType.EQUAL_EQUAL || binary.operator.type == TokenType.BANG_EQUAL) {
+      return isNumber(binary.left) && isNumber(binary.right) ? binary : null;
+    }
+    return castsInOrder(binary.left, binary.right) ? binary : null;
+  }
+
+  // Gives nothing but numbers (if it gives anything)
+  private static boolean isNumber(Expr expr) {
+    expr = unwrap(expr);
+    return expr.numeric || expr instanceof Expr.Literal && ((Expr.Literal) expr).value instanceof Double;
+  }
+
+  // A local that isn't numeric, like a parameter: the NUM_ instructions read
+  // it as a LOCAL_VALUE
+  private boolean isLocalValue(Expr expr) {
+    expr = unwrap(expr);
+    return expr instanceof Expr.Variable && !expr.numeric && scopeIndex(((Expr.Variable) expr).depth) >= 0;
+  }
+
+  // Can't fail or change anything, and needs no cast before the NUM_
+  // instruction reading it
+  private boolean isQuiet(Expr expr) {
+    expr = unwrap(expr);
+    if (expr instanceof Expr.Literal) {
+      return ((Expr.Literal) expr).value instanceof Double;
+    }
+    if (expr instanceof Expr.Variable) {
+      return expr.numeric || isLocalValue(expr);
+    }
+    if (expr instanceof Expr.Unary) {
+      Expr.Unary unary = (Expr.Unary) expr;
+      return unary.operator.type == TokenType.MINUS && unary.right.numeric && isQuiet(unary.right);
+    }
+    if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary) expr;
+      return numberOp(binary.operator.type) >= 0 && binary.left.numeric && binary.right.numeric
+          && isQuiet(binary.left) && isQuiet(binary.right);
+    }
+    return false;
+  }
+
+  // The Interpreter evaluates both sides of "a - b" or "a < b" and only then
+  // casts them, left first. A NUM_ instruction has a side that isn't sure to
+  // be a number cast sooner: fine as long as nothing observable happens in
+  // between. (A LOCAL_VALUE is cast in the instruction itself, in order.)
+  private boolean castsInOrder(Expr left, Expr right) {
+    return isNumber(left) || isQuiet(right);
+  }
+
+  // Can a NUM_ instruction work this out? (Its own operands may still take
+  // the long way round.)
+  private boolean isNative(Expr expr) {
+    expr = unwrap(expr);
+    if (expr instanceof Expr.Variable || expr instanceof Expr.Assign) {
+      return expr.numeric;
+    }
+    if (expr instanceof Expr.Unary) {
+      Expr.Unary unary = (Expr.Unary) expr;
+      return unary.operator.type == TokenType.MINUS && (isNumber(unary.right) || isLocalValue(unary.right));
+    }
+    if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary) expr;
+      if (binary.operator.type == TokenType.PLUS) {
+        // Could be joining strings otherwise
+        return isNumber(binary.left) && isNumber(binary.right);
+      }
+      return numberOp(binary.operator.type) >= 0 && castsInOrder(binary.left, binary.right);
+    }
+    return false;
+  }
+
+  private static int numberOp(TokenType type) {
+    switch (type) {
+      case PLUS:
+        return OpCode.NUM_ADD;
+      case MINUS:
+        return OpCode.NUM_SUBTRACT;
+      case STAR:
+        return OpCode.NUM_MULTIPLY;
+      case SLASH:
+        return OpCode.NUM_DIVIDE;
+      case MODULO:
+        return OpCode.NUM_MODULO;
+      default:
+        return -1;
+    }
+  }
+
+  // Could evaluating this change a variable? (If so, a variable on its left
+  // has to be read before it runs.)
+  private static boolean hasEffects(Expr expr) {
+    if (expr instanceof Expr.Literal || expr instanceof Expr.Variable) {
+      return false;
+    }
+    if (expr instanceof Expr.Grouping) {
+      return hasEffects(((Expr.Grouping) expr).expression);
+    }
+    if (expr instanceof Expr.Unary) {
+      return hasEffects(((Expr.Unary) expr).right);
+    }
+    if (expr instanceof Expr.Binary) {
+      return hasEffects(((Expr.Binary) expr).left) || hasEffects(((Expr.Binary) expr).right);
+    }
+    if (expr instanceof Expr.Logical) {
+      return hasEffects(((Expr.Logical) expr).left) || hasEffects(((Expr.Logical) expr).right);
+    }
+    if (expr instanceof Expr.IndexGet) {
+      return hasEffects(((Expr.IndexGet) expr).object) || hasEffects(((Expr.IndexGet) expr).index);
+    }
+    return true;
+  }
+
+  private static Expr unwrap(Expr expr) {
+    while (expr instanceof Expr.Grouping) {
+      expr = ((Expr.Grouping) expr).expression;
+    }
+    return expr;
+  }
+
+  // Where expr's value can be read by a NUM_ instruction: the variable or
+  // constant itself, or a temporary it's worked out into first
+  private int numberOperand(Expr expr) {
+    expr = unwrap(expr);
+    if (expr instanceof Expr.Literal && ((Expr.Literal) expr).value instanceof Double) {
+      return OpCode.operand(OpCode.CONSTANT_NUMBER, chunk.addConstant(((Expr.Literal) expr).value));
+    }
+    if (expr instanceof Expr.Variable && expr.numeric) {
+      Expr.Variable variable = (Expr.Variable) expr;
+      return variableOperand(variable.depth, variable.slot);
+    }
+    if (isLocalValue(expr)) {
+      Expr.Variable variable = (Expr.Variable) expr;
+      return OpCode.operand(OpCode.LOCAL_VALUE, scopeBases.get(scopeIndex(variable.depth)) + variable.slot);
+    }
+    return intoTemp(expr);
+  }
+
+  private int intoTemp(Expr expr) {
+    int temp = OpCode.operand(OpCode.LOCAL, allocateLocals(1));
+    compileNumber(expr, temp);
+    return temp;
+  }
+
+  // Works out expr straight into the number operand target (maybe TOP)
+  private void compileNumber(Expr expr, int target) {
+    int pushed = target == TOP ? 1 : 0;
+    expr = unwrap(expr);
+    if (isNative(expr) && expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary) expr;
+      // "i + (i = 5)" reads i before the assignment. (castsInOrder made sure
+      // a left side that isn't a number has nothing like that on its right.)
+      int a = hasEffects(binary.right) ? intoTemp(binary.left) : numberOperand(binary.left);
+      int b = numberOperand(binary.right);
+      line = binary.operator.line;
+      emit(numberOp(binary.operator.type), pushed);
+      emitOperand(target);
+      emitOperand(a);
+      emitOperand(b);
+    } else if (isNative(expr) && expr instanceof Expr.Unary) {
+      Expr.Unary unary = (Expr.Unary) expr;
+      int a = numberOperand(unary.right);
+      line = unary.operator.line;
+      emit(OpCode.NUM_NEGATE, pushed);
+      emitOperand(target);
+      emitOperand(a);
+    } else if (isNative(expr) && expr instanceof Expr.Assign) {
+      Expr.Assign assign = (Expr.Assign) expr;
+      assignNumber(assign.depth, assign.slot, assign.name, assign.value);
+      emit(OpCode.NUM_MOVE, pushed);
+      emitOperand(target);
+      emitOperand(variableOperand(assign.depth, assign.slot));
+    } else if (isNative(expr) || expr instanceof Expr.Literal && ((Expr.Literal) expr).value instanceof Double) {
+      int source = numberOperand(expr);
+      emit(OpCode.NUM_MOVE, pushed);
+      emitOperand(target);
+      emitOperand(source);
+    } else {
+      // Anything else ("a or b", a call, ...) the usual way, then off the stack
+      compile(expr);
+      emit(OpCode.NUM_POP, pushed - 1);
+      emitOperand(target);
+    }
+  }
+
+  // A number expression, on the stack for whatever needs it there
+  private void pushNumber(Expr expr) {
+    compileNumber(expr, TOP);
+  }
+
+  // value into a numeric variable
+  private void assignNumber(int depth, int slot, Token name, Expr value) {
+    if (scopeIndex(depth) >= 0 || chunk.name == null) {
+      compileNumber(value, variableOperand(depth, slot));
+      return;
+    }
+    // A function's write to a global: checked for "par from" on the way
+    int source = numberOperand(value);
+    line = name.line;
+    emit(OpCode.NUM_SET_GLOBAL, 0);
+    emitOperand(global(slot));
+    emitOperand(chunk.addConstant(name.lexeme));
+    emitOperand(source);
+  }
+
+  private int variableOperand(int depth, int slot) {
+    int scope = scopeIndex(depth);
+    if (scope < 0) {
+      return OpCode.operand(OpCode.GLOBAL, global(slot));
+    }
+    return OpCode.operand(OpCode.LOCAL, scopeBases.get(scope) + slot);
+  }
+
+  // Which open block a (depth) points at, or -1 for the global scope
+  private int scopeIndex(int depth) {
+    return scopeBases.size() - 1 - depth;
+  }
+
+  // Pops the top of the stack into a variable (used by "say", "in" and "a = ..." statements)
+  private void emitStore(int depth, int slot, Token name) {
+    int scope = scopeIndex(depth);
+    if (scope < 0) {
+      emit(OpCode.STORE_GLOBAL, -1);
+      emitOperand(global(slot));
+      emitOperand(chunk.addConstant(name.lexeme));
+    } else {
+      emit(OpCode.STORE_LOCAL, -1);
+      emitOperand(scopeBases.get(scope) + slot);
+    }
+  }
+
+  // The VM sizes its globals to fit every slot a chunk uses
+  private int global(int slot) {
+    chunk.globalCount = Math.max(chunk.globalCount, slot + 1);
+    return slot;
+  }
+
+  private int allocateLocals(int count) {
+    int base = nextLocal;
+    nextLocal += count;
+    chunk.maxLocals = Math.max(chunk.maxLocals, nextLocal);
+    return base;
+  }
+
+  // stackEffect is how much this instruction grows (or shrinks) the stack
+  private void emit(int op, int stackEffect) {
+    chunk.write(op, line);
+    stackDepth += stackEffect;
+    chunk.maxStack = Math.max(chunk.maxStack, stackDepth);
+  }
+
+  private void emitOperand(int value) {
+    chunk.write(value, line);
+  }
+
+  private int emitJump(int op, int stackEffect) {
+    emit(op, stackEffect);
+    emitOperand(-1);
+    return chunk.count - 1;
+  }
+
+  // Point a forward jump's placeholder operand at the current end of the code
+  private void patchJump(int offset) {
+    chunk.code[offset] = chunk.count - offset - 1;
+  }
+
+  private void emitLoop(int loopStart) {
+    emit(OpCode.LOOP, 0);
+    emitOperand(chunk.count - loopStart + 1);
+  }
+}
@@ -1,51 +1,141 @@
 package com.bimbok.compiler;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
+// One frame of variables. The Resolver has already turned every name into
+// a (depth, slot) pair, so lookups are just array reads.
 class Environment {
-  private final Map<String, Object> values = new HashMap<>();
+  private Object[] values;
+  // Variables TypeInference proved only ever hold numbers live here instead,
+  // unboxed. Only allocated when the frame has any.
+  private double[] numbers;
   private final Environment enclosing;
 
   Environment() {
-    this.enclosing = null;
+    this(null, 0);
   }
 
-  Environment(Environment enclosing) {
+  Environment(Environment enclosing, int size) {
     this.enclosing = enclosing;
+    this.values = new Object[size];
+    Arrays.fill(values, Values.UNDEFINED);
+    if (Metrics.ENABLED) {
+      Metrics.environment();
+    }
+  }
+
+  Environment(Environment enclosing, int size, boolean hasNumbers) {
+    this(enclosing, size);
+    if (hasNumbers) {
+      this.numbers = new double[size];
+    }
+  }
+
+  private Environment(Environment enclosing, Object[] values, double[] numbers) {
+    this.enclosing = enclosing;
+    this.values = values;
+    this.numbers = numbers;
+    if (Metrics.ENABLED) {
+      Metrics.environment();
+    }
+  }
+
+  // What one task of a "par from" runs in instead of the frame the loop is
+  // in: the same variables and the same enclosing frames, but what the task
+  // writes here (its loop variable) stays its own
+  Environment copy() {
+    return new Environment(enclosing, values.clone(), numbers == null ? null : numbers.clone());
+  }
+
+  // What a "spawn" runs in: this frame and every one around it, the globals
+  // too, copied as they are right now. The task sees what the variables held
+  // when it was spawned, whatever the script does with them afterwards (a
+  // loop's counter, most often), and the same (depth, slot) still finds them.
+  // Only the frames are copied: a pack or a channel in one is still shared.
+  Environment snapshot() {
+    Environment outer = enclosing == null ? null : enclosing.snapshot();
+    return new Environment(outer, values.clone(), numbers == null ? null : numbers.clone());
+  }
+
+  // The frame all the others end in: the globals
+  Environment outermost() {
+    Environment frame = this;
+    while (frame.enclosing != null) {
+      frame = frame.enclosing;
+    }
+    return frame;
+  }
+
+  // Is the variable depth frames up in this frame? (A par loop's task
+  // checks for writes that land in the shared globals.)
+  boolean isIn(int depth, Environment frame) {
+    return ancestor(depth) == frame;
   }
 
   // "say a = 10" -> save it
-  void define(String name, Object value) {
-    values.put(name, value);
+  void define(int slot, Object value) {
+    if (slot >= values.length) {
+      grow(slot + 1);
+    }
+    values[slot] = value;
   }
 
   // "out a" -> look it up
-  Object get(Token name) {
-    if (values.containsKey(name.lexeme)) {
-      return values.get(name.lexeme);
+  Object get(int depth, int slot, Token name) {
+    Environment environment = ancestor(depth);
+    Object value = slot < environment.values.length ? environment.values[slot] : Values.UNDEFINED;
+    if (value == Values.UNDEFINED) {
+      throw new RuntimeException("Undefined variable '" + name.lexeme + "'.");
     }
+    return value;
+  }
 
-    if (enclosing != null) {
-      return enclosing.get(name);
+  // If the resolver couldn't find the name anywhere it gave it a global slot,
+  // so implicit declaration is just a write like any other.
+  void assign(int depth, int slot, Object value) {
+    Environment environment = ancestor(depth);
+    if (slot >= environment.values.length) {
+      environment.grow(slot + 1);
     }
+    environment.values[slot] = value;
+  }
+
+  // The number versions skip the "Undefined variable" check: TypeInference
+  // only picks variables that are always written before they're read.
+  void defineNumber(int slot, double value) {
+    assignNumber(0, slot, value);
+  }
 
-    throw new RuntimeException("Undefined variable '" + name.lexeme + "'.");
+  double getNumber(int depth, int slot) {
+    return ancestor(depth).numbers[slot];
   }
 
-  void assign(Token name, Object value) {
-    // If it exists, update it. If not, create it (implicit declaration).
-    // Standard Java logic usually throws if not defined, but user asked for "oops I forgot say".
-    if (values.containsKey(name.lexeme)) {
-      values.put(name.lexeme, value);
-      return;
+  void assignNumber(int depth, int slot, double value) {
+    Environment environment = ancestor(depth);
+    if (environment.numbers == null || slot >= environment.numbers.length) {
+      // Globals: the frame was made before we knew how many there'd be
+      environment.numbers = Arrays.copyOf(environment.numbers == null ? new double[0] : environment.numbers,
+          Math.max(slot + 1, environment.values.length));
     }
+    environment.numbers[slot] = value;
+  }
 
-    if (enclosing != null) {
-      enclosing.assign(name, value);
-      return;
+  private Environment ancestor(int depth) {
+    if (Metrics.ENABLED) {
+      Metrics.lookup(depth);
+    }
+    Environment environment = this;
+    for (int i = 0; i < depth; i++) {
+      environment = environment.enclosing;
     }
+    return environment;
+  }
 
-    values.put(name.lexeme, value);
+  // Only the global frame grows: new globals keep showing up as the REPL
+  // (or an implicit "x = 5") introduces them.
+  private void grow(int minSize) {
+    int oldSize = values.length;
+    values = Arrays.copyOf(values, Math.max(minSize, oldSize * 2));
+    Arrays.fill(values, oldSize, values.length, Values.UNDEFINED);
   }
 }
@@ -0,0 +1,256 @@
+package com.bimbok.compiler;
+
+import java.util.List;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.SettingControl;
+import jdk.jfr.SettingDefinition;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+// Java Flight Recorder events, so a recording of a running script shows what
+// the script was doing next to the GC, the threads and the rest of the JVM:
+//
+//   java -XX:StartFlightRecording:filename=run.jfr -cp bin com.bimbok.compiler.Main script.siz
+//   jfr print --events 'sizuka.*' run.jfr
+//
+// They're switched on and off like any JDK event (a .jfc file, or
+// "sizuka.SlowStatement#threshold=5ms" on the command line).
+//
+// Without a recording they cost nothing, but not because disabled events are
+// free: loading the first Event class brings up JFR's machinery, a third of a
+// second at startup. So nothing here touches an event until JFR is already up
+// (a -XX:StartFlightRecording, or a "jcmd <pid> JFR.start"). The helpers below
+// do the asking, the rest of the code just calls them.
+//
+// None of them record a Java stack trace: it would show the interpreter, not
+// the script. The line is what points into the script.
+final class Events {
+  private Events() {
+  }
+
+  // Is JFR running in this JVM? (Cheap, and doesn't start it.)
+  static boolean enabled() {
+    return FlightRecorder.isInitialized();
+  }
+
+  // Does any recording want SlowStatement? With JFR up but the event off, the
+  // interpreter would still make one per statement just to throw it away, so
+  // it asks this (now and then, settings can change) and skips them.
+  static boolean slowStatements() {
+    return enabled() && EventType.getEventType(SlowStatement.class).isEnabled();
+  }
+
+  static TokenStream scan(Scanner scanner, String script) {
+    if (!enabled()) {
+      return scanner.scan();
+    }
+    Scan event = new Scan();
+    event.begin();
+    TokenStream tokens = scanner.scan();
+    event.end();
+    if (event.shouldCommit()) {
+      event.script = script;
+      event.tokens = tokens.size();
+      event.commit();
+    }
+    return tokens;
+  }
+
+  // prepare: Main's parse, optimize and resolve, null on a syntax error
+  static List<Stmt> parse(Supplier<List<Stmt>> prepare) {
+    if (!enabled()) {
+      return prepare.get();
+    }
+    Parse event = new Parse();
+    event.begin();
+    List<Stmt> statements = prepare.get();
+    event.end();
+    if (event.shouldCommit()) {
+      event.statements = statements == null ? 0 : statements.size();
+      event.commit();
+    }
+    return statements;
+  }
+
+  static void run(String script, String engine, boolean cached, Runnable body) {
+    if (!enabled()) {
+      body.run();
+      return;
+    }
+    ScriptRun event = new ScriptRun();
+    event.begin();
+    try {
+      body.run();
+    } finally {
+      event.end();
+      if (event.shouldCommit()) {
+        event.script = script;
+        event.engine = engine;
+        event.cached = cached;
+        event.commit();
+      }
+    }
+  }
+
+  static void packAllocated(int size, int elementBytes, boolean offHeap) {
+    if (!enabled()) {
+      return;
+    }
+    PackAllocation event = new PackAllocation();
+    event.size = size;
+    if (event.shouldCommit()) {
+      event.bytes = (long) size * elementBytes;
+      event.offHeap = offHeap;
+      event.commit();
+    }
+  }
+
+  // line: 0 when the engine doesn't know it
+  static void runtimeError(String message, int line) {
+    if (!enabled()) {
+      return;
+    }
+    RuntimeError event = new RuntimeError();
+    if (event.shouldCommit()) {
+      event.message = message;
+      event.line = line;
+      event.commit();
+    }
+  }
+
+  @Name("sizuka.ScriptRun")
+  @Label("Script Run")
+  @Description("A whole script, from its first statement to its last")
+  @Category("Sizuka")
+  @StackTrace(false)
+  static final class ScriptRun extends Event {
+    @Label("Script")
+    String script;
+
+    @Label("Engine")
+    @Description("interpreter, vm or jvm (a compiled jar)")
+    String engine;
+
+    @Label("Cached")
+    @Description("The tree came from the startup cache, the script wasn't scanned or parsed")
+    boolean cached;
+  }
+
+  @Name("sizuka.Scan")
+  @Label("Scan")
+  @Category("Sizuka")
+  @StackTrace(false)
+  static final class Scan extends Event {
+    @Label("Script")
+    String script;
+
+    @Label("Tokens")
+    int tokens;
+  }
+
+  @Name("sizuka.Parse")
+  @Label("Parse")
+  @Description("Parsing, optimizing and resolving the tokens of a script (or a REPL line)")
+  @Category("Sizuka")
+  @StackTrace(false)
+  static final class Parse extends Event {
+    @Label("Statements")
+    int statements;
+  }
+
+  @Name("sizuka.SlowStatement")
+  @Label("Slow Statement")
+  @Description("A statement that ran for longer than the threshold (a loop counts its whole body)")
+  @Category("Sizuka")
+  @StackTrace(false)
+  @Threshold("20 ms")
+  static final class SlowStatement extends Event {
+    @Label("Line")
+    int line;
+
+    @Label("Kind")
+    String kind;
+  }
+
+  @Name("sizuka.PackAllocation")
+  @Label("Pack Allocation")
+  @Description("A pack() of at least minSize elements")
+  @Category("Sizuka")
+  @StackTrace(false)
+  static final class PackAllocation extends Event {
+    @Label("Size")
+    int size;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Off-Heap")
+    boolean offHeap;
+
+    @Label("Minimum Size")
+    @Name("minSize")
+    @SettingDefinition
+    boolean minSize(MinSize setting) {
+      return size >= setting.minSize;
+    }
+  }
+
+  @Name("sizuka.RuntimeError")
+  @Label("Runtime Error")
+  @Category("Sizuka")
+  @StackTrace(false)
+  static final class RuntimeError extends Event {
+    @Label("Message")
+    String message;
+
+    @Label("Line")
+    @Description("0 when the engine doesn't know it")
+    int line;
+  }
+
+  // The PackAllocation threshold, in elements. When more than one recording
+  // asks for it, the smallest wins so every recording gets what it wanted.
+  public static final class MinSize extends SettingControl {
+    private static final long DEFAULT = 100_000;
+
+    private long minSize = DEFAULT;
+
+    @Override
+    public String combine(Set<String> values) {
+      long smallest = Long.MAX_VALUE;
+      for (String value : values) {
+        smallest = Math.min(smallest, parse(value));
+      }
+      return values.isEmpty() ? String.valueOf(DEFAULT) : String.valueOf(smallest);
+    }
+
+    @Override
+    public void setValue(String value) {
+      minSize = parse(value);
+    }
+
+    @Override
+    public String getValue() {
+      return String.valueOf(minSize);
+    }
+
+    private static long parse(String value) {
+      try {
+        return Math.max(0, Long.parseLong(value.trim()));
+      } catch (NumberFormatException e) {
+        return DEFAULT;
+      }
+    }
+  }
+}
@@ -3,6 +3,10 @@ package com.bimbok.compiler;
 import java.util.List;
 
 abstract class Expr {
+  // Set by TypeInference: this always gives a number. On a Variable or
+  // Assign it also means the variable itself is kept as a plain double.
+  boolean numeric = false;
+
   // This abstract method lets the Visitor "enter" the node
   abstract <R> R accept(Visitor<R> visitor);
 
@@ -27,6 +31,25 @@ abstract class Expr {
     R visitIndexGetExpr(IndexGet expr);
 
     R visitIndexSetExpr(IndexSet expr);
+
+    R visitCallExpr(Call expr);
+  }
+
+  static class Call extends Expr {
+    final Expr callee;
+    final Token paren; // The closing ")", for errors
+    final List<Expr> arguments;
+
+    Call(Expr callee, Token paren, List<Expr> arguments) {
+      this.callee = callee;
+      this.paren = paren;
+      this.arguments = arguments;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitCallExpr(this);
+    }
   }
 
   static class PackLiteral extends Expr {
@@ -46,6 +69,8 @@ abstract class Expr {
     final Expr object;
     final Token bracket;
     final Expr index;
+    // Type feedback for the Interpreter, see TypeFeedback
+    int state = TypeFeedback.UNINITIALIZED;
 
     IndexGet(Expr object, Token bracket, Expr index) {
       this.object = object;
@@ -81,6 +106,9 @@ abstract class Expr {
   static class Assign extends Expr {
     final Token name;
     final Expr value;
+    // Filled in by the Resolver: how many scopes up, and which slot in that frame
+    int depth = -1;
+    int slot = -1;
 
     Assign(Token name, Expr value) {
       this.name = name;
@@ -97,6 +125,8 @@ abstract class Expr {
     final Expr left;
     final Token operator;
     final Expr right;
+    // Type feedback for the Interpreter, see TypeFeedback
+    int state = TypeFeedback.UNINITIALIZED;
 
     Binary(Expr left, Token operator, Expr right) {
       this.left = left;
@@ -156,6 +186,9 @@ abstract class Expr {
   // 5. Variable Access: "a"
   static class Variable extends Expr {
     final Token name;
+    // Filled in by the Resolver: how many scopes up, and which slot in that frame
+    int depth = -1;
+    int slot = -1;
 
     Variable(Token name) {
       this.name = name;
@@ -0,0 +1,121 @@
+package com.bimbok.compiler;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+// Everything that reads stdin ("in" and the REPL) shares this one reader.
+// A new java.util.Scanner per "in" used to read ahead into its own buffer and
+// then get thrown away, so piped input lost lines.
+//
+// When stdin isn't someone typing (a pipe, a file, or --batch), "in" doesn't
+// print its prompt: nobody is there to read it, and a prompt per record in a
+// feed of 100,000 records is a lot of noise.
+final class Input {
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private static final BufferedReader reader =
+      new BufferedReader(new InputStreamReader(System.in), BUFFER_SIZE);
+  private static boolean batch = !Output.isTerminal(Output.STDIN);
+
+  private Input() {
+  }
+
+  // The next line without its line break, or null at the end of the input
+  static synchronized String readLine() {
+    try {
+      return reader.readLine();
+    } catch (IOException error) {
+      throw new RuntimeException("Could not read input: " + error.getMessage());
+    }
+  }
+
+  static boolean isBatch() {
+    return batch;
+  }
+
+  // --batch: no prompts even at a terminal
+  static void setBatch() {
+    batch = true;
+  }
+
+  // What "in" gives back: a number if the line is one, the text otherwise
+  static Object parse(String line) {
+    if (!isNumber(line)) {
+      return line;
+    }
+    return Double.parseDouble(line);
+  }
+
+  // Would Double.parseDouble take it? Answers without parsing (or throwing),
+  // so a feed of names doesn't cost an exception a line.
+  static boolean isNumber(String text) {
+    // parseDouble ignores spaces and control characters around the number
+    int i = 0;
+    int end = text.length();
+    while (i < end && text.charAt(i) <= ' ') {
+      i++;
+    }
+    while (end > i && text.charAt(end - 1) <= ' ') {
+      end--;
+    }
+    if (i < end && (text.charAt(i) == '+' || text.charAt(i) == '-')) {
+      i++;
+    }
+    if (i == end) {
+      return false;
+    }
+
+    char first = text.charAt(i);
+    if (first == 'N' || first == 'I') {
+      String word = text.substring(i, end);
+      return word.equals("NaN") || word.equals("Infinity");
+    }
+    if (first == '0' && i + 1 < end && (text.charAt(i + 1) == 'x' || text.charAt(i + 1) == 'X')) {
+      // Hex floats ("0x1p3"): rare enough to let parseDouble decide
+      try {
+        Double.parseDouble(text);
+        return true;
+      } catch (NumberFormatException e) {
+        return false;
+      }
+    }
+
+    // digits [. digits] [e [sign] digits] [f|d], with a digit somewhere before the e
+    boolean digits = false;
+    while (i < end && isDigit(text.charAt(i))) {
+      i++;
+      digits = true;
+    }
+    if (i < end && text.charAt(i) == '.') {
+      i++;
+      while (i < end && isDigit(text.charAt(i))) {
+        i++;
+        digits = true;
+      }
+    }
+    if (!digits) {
+      return false;
+    }
+    if (i < end && (text.charAt(i) == 'e' || text.charAt(i) == 'E')) {
+      i++;
+      if (i < end && (text.charAt(i) == '+' || text.charAt(i) == '-')) {
+        i++;
+      }
+      if (i == end || !isDigit(text.charAt(i))) {
+        return false;
+      }
+      while (i < end && isDigit(text.charAt(i))) {
+        i++;
+      }
+    }
+    if (i < end && "fFdD".indexOf(text.charAt(i)) >= 0) {
+      i++;
+    }
+    return i == end;
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+}
@@ -1,12 +1,77 @@
 package com.bimbok.compiler;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 // Notice: It now implements BOTH Visitor interfaces
 class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
-  private Environment environment = new Environment();
+  private Environment environment;
+  // A function's frame sits right on the globals, whoever calls it
+  private final Environment globals;
+  // Set by "return": every statement running stops until call() picks up the value
+  private boolean returning = false;
+  private Object returnValue = null;
+  // "return f(x)" leaves the call to call(), with its frame ready, so the
+  // caller's Java frames are gone before the callee's start
+  private UserFunction tailFunction = null;
+  private Environment tailFrame = null;
+  // The blocks with an off-heap scope the running function body is inside
+  private int scopes = 0;
+  // Whether SlowStatement is switched on, asked again every RECHECK statements:
+  // a recording can start (jcmd JFR.start) or change its settings mid-run
+  private boolean slowStatements = false;
+  private int untilRecheck = 0;
+  private static final int RECHECK = 100_000;
+  // Line of the statement a runtime error came out of
+  private int errorLine = 0;
+  // The caches of the memo funs declared so far, for the --profile report
+  private final List<Memo> memos;
+  // Set in the Interpreters running the tasks of a "par from": they share
+  // the globals with each other, and their "out" goes to output until the
+  // loop is done, so it comes out in order (null otherwise). parTask is also
+  // set while a par loop runs as a plain one, see visitFromStmt.
+  private boolean parTask;
+  private final StringBuilder output;
+  // The spawned tasks still running, shared by every Interpreter of the run
+  private final Tasks spawned;
+
+  Interpreter() {
+    environment = new Environment();
+    globals = environment;
+    memos = new ArrayList<>();
+    parTask = false;
+    output = null;
+    spawned = new Tasks();
+    // The Resolver gave the built-ins the first global slots
+    for (int slot = 0; slot < Natives.NAMES.length; slot++) {
+      environment.define(slot, Natives.value(slot));
+    }
+  }
+
+  // A worker for one task of a par loop or a spawn, running in its own copy
+  // of the frame it came from. A par task shares the globals, a spawned one
+  // has its own copy of those too.
+  private Interpreter(Interpreter parent, Environment frame, Environment globals, boolean buffered) {
+    environment = frame;
+    this.globals = globals;
+    memos = parent.memos;
+    spawned = parent.spawned;
+    slowStatements = parent.slowStatements;
+    parTask = buffered;
+    output = buffered ? new StringBuilder() : null;
+  }
+
+  // Do "par from" loops really run in parallel? Overridden by --profile,
+  // whose Profiler times one statement at a time.
+  boolean parallel() {
+    return true;
+  }
 
   // The new entry point for a list of statements
   void interpret(List<Stmt> statements) {
@@ -14,13 +79,92 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
       for (Stmt statement : statements) {
         execute(statement);
       }
+      // The script (or REPL line) is done when the tasks it spawned are. After
+      // an error it doesn't wait: they go when the program does.
+      spawned.awaitAll();
     } catch (RuntimeException error) {
-      System.out.println(Colors.RED + error.getMessage() + Colors.RESET);
+      // The blocks that were running are gone, and so is their memory
+      OffHeap.unwind();
+      reportError(error.getMessage(), errorLine);
+    } catch (StackOverflowError error) {
+      // Recursion that isn't a tail call: every executeBlock on the way down
+      // has put its environment back by now
+      OffHeap.unwind();
+      reportError(Values.STACK_OVERFLOW, 0);
+    }
+  }
+
+  private void reportError(String message, int line) {
+    Events.runtimeError(message, line);
+    errorLine = 0;
+    System.out.println(Colors.RED + message + Colors.RESET);
+  }
+
+  List<Memo> memos() {
+    return memos;
+  }
+
+  // A "fun" as a value
+  private static final class UserFunction {
+    final Stmt.Function declaration;
+    // "memo fun": its results so far, null for a plain fun. Declaring it
+    // again (in the REPL) starts a new cache.
+    final Memo memo;
+
+    UserFunction(Stmt.Function declaration) {
+      this.declaration = declaration;
+      this.memo = declaration.memoSize > 0 ? new Memo(declaration.name.lexeme, declaration.memoSize) : null;
+    }
+
+    @Override
+    public String toString() {
+      return "<fn " + declaration.name.lexeme + ">";
     }
   }
 
-  private void execute(Stmt stmt) {
-    stmt.accept(this);
+  // Not private only so --profile can time it, see Profiler
+  void execute(Stmt stmt) {
+    if (Metrics.ENABLED) {
+      Metrics.statement();
+    }
+    if (--untilRecheck < 0) {
+      untilRecheck = RECHECK;
+      slowStatements = Events.slowStatements();
+    }
+    if (slowStatements) {
+      executeRecorded(stmt);
+      return;
+    }
+    try {
+      stmt.accept(this);
+    } catch (RuntimeException error) {
+      // The innermost statement gets here first: that's the line it failed on
+      if (errorLine == 0) {
+        errorLine = stmt.line;
+      }
+      throw error;
+    }
+  }
+
+  // execute() reporting statements slower than the threshold to JFR
+  private void executeRecorded(Stmt stmt) {
+    Events.SlowStatement event = new Events.SlowStatement();
+    event.begin();
+    try {
+      stmt.accept(this);
+    } catch (RuntimeException error) {
+      if (errorLine == 0) {
+        errorLine = stmt.line;
+      }
+      throw error;
+    }
+    event.end();
+    // A block is only its statements, they're reported on their own
+    if (event.shouldCommit() && !(stmt instanceof Stmt.Block)) {
+      event.line = stmt.line;
+      event.kind = stmt.getClass().getSimpleName();
+      event.commit();
+    }
   }
 
   // --- Statement Visitors (COMMANDS) ---
@@ -28,30 +172,44 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   @Override
   public Void visitPrintStmt(Stmt.Print stmt) {
     Object value = evaluate(stmt.expression);
-    System.out.println(Colors.CYAN + stringify(value) + Colors.RESET);
+    if (output != null) {
+      output.append(Values.line(value)).append('\n');
+    } else {
+      Values.print(value);
+    }
     return null;
   }
 
   @Override
   public Void visitVarStmt(Stmt.Var stmt) {
+    if (stmt.numeric) {
+      environment.defineNumber(stmt.slot, evaluateNumber(stmt.initializer));
+      return null;
+    }
+
     Object value = null;
     if (stmt.initializer != null) {
       value = evaluate(stmt.initializer);
     }
 
-    environment.define(stmt.name.lexeme, value);
+    environment.define(stmt.slot, value);
     return null;
   }
 
   @Override
   public Void visitExpressionStmt(Stmt.Expression stmt) {
+    if (stmt.expression.numeric) {
+      // "i = i + 1": no need to box the result just to throw it away
+      evaluateNumber(stmt.expression);
+      return null;
+    }
     evaluate(stmt.expression);
     return null;
   }
 
   @Override
   public Void visitIfStmt(Stmt.If stmt) {
-    if (isTruthy(evaluate(stmt.condition))) {
+    if (Values.isTruthy(evaluate(stmt.condition))) {
       execute(stmt.thenBranch);
     } else if (stmt.elseBranch != null) {
       execute(stmt.elseBranch);
@@ -61,31 +219,18 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Void visitInputStmt(Stmt.Input stmt) {
-    // 1. Print the prompt if the user provided one
-    if (stmt.prompt != null) {
-      Object promptValue = evaluate(stmt.prompt);
-      System.out.print(Colors.CYAN + stringify(promptValue) + " " + Colors.RESET);
-    } else {
-      // If no prompt, just print a subtle ? so the user knows to type
-      System.out.print(Colors.YELLOW + "? " + Colors.RESET);
+    // A par task refuses input, since its prompt would jump ahead of the
+    // loop's held-back output and stall the loop, while a spawned task may
+    // wait for a line like it waits on a channel.
+    if (parTask) {
+      throw new RuntimeException(Values.PAR_INPUT);
     }
+    // Print the prompt (if any) and read a line, as a number when it looks like one
+    String prompt = stmt.prompt != null ? Values.stringify(evaluate(stmt.prompt)) : null;
+    Object value = Values.readInput(prompt);
 
-    // 2. Read the user's input
-    @SuppressWarnings("resource")
-    java.util.Scanner scanner = new java.util.Scanner(System.in);
-    String input = scanner.nextLine();
-
-    // 3. Try to save it as a number so math works smoothly.
-    // If it's a word (like a name), it will stay a String.
-    Object value;
-    try {
-      value = Double.parseDouble(input);
-    } catch (NumberFormatException e) {
-      value = input;
-    }
-
-    // 4. Save it into the Environment (this implicitly creates it if needed!)
-    environment.assign(stmt.name, value);
+    // Save it into the Environment (this implicitly creates it if needed!)
+    environment.assign(stmt.depth, stmt.slot, value);
 
     return null;
   }
@@ -101,27 +246,327 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     double start = (double) startVal;
     double end = (double) endVal;
+    if (!stmt.parallel || parTask) {
+      return from(stmt, start, end);
+    }
+    // Cut into tasks or not (--profile, a single iteration), a function the
+    // body calls gets the same checks
+    parTask = true;
+    try {
+      return from(stmt, start, end);
+    } finally {
+      parTask = false;
+    }
+  }
 
-    // Use a standard loop. i is re-evaluated and assigned in the environment on each iteration
+  private Void from(Stmt.From stmt, double start, double end) {
+    // The body's own frame is made once and reused every time round. Nothing
+    // can tell: its variables can only be read after this iteration's "say".
+    Stmt.Block block = stmt.body instanceof Stmt.Block ? (Stmt.Block) stmt.body : null;
+    Environment bodyEnvironment = block != null
+        ? new Environment(environment, block.slotCount, block.numbers != null)
+        : null;
+
+    if (isCounted(start, end)) {
+      // Whole-number bounds (the usual case): a plain counted loop on a long
+      long last = (long) Math.floor(end);
+      if (stmt.parallel && last > (long) start && parallel()) {
+        runParallel(stmt, (long) start, last);
+        return null;
+      }
+      for (long i = (long) start; i <= last; i++) {
+        if (stmt.numeric) {
+          environment.defineNumber(stmt.slot, i);
+        } else {
+          environment.define(stmt.slot, box(i));
+        }
+        runBody(stmt.body, block, bodyEnvironment);
+        if (returning) {
+          return null;
+        }
+      }
+      return null;
+    }
+
+    // Anything else (like "from 0.5 to 3 as x") keeps stepping a double
     for (double i = start; i <= end; i++) {
-      environment.define(stmt.loopVar.lexeme, i);
-      execute(stmt.body);
+      if (stmt.numeric) {
+        environment.defineNumber(stmt.slot, i);
+      } else {
+        environment.define(stmt.slot, box(i));
+      }
+      runBody(stmt.body, block, bodyEnvironment);
+      if (returning) {
+        return null;
+      }
     }
 
     return null;
   }
 
+  // "par from": the range cut into contiguous chunks, a task each, on the
+  // common ForkJoinPool (-Djava.util.concurrent.ForkJoinPool.common.parallelism
+  // sets how many threads). Each task is a worker Interpreter in its own copy
+  // of the loop's frame, so the loop variable and the body's block are its
+  // own. The Parser made sure the body itself changes nothing else but pack
+  // elements; a function it calls that sets a global stops with an error.
+  //
+  // Afterwards the chunks' output is printed in order, so it reads the same as
+  // the plain loop's. An error stops the chunks after the one it came from;
+  // what the iterations before it printed still comes out, then the error.
+  private void runParallel(Stmt.From stmt, long first, long last) {
+    long count = last - first + 1;
+    int chunks = (int) Math.min(count, 4L * ForkJoinPool.getCommonPoolParallelism());
+    long size = count / chunks;
+    long extra = count % chunks;
+    AtomicInteger failed = new AtomicInteger(Integer.MAX_VALUE);
+    Pack.shared = true;
+    List<ParTask> tasks = new ArrayList<>(chunks);
+    long from = first;
+    for (int chunk = 0; chunk < chunks; chunk++) {
+      long to = from + size - 1 + (chunk < extra ? 1 : 0);
+      tasks.add(new ParTask(new Interpreter(this, environment.copy(), globals, true), stmt, chunk, from, to, failed));
+      from = to + 1;
+    }
+    ForkJoinTask.invokeAll(tasks);
+
+    for (ParTask task : tasks) {
+      if (output != null) {
+        output.append(task.worker.output);
+      } else if (task.worker.output.length() > 0) {
+        System.out.print(task.worker.output);
+      }
+      if (task.error != null) {
+        errorLine = task.worker.errorLine;
+        throw task.error;
+      }
+    }
+    // Where the plain loop leaves it
+    if (stmt.numeric) {
+      environment.defineNumber(stmt.slot, last);
+    } else {
+      environment.define(stmt.slot, box(last));
+    }
+  }
+
+  // Never serialized: RecursiveAction is Serializable, an Interpreter isn't
+  @SuppressWarnings("serial")
+  private static final class ParTask extends RecursiveAction {
+    final Interpreter worker;
+    private final Stmt.From stmt;
+    private final int chunk;
+    private final long from;
+    private final long to;
+    // The first chunk that failed
+    private final AtomicInteger failed;
+    RuntimeException error = null;
+
+    ParTask(Interpreter worker, Stmt.From stmt, int chunk, long from, long to, AtomicInteger failed) {
+      this.worker = worker;
+      this.stmt = stmt;
+      this.chunk = chunk;
+      this.from = from;
+      this.to = to;
+      this.failed = failed;
+    }
+
+    @Override
+    protected void compute() {
+      // Whatever off-heap packs the chunk makes outside a block are gone with it
+      OffHeap.enterScope();
+      try {
+        worker.runChunk(stmt, from, to, chunk, failed);
+      } catch (RuntimeException e) {
+        fail(e);
+      } catch (StackOverflowError e) {
+        fail(new RuntimeException(Values.STACK_OVERFLOW));
+      } finally {
+        OffHeap.exitScope();
+      }
+    }
+
+    private void fail(RuntimeException e) {
+      error = e;
+      failed.accumulateAndGet(chunk, Math::min);
+    }
+  }
+
+  private void runChunk(Stmt.From stmt, long from, long to, int chunk, AtomicInteger failed) {
+    Stmt.Block block = stmt.body instanceof Stmt.Block ? (Stmt.Block) stmt.body : null;
+    Environment bodyEnvironment = block != null
+        ? new Environment(environment, block.slotCount, block.numbers != null)
+        : null;
+    for (long i = from; i <= to; i++) {
+      // An earlier chunk failed: the plain loop would never have got here
+      if (failed.get() < chunk) {
+        return;
+      }
+      if (stmt.numeric) {
+        environment.defineNumber(stmt.slot, i);
+      } else {
+        environment.define(stmt.slot, box(i));
+      }
+      runBody(stmt.body, block, bodyEnvironment);
+    }
+  }
+
+  // Past 2^53 a double can't count by one any more, so leave those to the double loop.
+  // -0 too: the first i has to print as "-0".
+  private static boolean isCounted(double start, double end) {
+    double limit = 9007199254740992.0;
+    return start == Math.rint(start) && Math.abs(start) <= limit && end >= -limit && end <= limit
+        && Double.doubleToRawLongBits(start) != Double.doubleToRawLongBits(-0.0);
+  }
+
+  private void runBody(Stmt body, Stmt.Block block, Environment bodyEnvironment) {
+    if (block == null) {
+      execute(body);
+    } else if (!block.hasCalls) {
+      executeBlock(block.statements, bodyEnvironment);
+    } else {
+      // Off-heap packs still only live for one iteration
+      OffHeap.enterScope();
+      scopes++;
+      try {
+        executeBlock(block.statements, bodyEnvironment);
+      } finally {
+        scopes--;
+        OffHeap.exitScope();
+      }
+    }
+  }
+
   @Override
   public Void visitWhileStmt(Stmt.While stmt) {
-    while (isTruthy(evaluate(stmt.condition))) {
+    while (Values.isTruthy(evaluate(stmt.condition))) {
       execute(stmt.body);
+      if (returning) {
+        break;
+      }
     }
     return null;
   }
 
+  // "spawn": the body on a virtual thread of its own, in a worker that starts
+  // from a snapshot of every frame around it (see Environment.snapshot), so
+  // nothing it does to a variable is seen by anyone else; packs and channels
+  // are how tasks share. A block body gets a frame of its own on top as usual.
+  // Blocking in a virtual thread (on a channel, on input) only parks it, so
+  // thousands of tasks cost a few kilobytes each, not a platform thread each.
+  //
+  // Its "out" goes straight out: tasks run in no particular order anyway. An
+  // error stops only the task it happened in.
+  @Override
+  public Void visitSpawnStmt(Stmt.Spawn stmt) {
+    Environment frame = environment.snapshot();
+    Interpreter task = new Interpreter(this, frame, frame.outermost(), false);
+    Pack.shared = true;
+    spawned.started();
+    try {
+      Thread.ofVirtual().name("sizuka-spawn").start(() -> task.runTask(stmt));
+    } catch (RuntimeException | Error e) {
+      spawned.finished();
+      throw e;
+    }
+    return null;
+  }
+
+  private void runTask(Stmt.Spawn stmt) {
+    try {
+      execute(stmt.body);
+    } catch (RuntimeException error) {
+      reportError(error.getMessage(), errorLine);
+    } catch (StackOverflowError error) {
+      reportError(Values.STACK_OVERFLOW, 0);
+    } finally {
+      // Whatever off-heap packs it made go with it, but not the ones it sent
+      // (see Channel)
+      OffHeap.closeAll();
+      spawned.finished();
+    }
+  }
+
+  // How many spawned tasks are still running, so interpret() can wait for
+  // them. (Only the count: keeping the finished Threads around for join()
+  // would cost memory for every task a long script ever spawned.) The VM
+  // counts its tasks with one too.
+  static final class Tasks {
+    private int running = 0;
+
+    synchronized void started() {
+      running++;
+    }
+
+    synchronized void finished() {
+      running--;
+      if (running == 0) {
+        notifyAll();
+      }
+    }
+
+    synchronized void awaitAll() {
+      try {
+        while (running > 0) {
+          wait();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    // Always at the top level, so this is the global frame
+    UserFunction function = new UserFunction(stmt);
+    if (function.memo != null) {
+      memos.add(function.memo);
+    }
+    environment.define(stmt.slot, function);
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value instanceof Expr.Call) {
+      Expr.Call call = (Expr.Call) stmt.value;
+      Object callee = evaluate(call.callee);
+      if (callee instanceof UserFunction) {
+        // A tail call: just the new frame, call() makes the call
+        tailFrame = frame((UserFunction) callee, call.arguments);
+        tailFunction = (UserFunction) callee;
+        // The blocks the return is in end before the callee runs, and it may
+        // have been handed one of their off-heap packs
+        if (scopes > 0) {
+          OffHeap.handOver(scopes);
+        }
+      } else {
+        returnValue = callNative(callee, call.arguments);
+      }
+    } else {
+      returnValue = stmt.value == null ? null : evaluate(stmt.value);
+    }
+    returning = true;
+    return null;
+  }
+
   @Override
   public Void visitBlockStmt(Stmt.Block stmt) {
-    executeBlock(stmt.statements, new Environment(environment));
+    Environment blockEnvironment = new Environment(environment, stmt.slotCount, stmt.numbers != null);
+    if (!stmt.hasCalls) {
+      executeBlock(stmt.statements, blockEnvironment);
+      return null;
+    }
+
+    // Anything off-heap made in here is freed on the way out
+    OffHeap.enterScope();
+    scopes++;
+    try {
+      executeBlock(stmt.statements, blockEnvironment);
+    } finally {
+      scopes--;
+      OffHeap.exitScope();
+    }
     return null;
   }
 
@@ -141,34 +586,106 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   public Object visitUnaryExpr(Expr.Unary expr) {
     Object right = evaluate(expr.right);
     if (expr.operator.type == TokenType.MINUS) {
-      return -(double) right;
+      return box(-(double) right);
     } else if (expr.operator.type == TokenType.BANG) {
-      return !isTruthy(right);
+      return !Values.isTruthy(right);
     }
     return null;
   }
 
   @Override
   public Object visitBinaryExpr(Expr.Binary expr) {
+    if (expr.left.numeric && expr.right.numeric) {
+      return numberBinary(expr.operator.type, evaluateNumber(expr.left), evaluateNumber(expr.right));
+    }
+
     Object left = evaluate(expr.left);
     Object right = evaluate(expr.right);
 
-    switch (expr.operator.type) {
+    // Fast path for the types this site has seen before
+    switch (expr.state) {
+      case TypeFeedback.NUMBERS:
+        if (left instanceof Double && right instanceof Double) {
+          return numberBinary(expr.operator.type, (double) left, (double) right);
+        }
+        break;
+      case TypeFeedback.STRINGS:
+        if (Values.isString(left) || Values.isString(right)) {
+          return Rope.concat(left, right);
+        }
+        break;
+      case TypeFeedback.GENERIC:
+        return genericBinary(expr.operator.type, left, right);
+    }
+
+    // First run, or the types just changed: update the site, then do it the slow way
+    expr.state = specialize(expr.state, binaryFeedback(expr.operator.type, left, right));
+    return genericBinary(expr.operator.type, left, right);
+  }
+
+  private int binaryFeedback(TokenType operator, Object left, Object right) {
+    if (left instanceof Double && right instanceof Double) {
+      return TypeFeedback.NUMBERS;
+    }
+    if (operator == TokenType.PLUS && (Values.isString(left) || Values.isString(right))) {
+      return TypeFeedback.STRINGS;
+    }
+    return TypeFeedback.GENERIC;
+  }
+
+  // A site that has already settled and then sees something else stays GENERIC,
+  // so a polymorphic site doesn't flip back and forth.
+  private static int specialize(int state, int observed) {
+    if (state == TypeFeedback.UNINITIALIZED || state == observed) {
+      return observed;
+    }
+    return TypeFeedback.GENERIC;
+  }
+
+  // Both sides are already known to be numbers, so no casts or checks
+  private Object numberBinary(TokenType operator, double left, double right) {
+    switch (operator) {
+      case MINUS:
+        return box(left - right);
+      case STAR:
+        return box(left * right);
+      case SLASH:
+        return box(left / right);
+      case MODULO:
+        return box(Values.remainder(left, right));
+      case PLUS:
+        return box(left + right);
+      case GREATER:
+        return left > right;
+      case GREATER_EQUAL:
+        return left >= right;
+      case LESS:
+        return left < right;
+      case LESS_EQUAL:
+        return left <= right;
+      // Same as Double.equals, which is what Values.isEqual ends up calling
+      case BANG_EQUAL:
+        return Double.doubleToLongBits(left) != Double.doubleToLongBits(right);
+      case EQUAL_EQUAL:
+        return Double.doubleToLongBits(left) == Double.doubleToLongBits(right);
+      default:
+        return null;
+    }
+  }
+
+  private Object genericBinary(TokenType operator, Object left, Object right) {
+    switch (operator) {
       // Math
       case MINUS:
-        return (double) left - (double) right;
+        return box((double) left - (double) right);
       case STAR:
-        return (double) left * (double) right;
+        return box((double) left * (double) right);
       case SLASH:
-        return (double) left / (double) right;
+        return box((double) left / (double) right);
       case MODULO:
-        return (double) left % (double) right;
+        return box(Values.remainder((double) left, (double) right));
       case PLUS:
-        // Special: If either side is a String, concatenate!
-        if (left instanceof String || right instanceof String) {
-          return stringify(left) + stringify(right);
-        }
-        return (double) left + (double) right;
+        return Values.add(left, right);
 
       // Comparisons
       case GREATER:
@@ -182,30 +699,13 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
       // Equality
       case BANG_EQUAL:
-        return !isEqual(left, right);
+        return !Values.isEqual(left, right);
       case EQUAL_EQUAL:
-        return isEqual(left, right);
+        return Values.isEqual(left, right);
     }
     return null;
   }
 
-  // Helper for equality
-  private boolean isEqual(Object a, Object b) {
-    if (a == null && b == null)
-      return true;
-    if (a == null)
-      return false;
-    return a.equals(b);
-  }
-
-  private boolean isTruthy(Object object) {
-    if (object == null)
-      return false;
-    if (object instanceof Boolean)
-      return (boolean) object;
-    return true;
-  }
-
   // --- Variable Access (NEW!) ---
 
   // We need to add a Variable expression to Expr.java next!
@@ -218,110 +718,262 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     return expr.accept(this);
   }
 
+  // A number leaving the unboxed paths as a Double (counted for Metrics)
+  private static Object box(double value) {
+    if (Metrics.ENABLED) {
+      Metrics.boxed();
+    }
+    return value;
+  }
+
+  // Only for expressions TypeInference marked numeric: works out the value as
+  // a plain double, without a Double in between where it can.
+  private double evaluateNumber(Expr expr) {
+    if (expr instanceof Expr.Variable && expr.numeric) {
+      Expr.Variable variable = (Expr.Variable) expr;
+      return environment.getNumber(variable.depth, variable.slot);
+    }
+    if (expr instanceof Expr.Literal) {
+      return (double) ((Expr.Literal) expr).value;
+    }
+    if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary) expr;
+      if (binary.left.numeric && binary.right.numeric) {
+        double left = evaluateNumber(binary.left);
+        double right = evaluateNumber(binary.right);
+        switch (binary.operator.type) {
+          case PLUS:
+            return left + right;
+          case MINUS:
+            return left - right;
+          case STAR:
+            return left * right;
+          case SLASH:
+            return left / right;
+          case MODULO:
+            return Values.remainder(left, right);
+          default:
+            break;
+        }
+      }
+    }
+    if (expr instanceof Expr.Assign && expr.numeric) {
+      Expr.Assign assign = (Expr.Assign) expr;
+      double value = evaluateNumber(assign.value);
+      if (parTask) {
+        checkShared(assign);
+      }
+      environment.assignNumber(assign.depth, assign.slot, value);
+      return value;
+    }
+    if (expr instanceof Expr.Grouping) {
+      return evaluateNumber(((Expr.Grouping) expr).expression);
+    }
+    if (expr instanceof Expr.Unary && expr.numeric && ((Expr.Unary) expr).right.numeric) {
+      return -evaluateNumber(((Expr.Unary) expr).right);
+    }
+
+    // Numeric, but the operands weren't (like "s - 1" where s could be anything)
+    return (double) evaluate(expr);
+  }
+
   private void executeBlock(List<Stmt> statements, Environment blockEnvironment) {
     Environment previous = this.environment;
     try {
       this.environment = blockEnvironment;
       for (Stmt statement : statements) {
         execute(statement);
+        if (returning) {
+          break;
+        }
       }
     } finally {
       this.environment = previous;
     }
   }
 
-  private String stringify(Object object) {
-    if (object == null)
-      return "nil";
-    if (object instanceof Double) {
-      String text = object.toString();
-      if (text.endsWith(".0"))
-        text = text.substring(0, text.length() - 2);
-      return text;
-    }
-    return object.toString();
-  }
-
   @Override
   public Object visitVariableExpr(Expr.Variable expr) {
-    return environment.get(expr.name);
+    if (expr.numeric) {
+      return box(environment.getNumber(expr.depth, expr.slot));
+    }
+    return environment.get(expr.depth, expr.slot, expr.name);
   }
 
   @Override
   public Object visitAssignExpr(Expr.Assign expr) {
+    if (expr.numeric) {
+      return box(evaluateNumber(expr));
+    }
     Object value = evaluate(expr.value);
-    environment.assign(expr.name, value);
+    if (parTask) {
+      checkShared(expr);
+    }
+    environment.assign(expr.depth, expr.slot, value);
     return value;
   }
 
+  // An assignment in a par loop's task. The Parser keeps the loop itself from
+  // writing anything outside it, but a function it calls can still set a
+  // global, and "total = total + x" from every task at once loses updates
+  // whether or not the write itself is locked. (Out of line, so the check
+  // doesn't weigh on the hot paths of the plain interpreter.)
+  private void checkShared(Expr.Assign expr) {
+    if (environment.isIn(expr.depth, globals)) {
+      throw Values.sharedInPar(expr.name.lexeme);
+    }
+  }
+
   @Override
   public Object visitPackLiteralExpr(Expr.PackLiteral expr) {
-    java.util.List<Object> elements = new java.util.ArrayList<>();
-    for (Expr element : expr.elements) {
-      elements.add(evaluate(element));
+    Object[] elements = new Object[expr.elements.size()];
+    for (int i = 0; i < elements.length; i++) {
+      elements[i] = evaluate(expr.elements.get(i));
+    }
+    if (Metrics.ENABLED) {
+      Metrics.packElements(elements.length);
     }
-    return elements;
+    return Pack.of(elements);
   }
 
-  @SuppressWarnings("unchecked")
   @Override
   public Object visitIndexGetExpr(Expr.IndexGet expr) {
     Object object = evaluate(expr.object);
-    Object indexObj = evaluate(expr.index);
-
-    if (!(object instanceof java.util.List)) {
-      throw new RuntimeException("Only packs can be indexed.");
-    }
-
-    if (!(indexObj instanceof Double)) {
-      throw new RuntimeException("Index must be a number.");
+    if (expr.index.numeric) {
+      return Values.indexGet(object, evaluateNumber(expr.index));
     }
+    Object index = evaluate(expr.index);
 
-    int index = ((Double) indexObj).intValue();
-    java.util.List<Object> list = (java.util.List<Object>) object;
-
-    if (index < 0 || index >= list.size()) {
-      throw new RuntimeException("Pack index out of bounds.");
+    if (expr.state == TypeFeedback.PACK && object instanceof List && index instanceof Double) {
+      List<?> list = (List<?>) object;
+      int i = (int) (double) index;
+      if (i >= 0 && i < list.size()) {
+        return list.get(i);
+      }
+      // Out of bounds: let Values report it
+    } else {
+      boolean pack = object instanceof List && index instanceof Double;
+      expr.state = specialize(expr.state, pack ? TypeFeedback.PACK : TypeFeedback.GENERIC);
     }
-
-    return list.get(index);
+    return Values.indexGet(object, index);
   }
 
-  @SuppressWarnings("unchecked")
   @Override
   public Object visitIndexSetExpr(Expr.IndexSet expr) {
     Object object = evaluate(expr.object);
-    Object indexObj = evaluate(expr.index);
+    if (expr.index.numeric) {
+      double index = evaluateNumber(expr.index);
+      return Values.indexSet(object, index, evaluate(expr.value));
+    }
+    Object index = evaluate(expr.index);
     Object value = evaluate(expr.value);
+    return Values.indexSet(object, index, value);
+  }
 
-    if (!(object instanceof java.util.List)) {
-      throw new RuntimeException("Only packs can be indexed.");
+  @Override
+  public Object visitCallExpr(Expr.Call expr) {
+    Object callee = evaluate(expr.callee);
+    if (callee instanceof UserFunction) {
+      UserFunction function = (UserFunction) callee;
+      return call(function, frame(function, expr.arguments));
     }
+    return callNative(callee, expr.arguments);
+  }
 
-    if (!(indexObj instanceof Double)) {
-      throw new RuntimeException("Index must be a number.");
+  // The frame for a call: one array of slotCount slots, the arguments
+  // evaluated straight into the first ones (no Object[] in between)
+  private Environment frame(UserFunction function, List<Expr> arguments) {
+    Stmt.Function declaration = function.declaration;
+    if (arguments.size() != declaration.params.size()) {
+      throw new RuntimeException("Expected " + declaration.params.size() + " arguments but got "
+          + arguments.size() + ".");
+    }
+    Environment frame = new Environment(globals, declaration.slotCount, declaration.numbers != null);
+    for (int i = 0; i < arguments.size(); i++) {
+      frame.define(i, evaluate(arguments.get(i)));
     }
+    return frame;
+  }
 
-    int index = ((Double) indexObj).intValue();
-    java.util.List<Object> list = (java.util.List<Object>) object;
+  private Object call(UserFunction function, Environment frame) {
+    return function.memo == null ? run(function, frame) : callMemo(function, frame);
+  }
 
-    if (index < 0 || index >= list.size()) {
-      throw new RuntimeException("Pack index out of bounds.");
+  // A memo fun: the cache first, the body only on a miss
+  private Object callMemo(UserFunction function, Environment frame) {
+    List<Token> params = function.declaration.params;
+    Object[] arguments = new Object[params.size()];
+    for (int i = 0; i < arguments.length; i++) {
+      arguments[i] = frame.get(0, i, params.get(i));
+    }
+    Object key = Memo.key(arguments);
+    if (key != null) {
+      Object cached = function.memo.get(key);
+      if (cached != Memo.MISSING) {
+        return cached;
+      }
+    }
+    Object value = run(function, frame);
+    if (key != null) {
+      function.memo.put(key, value);
     }
-
-    list.set(index, value);
     return value;
   }
 
+  // Runs the body, then whatever tail calls it ends in, one after the other
+  // in this same loop: a million deep tail recursion is a million trips
+  // round it, not a million Java frames.
+  private Object run(UserFunction function, Environment frame) {
+    // The body starts outside every block
+    int outer = scopes;
+    scopes = 0;
+    try {
+      while (true) {
+        executeBlock(function.declaration.body, frame);
+        returning = false;
+        if (tailFunction == null) {
+          Object value = returnValue;
+          returnValue = null;
+          return value;
+        }
+        function = tailFunction;
+        frame = tailFrame;
+        tailFunction = null;
+        tailFrame = null;
+        // Its result has to go in the cache on the way out, so that one does
+        // take a Java frame
+        if (function.memo != null) {
+          return callMemo(function, frame);
+        }
+      }
+    } finally {
+      scopes = outer;
+    }
+  }
+
+  private Object callNative(Object callee, List<Expr> argumentExprs) {
+    Object[] arguments = new Object[argumentExprs.size()];
+    for (int i = 0; i < arguments.length; i++) {
+      arguments[i] = evaluate(argumentExprs.get(i));
+    }
+    Object result = Values.call(callee, arguments);
+    // pack(size, fill); sort(p) and the others that hand back the pack they
+    // were given didn't allocate anything
+    if (Metrics.ENABLED && result instanceof List && (arguments.length == 0 || result != arguments[0])) {
+      Metrics.packElements(((List<?>) result).size());
+    }
+    return result;
+  }
+
   @Override
   public Object visitLogicalExpr(Expr.Logical expr) {
     Object left = evaluate(expr.left);
 
     if (expr.operator.type == TokenType.OR) {
-      if (isTruthy(left))
+      if (Values.isTruthy(left))
         return left;
     } else {
-      if (!isTruthy(left))
+      if (!Values.isTruthy(left))
         return left;
     }
 
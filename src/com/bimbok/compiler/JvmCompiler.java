@@ -0,0 +1,1324 @@
+package com.bimbok.compiler;
+
+import static java.lang.constant.ConstantDescs.CD_Boolean;
+import static java.lang.constant.ConstantDescs.CD_Double;
+import static java.lang.constant.ConstantDescs.CD_Object;
+import static java.lang.constant.ConstantDescs.CD_String;
+import static java.lang.constant.ConstantDescs.CD_boolean;
+import static java.lang.constant.ConstantDescs.CD_double;
+import static java.lang.constant.ConstantDescs.CD_void;
+import static java.lang.constant.ConstantDescs.INIT_NAME;
+import static java.lang.constant.ConstantDescs.MTD_void;
+
+import java.lang.classfile.ClassFile;
+import java.lang.classfile.CodeBuilder;
+import java.lang.classfile.Label;
+import java.lang.classfile.TypeKind;
+import java.lang.constant.ClassDesc;
+import java.lang.constant.ConstantDescs;
+import java.lang.constant.DirectMethodHandleDesc;
+import java.lang.constant.MethodHandleDesc;
+import java.lang.constant.MethodTypeDesc;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+// "sizuka compile": turns a resolved AST into a real JVM class.
+//
+// The generated class is a Runnable whose run() is the whole script, plus a
+// main() that hands it to Values.launch. Every variable becomes a JVM local,
+// every operator a call into Values (which HotSpot inlines), so the compiled
+// script follows exactly the same rules as the Interpreter.
+//
+// A "fun" becomes a private static method taking one Object per parameter.
+// The globals a function uses have to be visible from it, so those (and only
+// those) are static fields instead of locals of run(). A call to a global
+// nothing but its "fun" ever sets is a plain invokestatic, and a function's
+// "return f(...)" to itself is a jump back to the top of the method.
+// A "memo fun" is two: the method everything calls, which asks its cache (a
+// static Memo field) and only on a miss calls the other one, the body.
+class JvmCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+  private static final ClassDesc CD_Values = ClassDesc.of("com.bimbok.compiler.Values");
+  private static final ClassDesc CD_Runnable = ClassDesc.of("java.lang.Runnable");
+  private static final ClassDesc CD_List = ClassDesc.of("java.util.List");
+  private static final ClassDesc CD_Natives = ClassDesc.of("com.bimbok.compiler.Natives");
+  private static final ClassDesc CD_OffHeap = ClassDesc.of("com.bimbok.compiler.OffHeap");
+  private static final ClassDesc CD_CompiledFunction = ClassDesc.of("com.bimbok.compiler.CompiledFunction");
+  private static final ClassDesc CD_MethodHandle = ClassDesc.of("java.lang.invoke.MethodHandle");
+  private static final ClassDesc CD_Memo = ClassDesc.of("com.bimbok.compiler.Memo");
+
+  // What a compiled script needs from us at run time; these get copied into the jar
+  private static final Class<?>[] RUNTIME = { Values.class, Pack.class, Colors.class, Output.class, Input.class, Natives.class,
+      NativeFunction.class, CompiledFunction.class, OffHeap.class, OffHeap.Scopes.class, OffHeapPack.class, Rope.class, Events.class, Events.ScriptRun.class,
+      Events.RuntimeError.class, Events.PackAllocation.class, Events.MinSize.class,
+      Memo.class, Memo.Entries.class, Memo.NumberKey.class, Memo.ValueKey.class, Channel.class,
+      Channel.Handed.class };
+
+  private static final MethodTypeDesc MTD_Object_Object = MethodTypeDesc.of(CD_Object, CD_Object);
+  private static final MethodTypeDesc MTD_Object_Object_Object = MethodTypeDesc.of(CD_Object, CD_Object, CD_Object);
+  private static final MethodTypeDesc MTD_boolean_Object = MethodTypeDesc.of(CD_boolean, CD_Object);
+  private static final MethodTypeDesc MTD_boolean_Object_Object = MethodTypeDesc.of(CD_boolean, CD_Object, CD_Object);
+
+  // Runs of literal pack elements longer than this go into their own method.
+  // HotSpot won't JIT a method over 8000 bytes, and a big "[1, 2, 3, ...]"
+  // would otherwise push run() past that and leave the whole script interpreted.
+  private static final int FILL_CHUNK = 256;
+
+  private final List<Stmt> statements;
+  private final boolean[] globalNumbers;
+  // The "fun"s, in order; function i becomes method fun<i>_<name>
+  private final List<Stmt.Function> functions = new ArrayList<>();
+  private final Map<Stmt.Function, Integer> functionIndex = new IdentityHashMap<>();
+  // Global slots a function body uses: static fields g<slot>
+  private final boolean[] fieldGlobals;
+  // Per global slot, the "fun" that's the only thing ever setting it (else null)
+  private final Stmt.Function[] boundFunctions;
+
+  private ClassDesc self;
+  private CodeBuilder code;
+  // Literal runs waiting to become fill methods: where in the pack they start, and the elements
+  private final List<Integer> fillStarts = new ArrayList<>();
+  private final List<List<Expr>> fillElements = new ArrayList<>();
+  // Which JVM local holds each slot, for the globals and every open block
+  private int[] globalLocals;
+  private final List<int[]> scopes = new ArrayList<>();
+  // The function being compiled (null in run()), the top of its body, and
+  // how many blocks with an OffHeap scope a "return" would leave right now
+  private Stmt.Function function;
+  private Label functionStart;
+  private int openScopes = 0;
+
+  // globalNumbers: which global slots TypeInference says are plain doubles
+  JvmCompiler(List<Stmt> statements, boolean[] globalNumbers) {
+    this.statements = statements;
+    this.globalNumbers = globalNumbers;
+
+    GlobalUses uses = new GlobalUses(globalNumbers.length);
+    for (Stmt statement : statements) {
+      statement.accept(uses);
+      if (statement instanceof Stmt.Function) {
+        functionIndex.put((Stmt.Function) statement, functions.size());
+        functions.add((Stmt.Function) statement);
+      }
+    }
+    this.fieldGlobals = uses.inFunctions;
+    this.boundFunctions = new Stmt.Function[globalNumbers.length];
+    for (int slot = 0; slot < globalNumbers.length; slot++) {
+      if (uses.writes[slot] == 1 && uses.functions[slot] != null) {
+        boundFunctions[slot] = uses.functions[slot];
+      }
+    }
+  }
+
+  byte[] compile(String className) {
+    self = ClassDesc.of(className);
+    return ClassFile.of().build(self, clb -> {
+      clb.withFlags(ClassFile.ACC_PUBLIC | ClassFile.ACC_FINAL | ClassFile.ACC_SUPER);
+      clb.withSuperclass(CD_Object);
+      clb.withInterfaceSymbols(CD_Runnable);
+
+      clb.withMethodBody(INIT_NAME, MTD_void, ClassFile.ACC_PUBLIC, cb -> {
+        cb.aload(0);
+        cb.invokespecial(CD_Object, INIT_NAME, MTD_void);
+        cb.return_();
+      });
+
+      // public static void main(String[] args) { Values.launch(new Script()); }
+      clb.withMethodBody("main", MethodTypeDesc.of(CD_void, CD_String.arrayType()),
+          ClassFile.ACC_PUBLIC | ClassFile.ACC_STATIC, cb -> {
+            cb.new_(self);
+            cb.dup();
+            cb.invokespecial(self, INIT_NAME, MTD_void);
+            cb.invokestatic(CD_Values, "launch", MethodTypeDesc.of(CD_void, CD_Runnable));
+            cb.return_();
+          });
+
+      for (int slot = 0; slot < fieldGlobals.length; slot++) {
+        if (fieldGlobals[slot]) {
+          clb.withField(field(slot), globalNumbers[slot] ? CD_double : CD_Object,
+              ClassFile.ACC_PRIVATE | ClassFile.ACC_STATIC);
+        }
+      }
+
+      // private static final Memo memo0 = new Memo("name", size); for every memo fun
+      boolean memos = false;
+      for (Stmt.Function declaration : functions) {
+        if (declaration.memoSize > 0) {
+          clb.withField(memoField(declaration), CD_Memo,
+              ClassFile.ACC_PRIVATE | ClassFile.ACC_STATIC | ClassFile.ACC_FINAL);
+          memos = true;
+        }
+      }
+      if (memos) {
+        clb.withMethodBody("<clinit>", MTD_void, ClassFile.ACC_STATIC, cb -> {
+          for (Stmt.Function declaration : functions) {
+            if (declaration.memoSize > 0) {
+              cb.new_(CD_Memo);
+              cb.dup();
+              cb.ldc(declaration.name.lexeme);
+              cb.loadConstant(declaration.memoSize);
+              cb.invokespecial(CD_Memo, INIT_NAME, MethodTypeDesc.of(CD_void, CD_String, ConstantDescs.CD_int));
+              cb.putstatic(self, memoField(declaration), CD_Memo);
+            }
+          }
+          cb.return_();
+        });
+      }
+
+      clb.withMethodBody("run", MTD_void, ClassFile.ACC_PUBLIC, cb -> {
+        code = cb;
+        // Globals are plain locals of run(). They start out UNDEFINED so reading
+        // one before it's set fails the same way it does in the Interpreter.
+        globalLocals = allocateFrame(globalNumbers.length, globalNumbers);
+        for (int slot = 0; slot < fieldGlobals.length; slot++) {
+          if (fieldGlobals[slot] && !globalNumbers[slot]) {
+            cb.getstatic(CD_Values, "UNDEFINED", CD_Object);
+            cb.putstatic(self, field(slot), CD_Object);
+          }
+        }
+        // The built-ins sit in the first global slots, see Natives
+        for (int slot = 0; slot < Natives.NAMES.length; slot++) {
+          cb.loadConstant(slot);
+          cb.invokestatic(CD_Natives, "value", MethodTypeDesc.of(CD_Object, ConstantDescs.CD_int));
+          store(0, slot);
+        }
+        for (Stmt statement : statements) {
+          compile(statement);
+        }
+        cb.return_();
+      });
+
+      // private static Object fun0_name(Object a, Object b) { ... }
+      for (Stmt.Function declaration : functions) {
+        String body = methodName(declaration);
+        if (declaration.memoSize > 0) {
+          body += "_body";
+          String target = body;
+          clb.withMethodBody(methodName(declaration), methodType(declaration),
+              ClassFile.ACC_PRIVATE | ClassFile.ACC_STATIC, cb -> memoWrapper(cb, declaration, target));
+        }
+        clb.withMethodBody(body, methodType(declaration), ClassFile.ACC_PRIVATE | ClassFile.ACC_STATIC,
+            cb -> {
+              code = cb;
+              function = declaration;
+              // The parameters are already in their JVM locals, the body's own
+              // slots get new ones
+              int[] frame = new int[declaration.slotCount];
+              for (int slot = 0; slot < frame.length; slot++) {
+                frame[slot] = slot < declaration.params.size() ? cb.parameterSlot(slot)
+                    : allocateSlot(declaration.numbers != null && declaration.numbers[slot]);
+              }
+              scopes.add(frame);
+              functionStart = cb.newLabel();
+              cb.labelBinding(functionStart);
+              for (Stmt statement : declaration.body) {
+                compile(statement);
+              }
+              // Falling off the end returns nil
+              cb.aconst_null();
+              cb.areturn();
+              scopes.clear();
+              function = null;
+            });
+      }
+
+      // private static void fill0(Object[] pack) { pack[i] = ...; ... }
+      for (int i = 0; i < fillStarts.size(); i++) {
+        int start = fillStarts.get(i);
+        List<Expr> elements = fillElements.get(i);
+        clb.withMethodBody("fill" + i, MethodTypeDesc.of(CD_void, CD_Object.arrayType()),
+            ClassFile.ACC_PRIVATE | ClassFile.ACC_STATIC, cb -> {
+              code = cb;
+              for (int j = 0; j < elements.size(); j++) {
+                cb.aload(0);
+                cb.loadConstant(start + j);
+                compile(elements.get(j));
+                cb.aastore();
+              }
+              cb.return_();
+            });
+      }
+    });
+  }
+
+  // "bubble_sort.siz" -> "bubble_sort", "2d-grid.siz" -> "_2d_grid"
+  static String classNameFor(Path script) {
+    String name = script.getFileName().toString();
+    int dot = name.lastIndexOf('.');
+    if (dot > 0) {
+      name = name.substring(0, dot);
+    }
+
+    StringBuilder builder = new StringBuilder();
+    for (char c : name.toCharArray()) {
+      builder.append(Character.isJavaIdentifierPart(c) ? c : '_');
+    }
+    if (builder.length() == 0 || !Character.isJavaIdentifierStart(builder.charAt(0))) {
+      builder.insert(0, '_');
+    }
+    return builder.toString();
+  }
+
+  // Writes a runnable jar: the script class, the runtime it calls into, and a
+  // manifest pointing at the script, so "java -jar foo.jar" just works.
+  static void writeJar(Path output, String className, byte[] classBytes) throws IOException {
+    Manifest manifest = new Manifest();
+    manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, className);
+
+    try (OutputStream file = Files.newOutputStream(output);
+        JarOutputStream jar = new JarOutputStream(file, manifest)) {
+      jar.putNextEntry(new JarEntry(className + ".class"));
+      jar.write(classBytes);
+      jar.closeEntry();
+
+      for (Class<?> runtime : RUNTIME) {
+        String entry = runtime.getName().replace('.', '/') + ".class";
+        try (InputStream in = JvmCompiler.class.getResourceAsStream("/" + entry)) {
+          if (in == null) {
+            throw new IOException("Can't find " + entry + " to bundle.");
+          }
+          jar.putNextEntry(new JarEntry(entry));
+          in.transferTo(jar);
+          jar.closeEntry();
+        }
+      }
+    }
+  }
+
+  private void compile(Stmt stmt) {
+    stmt.accept(this);
+  }
+
+  private void compile(Expr expr) {
+    expr.accept(this);
+  }
+
+  // --- Statements ---
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    compile(stmt.expression);
+    code.invokestatic(CD_Values, "print", MethodTypeDesc.of(CD_void, CD_Object));
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    // "a = 5" on its own line doesn't need its value afterwards
+    if (stmt.expression instanceof Expr.Assign) {
+      Expr.Assign assign = (Expr.Assign) stmt.expression;
+      if (assign.numeric) {
+        compileNumber(assign.value);
+        checkShared(assign);
+        storeNumber(assign.depth, assign.slot);
+      } else {
+        compile(assign.value);
+        checkShared(assign);
+        store(assign.depth, assign.slot);
+      }
+      return null;
+    }
+
+    compile(stmt.expression);
+    code.pop();
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    if (stmt.numeric) {
+      compileNumber(stmt.initializer);
+      storeNumber(0, stmt.slot);
+      return null;
+    }
+
+    if (stmt.initializer != null) {
+      compile(stmt.initializer);
+    } else {
+      code.aconst_null();
+    }
+    store(0, stmt.slot);
+    return null;
+  }
+
+  @Override
+  public Void visitInputStmt(Stmt.Input stmt) {
+    if (stmt.prompt != null) {
+      compile(stmt.prompt);
+      code.invokestatic(CD_Values, "stringify", MethodTypeDesc.of(CD_String, CD_Object));
+    } else {
+      code.aconst_null();
+    }
+    code.invokestatic(CD_Values, "readInput", MethodTypeDesc.of(CD_Object, CD_String));
+    store(stmt.depth, stmt.slot);
+    return null;
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    Label elseLabel = code.newLabel();
+    Label end = code.newLabel();
+
+    compileJumpIfFalse(stmt.condition, elseLabel);
+    compile(stmt.thenBranch);
+    code.goto_(end);
+    code.labelBinding(elseLabel);
+    if (stmt.elseBranch != null) {
+      compile(stmt.elseBranch);
+    }
+    code.labelBinding(end);
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    Label start = code.newLabel();
+    Label end = code.newLabel();
+
+    code.labelBinding(start);
+    compileJumpIfFalse(stmt.condition, end);
+    compile(stmt.body);
+    code.goto_(start);
+    code.labelBinding(end);
+    return null;
+  }
+
+  // The body reads the locals around it, which are JVM locals of this
+  // method; there's nothing to hand another thread, so it's left to the
+  // interpreter (Main reports this before writing the jar)
+  @Override
+  public Void visitSpawnStmt(Stmt.Spawn stmt) {
+    throw new RuntimeException("spawn needs the interpreter: it can't be compiled to a jar.");
+  }
+
+  @Override
+  public Void visitFromStmt(Stmt.From stmt) {
+    // The counter and the end bound are real doubles, no boxing per step
+    int counter = code.allocateLocal(TypeKind.DOUBLE);
+    int limit = code.allocateLocal(TypeKind.DOUBLE);
+    int startValue = code.allocateLocal(TypeKind.REFERENCE);
+
+    compile(stmt.start);
+    code.astore(startValue);
+    compile(stmt.end);
+    code.dup();
+    code.aload(startValue);
+    code.swap();
+    code.invokestatic(CD_Values, "checkRange", MethodTypeDesc.of(CD_void, CD_Object, CD_Object));
+    unboxNumber();
+    code.dstore(limit);
+    code.aload(startValue);
+    unboxNumber();
+    code.dstore(counter);
+
+    Label head = code.newLabel();
+    Label end = code.newLabel();
+    code.labelBinding(head);
+    code.dload(counter);
+    code.dload(limit);
+    code.dcmpg();
+    code.ifgt(end);
+
+    code.dload(counter);
+    if (stmt.numeric) {
+      storeNumber(0, stmt.slot);
+    } else {
+      boxNumber();
+      store(0, stmt.slot);
+    }
+    // Run as a plain loop, but with its calls checked like on the tree-walker
+    if (stmt.parallel) {
+      code.invokestatic(CD_Values, "enterPar", MTD_void);
+      compile(stmt.body);
+      code.invokestatic(CD_Values, "exitPar", MTD_void);
+    } else {
+      compile(stmt.body);
+    }
+
+    code.dload(counter);
+    code.dconst_1();
+    code.dadd();
+    code.dstore(counter);
+    code.goto_(head);
+    code.labelBinding(end);
+    return null;
+  }
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    CodeBuilder outer = code;
+    outer.block(block -> {
+      code = block;
+      scopes.add(allocateFrame(stmt.slotCount, stmt.numbers));
+      // No finally needed: an error ends the script, and Values.launch frees everything
+      if (stmt.hasCalls) {
+        code.invokestatic(CD_OffHeap, "enterScope", MTD_void);
+        openScopes++;
+      }
+      for (Stmt statement : stmt.statements) {
+        compile(statement);
+      }
+      if (stmt.hasCalls) {
+        code.invokestatic(CD_OffHeap, "exitScope", MTD_void);
+        openScopes--;
+      }
+      scopes.remove(scopes.size() - 1);
+    });
+    code = outer;
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    // The value: new CompiledFunction("name", arity, <the method>)
+    code.new_(CD_CompiledFunction);
+    code.dup();
+    code.ldc(stmt.name.lexeme);
+    code.loadConstant(stmt.params.size());
+    code.ldc(MethodHandleDesc.ofMethod(DirectMethodHandleDesc.Kind.STATIC, self, methodName(stmt), methodType(stmt)));
+    code.invokespecial(CD_CompiledFunction, INIT_NAME,
+        MethodTypeDesc.of(CD_void, CD_String, ConstantDescs.CD_int, CD_MethodHandle));
+    store(0, stmt.slot);
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value instanceof Expr.Call && function != null && boundFunction((Expr.Call) stmt.value) == function) {
+      // Calling itself last: new arguments, then back to the top. The body's
+      // own locals need no resetting, each is set by its "say" before it's read.
+      Expr.Call call = (Expr.Call) stmt.value;
+      for (Expr argument : call.arguments) {
+        compile(argument);
+      }
+      if (openScopes > 0) {
+        // An argument may be an off-heap pack one of the blocks it leaves made
+        code.loadConstant(openScopes);
+        code.invokestatic(CD_OffHeap, "handOver", MethodTypeDesc.of(CD_void, ConstantDescs.CD_int));
+      }
+      for (int i = call.arguments.size() - 1; i >= 0; i--) {
+        code.astore(code.parameterSlot(i));
+      }
+      exitScopes();
+      code.goto_(functionStart);
+      return null;
+    }
+
+    if (stmt.value != null) {
+      compile(stmt.value);
+    } else {
+      code.aconst_null();
+    }
+    exitScopes();
+    code.areturn();
+    return null;
+  }
+
+  // What the blocks a "return" jumps out of would have done on the way out
+  private void exitScopes() {
+    for (int i = 0; i < openScopes; i++) {
+      code.invokestatic(CD_OffHeap, "exitScope", MTD_void);
+    }
+  }
+
+  // --- Expressions ---
+
+  @Override
+  public Void visitLiteralExpr(Expr.Literal expr) {
+    if (expr.value == null) {
+      code.aconst_null();
+    } else if (expr.value instanceof Boolean) {
+      code.getstatic(CD_Boolean, (boolean) expr.value ? "TRUE" : "FALSE", CD_Boolean);
+    } else if (expr.value instanceof Double) {
+      code.loadConstant((double) expr.value);
+      boxNumber();
+    } else {
+      code.ldc((String) expr.value);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitGroupingExpr(Expr.Grouping expr) {
+    compile(expr.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitUnaryExpr(Expr.Unary expr) {
+    compile(expr.right);
+    if (expr.operator.type == TokenType.MINUS) {
+      code.invokestatic(CD_Values, "negate", MTD_Object_Object);
+    } else {
+      code.invokestatic(CD_Values, "isTruthy", MTD_boolean_Object);
+      code.iconst_1();
+      code.ixor();
+      boxBoolean();
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpr(Expr.Binary expr) {
+    if (expr.left.numeric && expr.right.numeric) {
+      compileNumber(expr.left);
+      compileNumber(expr.right);
+      if (numberOp(expr.operator.type)) {
+        numberArithmetic(expr.operator.type);
+        boxNumber();
+      } else {
+        // A comparison: turn the jump into true/false
+        Label no = code.newLabel();
+        Label end = code.newLabel();
+        numberJumpIfFalse(expr.operator.type, no);
+        code.iconst_1();
+        code.goto_(end);
+        code.labelBinding(no);
+        code.iconst_0();
+        code.labelBinding(end);
+        boxBoolean();
+      }
+      return null;
+    }
+
+    compile(expr.left);
+    compile(expr.right);
+
+    switch (expr.operator.type) {
+      case PLUS:
+        code.invokestatic(CD_Values, "add", MTD_Object_Object_Object);
+        break;
+      case MINUS:
+        code.invokestatic(CD_Values, "subtract", MTD_Object_Object_Object);
+        break;
+      case STAR:
+        code.invokestatic(CD_Values, "multiply", MTD_Object_Object_Object);
+        break;
+      case SLASH:
+        code.invokestatic(CD_Values, "divide", MTD_Object_Object_Object);
+        break;
+      case MODULO:
+        code.invokestatic(CD_Values, "modulo", MTD_Object_Object_Object);
+        break;
+      case BANG_EQUAL:
+        code.invokestatic(CD_Values, "isEqual", MTD_boolean_Object_Object);
+        code.iconst_1();
+        code.ixor();
+        boxBoolean();
+        break;
+      default:
+        compileTest(expr.operator.type);
+        boxBoolean();
+        break;
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpr(Expr.Logical expr) {
+    // Keep the left value if it decides the answer, otherwise replace it with the right one
+    Label end = code.newLabel();
+    compile(expr.left);
+    code.dup();
+    code.invokestatic(CD_Values, "isTruthy", MTD_boolean_Object);
+    if (expr.operator.type == TokenType.OR) {
+      code.ifne(end);
+    } else {
+      code.ifeq(end);
+    }
+    code.pop();
+    compile(expr.right);
+    code.labelBinding(end);
+    return null;
+  }
+
+  @Override
+  public Void visitVariableExpr(Expr.Variable expr) {
+    if (expr.numeric) {
+      loadNumber(expr.depth, expr.slot);
+      boxNumber();
+      return null;
+    }
+
+    load(expr.depth, expr.slot);
+    if (isGlobal(expr.depth)) {
+      code.ldc(expr.name.lexeme);
+      code.invokestatic(CD_Values, "checkDefined", MethodTypeDesc.of(CD_Object, CD_Object, CD_String));
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitAssignExpr(Expr.Assign expr) {
+    if (expr.numeric) {
+      compileNumber(expr);
+      boxNumber();
+      return null;
+    }
+
+    compile(expr.value);
+    code.dup();
+    checkShared(expr);
+    store(expr.depth, expr.slot);
+    return null;
+  }
+
+  // A function setting a global: not from a par loop's body (see
+  // Values.enterPar). The body's own writes the Parser has already checked.
+  private void checkShared(Expr.Assign assign) {
+    if (function != null && isGlobal(assign.depth)) {
+      code.ldc(assign.name.lexeme);
+      code.invokestatic(CD_Values, "checkShared", MethodTypeDesc.of(CD_void, CD_String));
+    }
+  }
+
+  @Override
+  public Void visitPackLiteralExpr(Expr.PackLiteral expr) {
+    List<Expr> elements = expr.elements;
+    code.loadConstant(elements.size());
+    code.anewarray(CD_Object);
+    int i = 0;
+    while (i < elements.size()) {
+      int run = 0;
+      while (i + run < elements.size() && run < FILL_CHUNK && elements.get(i + run) instanceof Expr.Literal) {
+        run++;
+      }
+
+      if (run > 16) {
+        // Literals don't touch any variables, so they can be stored from another method
+        code.dup();
+        code.invokestatic(self, "fill" + fillStarts.size(), MethodTypeDesc.of(CD_void, CD_Object.arrayType()));
+        fillStarts.add(i);
+        fillElements.add(elements.subList(i, i + run));
+        i += run;
+        continue;
+      }
+
+      code.dup();
+      code.loadConstant(i);
+      compile(elements.get(i));
+      code.aastore();
+      i++;
+    }
+    code.invokestatic(CD_Values, "pack", MethodTypeDesc.of(CD_List, CD_Object.arrayType()));
+    return null;
+  }
+
+  @Override
+  public Void visitIndexGetExpr(Expr.IndexGet expr) {
+    compile(expr.object);
+    if (expr.index.numeric) {
+      compileNumber(expr.index);
+      code.invokestatic(CD_Values, "indexGet", MethodTypeDesc.of(CD_Object, CD_Object, CD_double));
+      return null;
+    }
+    compile(expr.index);
+    code.invokestatic(CD_Values, "indexGet", MTD_Object_Object_Object);
+    return null;
+  }
+
+  @Override
+  public Void visitIndexSetExpr(Expr.IndexSet expr) {
+    compile(expr.object);
+    if (expr.index.numeric) {
+      compileNumber(expr.index);
+      compile(expr.value);
+      code.invokestatic(CD_Values, "indexSet", MethodTypeDesc.of(CD_Object, CD_Object, CD_double, CD_Object));
+      return null;
+    }
+    compile(expr.index);
+    compile(expr.value);
+    code.invokestatic(CD_Values, "indexSet", MethodTypeDesc.of(CD_Object, CD_Object, CD_Object, CD_Object));
+    return null;
+  }
+
+  @Override
+  public Void visitCallExpr(Expr.Call expr) {
+    Stmt.Function target = boundFunction(expr);
+    if (target != null) {
+      // Still "Undefined variable" if it runs before the "fun" does
+      compile(expr.callee);
+      code.pop();
+      for (Expr argument : expr.arguments) {
+        compile(argument);
+      }
+      code.invokestatic(self, methodName(target), methodType(target));
+      return null;
+    }
+
+    compile(expr.callee);
+    code.loadConstant(expr.arguments.size());
+    code.anewarray(CD_Object);
+    for (int i = 0; i < expr.arguments.size(); i++) {
+      code.dup();
+      code.loadConstant(i);
+      compile(expr.arguments.get(i));
+      code.aastore();
+    }
+    code.invokestatic(CD_Values, "call", MethodTypeDesc.of(CD_Object, CD_Object, CD_Object.arrayType()));
+    return null;
+  }
+
+  // --- Helpers ---
+
+  // Jumps to target when the condition is false. Comparisons skip the Boolean box,
+  // and between two numbers TypeInference vouched for, skip the Double boxes too.
+  private void compileJumpIfFalse(Expr condition, Label target) {
+    while (condition instanceof Expr.Grouping) {
+      condition = ((Expr.Grouping) condition).expression;
+    }
+
+    if (condition instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary) condition;
+      if (binary.left.numeric && binary.right.numeric && !numberOp(binary.operator.type)) {
+        compileNumber(binary.left);
+        compileNumber(binary.right);
+        numberJumpIfFalse(binary.operator.type, target);
+        return;
+      }
+      if (isTest(binary.operator.type)) {
+        compile(binary.left);
+        compile(binary.right);
+        compileTest(binary.operator.type);
+        code.ifeq(target);
+        return;
+      }
+    }
+
+    compile(condition);
+    code.invokestatic(CD_Values, "isTruthy", MTD_boolean_Object);
+    code.ifeq(target);
+  }
+
+  // Leaves a plain double on the stack for an expression TypeInference marked numeric
+  private void compileNumber(Expr expr) {
+    if (expr instanceof Expr.Literal) {
+      code.loadConstant((double) ((Expr.Literal) expr).value);
+      return;
+    }
+    if (expr instanceof Expr.Variable && expr.numeric) {
+      Expr.Variable variable = (Expr.Variable) expr;
+      loadNumber(variable.depth, variable.slot);
+      return;
+    }
+    if (expr instanceof Expr.Assign && expr.numeric) {
+      Expr.Assign assign = (Expr.Assign) expr;
+      compileNumber(assign.value);
+      code.dup2();
+      checkShared(assign);
+      storeNumber(assign.depth, assign.slot);
+      return;
+    }
+    if (expr instanceof Expr.Grouping) {
+      compileNumber(((Expr.Grouping) expr).expression);
+      return;
+    }
+    if (expr instanceof Expr.Unary && expr.numeric && ((Expr.Unary) expr).right.numeric) {
+      compileNumber(((Expr.Unary) expr).right);
+      code.dneg();
+      return;
+    }
+    if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary) expr;
+      if (binary.left.numeric && binary.right.numeric && numberOp(binary.operator.type)) {
+        compileNumber(binary.left);
+        compileNumber(binary.right);
+        numberArithmetic(binary.operator.type);
+        return;
+      }
+    }
+
+    // Always a number, but worked out the boxed way (like "s - 1" where s could be anything)
+    compile(expr);
+    unboxNumber();
+  }
+
+  private boolean numberOp(TokenType type) {
+    switch (type) {
+      case PLUS:
+      case MINUS:
+      case STAR:
+      case SLASH:
+      case MODULO:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  // Two doubles on the stack, same math as Values
+  private void numberArithmetic(TokenType type) {
+    switch (type) {
+      case PLUS:
+        code.dadd();
+        break;
+      case MINUS:
+        code.dsub();
+        break;
+      case STAR:
+        code.dmul();
+        break;
+      case SLASH:
+        code.ddiv();
+        break;
+      default:
+        code.invokestatic(CD_Values, "remainder", MethodTypeDesc.of(CD_double, CD_double, CD_double));
+        break;
+    }
+  }
+
+  // Two doubles on the stack. NaN makes every ordering false, and == follows
+  // Double.equals like Values.isEqual does.
+  private void numberJumpIfFalse(TokenType type, Label target) {
+    switch (type) {
+      case LESS:
+        code.dcmpg();
+        code.ifge(target);
+        break;
+      case LESS_EQUAL:
+        code.dcmpg();
+        code.ifgt(target);
+        break;
+      case GREATER:
+        code.dcmpl();
+        code.ifle(target);
+        break;
+      case GREATER_EQUAL:
+        code.dcmpl();
+        code.iflt(target);
+        break;
+      case EQUAL_EQUAL:
+        code.invokestatic(CD_Double, "compare", MethodTypeDesc.of(ConstantDescs.CD_int, CD_double, CD_double));
+        code.ifne(target);
+        break;
+      case BANG_EQUAL:
+        code.invokestatic(CD_Double, "compare", MethodTypeDesc.of(ConstantDescs.CD_int, CD_double, CD_double));
+        code.ifeq(target);
+        break;
+      default:
+        throw new IllegalArgumentException("Not a comparison: " + type);
+    }
+  }
+
+  private boolean isTest(TokenType type) {
+    switch (type) {
+      case GREATER:
+      case GREATER_EQUAL:
+      case LESS:
+      case LESS_EQUAL:
+      case EQUAL_EQUAL:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  // Both operands are on the stack; leaves a JVM boolean
+  private void compileTest(TokenType type) {
+    switch (type) {
+      case GREATER:
+        code.invokestatic(CD_Values, "greater", MTD_boolean_Object_Object);
+        break;
+      case GREATER_EQUAL:
+        code.invokestatic(CD_Values, "greaterEqual", MTD_boolean_Object_Object);
+        break;
+      case LESS:
+        code.invokestatic(CD_Values, "less", MTD_boolean_Object_Object);
+        break;
+      case LESS_EQUAL:
+        code.invokestatic(CD_Values, "lessEqual", MTD_boolean_Object_Object);
+        break;
+      case EQUAL_EQUAL:
+        code.invokestatic(CD_Values, "isEqual", MTD_boolean_Object_Object);
+        break;
+      default:
+        throw new IllegalArgumentException("Not a comparison: " + type);
+    }
+  }
+
+  private boolean isGlobal(int depth) {
+    return scopes.size() - 1 - depth < 0;
+  }
+
+  // The JVM local holding the variable the Resolver put at (depth, slot)
+  private int local(int depth, int slot) {
+    int scope = scopes.size() - 1 - depth;
+    if (scope < 0) {
+      return globalLocals[slot];
+    }
+    return scopes.get(scope)[slot];
+  }
+
+  // A global some function uses lives in a static field instead
+  private boolean isField(int depth, int slot) {
+    return isGlobal(depth) && fieldGlobals[slot];
+  }
+
+  private static String field(int slot) {
+    return "g" + slot;
+  }
+
+  private void load(int depth, int slot) {
+    if (isField(depth, slot)) {
+      code.getstatic(self, field(slot), CD_Object);
+    } else {
+      code.aload(local(depth, slot));
+    }
+  }
+
+  private void store(int depth, int slot) {
+    if (isField(depth, slot)) {
+      code.putstatic(self, field(slot), CD_Object);
+    } else {
+      code.astore(local(depth, slot));
+    }
+  }
+
+  private void loadNumber(int depth, int slot) {
+    if (isField(depth, slot)) {
+      code.getstatic(self, field(slot), CD_double);
+    } else {
+      code.dload(local(depth, slot));
+    }
+  }
+
+  private void storeNumber(int depth, int slot) {
+    if (isField(depth, slot)) {
+      code.putstatic(self, field(slot), CD_double);
+    } else {
+      code.dstore(local(depth, slot));
+    }
+  }
+
+  // The function a call certainly goes to, if the compiler can tell: the
+  // callee is a global only its "fun" sets, and the argument count is right
+  private Stmt.Function boundFunction(Expr.Call call) {
+    if (!(call.callee instanceof Expr.Variable)) {
+      return null;
+    }
+    Expr.Variable callee = (Expr.Variable) call.callee;
+    if (!isGlobal(callee.depth)) {
+      return null;
+    }
+    Stmt.Function target = boundFunctions[callee.slot];
+    return target != null && target.params.size() == call.arguments.size() ? target : null;
+  }
+
+  // The method a memo fun's callers get:
+  //   Object key = Memo.key(new Object[] { a, b });
+  //   if (key != null) { Object v = memo0.get(key); if (v != Memo.MISSING) return v; }
+  //   Object v = fun0_name_body(a, b);
+  //   if (key != null) memo0.put(key, v);
+  //   return v;
+  private void memoWrapper(CodeBuilder cb, Stmt.Function declaration, String body) {
+    int count = declaration.params.size();
+    int key = cb.allocateLocal(TypeKind.REFERENCE);
+    int value = cb.allocateLocal(TypeKind.REFERENCE);
+    Label run = cb.newLabel();
+    Label done = cb.newLabel();
+
+    cb.loadConstant(count);
+    cb.anewarray(CD_Object);
+    for (int i = 0; i < count; i++) {
+      cb.dup();
+      cb.loadConstant(i);
+      cb.aload(cb.parameterSlot(i));
+      cb.aastore();
+    }
+    cb.invokestatic(CD_Memo, "key", MethodTypeDesc.of(CD_Object, CD_Object.arrayType()));
+    cb.astore(key);
+    cb.aload(key);
+    cb.ifnull(run);
+    cb.getstatic(self, memoField(declaration), CD_Memo);
+    cb.aload(key);
+    cb.invokevirtual(CD_Memo, "get", MTD_Object_Object);
+    cb.astore(value);
+    cb.aload(value);
+    cb.getstatic(CD_Memo, "MISSING", CD_Object);
+    cb.if_acmpeq(run);
+    cb.aload(value);
+    cb.areturn();
+
+    cb.labelBinding(run);
+    for (int i = 0; i < count; i++) {
+      cb.aload(cb.parameterSlot(i));
+    }
+    cb.invokestatic(self, body, methodType(declaration));
+    cb.astore(value);
+    cb.aload(key);
+    cb.ifnull(done);
+    cb.getstatic(self, memoField(declaration), CD_Memo);
+    cb.aload(key);
+    cb.aload(value);
+    cb.invokevirtual(CD_Memo, "put", MethodTypeDesc.of(CD_void, CD_Object, CD_Object));
+    cb.labelBinding(done);
+    cb.aload(value);
+    cb.areturn();
+  }
+
+  private String memoField(Stmt.Function declaration) {
+    return "memo" + functionIndex.get(declaration);
+  }
+
+  private String methodName(Stmt.Function declaration) {
+    return "fun" + functionIndex.get(declaration) + "_" + declaration.name.lexeme;
+  }
+
+  private static MethodTypeDesc methodType(Stmt.Function declaration) {
+    ClassDesc[] params = new ClassDesc[declaration.params.size()];
+    Arrays.fill(params, CD_Object);
+    return MethodTypeDesc.of(CD_Object, params);
+  }
+
+  // Gives every slot of a frame its own JVM local: a double for the numeric
+  // ones, an Object starting out UNDEFINED for the rest.
+  // (Also keeps the verifier happy: every local is set before any read.)
+  private int[] allocateFrame(int count, boolean[] numbers) {
+    int[] locals = new int[count];
+    for (int i = 0; i < count; i++) {
+      locals[i] = allocateSlot(numbers != null && numbers[i]);
+    }
+    return locals;
+  }
+
+  private int allocateSlot(boolean number) {
+    int local;
+    if (number) {
+      local = code.allocateLocal(TypeKind.DOUBLE);
+      code.dconst_0();
+      code.dstore(local);
+    } else {
+      local = code.allocateLocal(TypeKind.REFERENCE);
+      code.getstatic(CD_Values, "UNDEFINED", CD_Object);
+      code.astore(local);
+    }
+    return local;
+  }
+
+  private void boxNumber() {
+    code.invokestatic(CD_Double, "valueOf", MethodTypeDesc.of(CD_Double, CD_double));
+  }
+
+  private void unboxNumber() {
+    code.checkcast(CD_Double);
+    code.invokevirtual(CD_Double, "doubleValue", MethodTypeDesc.of(CD_double));
+  }
+
+  private void boxBoolean() {
+    code.invokestatic(CD_Boolean, "valueOf", MethodTypeDesc.of(CD_Boolean, CD_boolean));
+  }
+
+  // Before any code is made: which globals the function bodies use, and how
+  // many times each global is set anywhere (and whether by a "fun")
+  private static class GlobalUses implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    final boolean[] inFunctions;
+    final int[] writes;
+    final Stmt.Function[] functions;
+    // How many scopes between here and the globals
+    private int depth = 0;
+    private boolean inFunction = false;
+
+    GlobalUses(int globalCount) {
+      inFunctions = new boolean[globalCount];
+      writes = new int[globalCount];
+      functions = new Stmt.Function[globalCount];
+    }
+
+    private void use(int depth, int slot) {
+      if (depth == this.depth && inFunction) {
+        inFunctions[slot] = true;
+      }
+    }
+
+    private void write(int depth, int slot) {
+      if (depth == this.depth) {
+        writes[slot]++;
+        use(depth, slot);
+      }
+    }
+
+    private void visit(Expr expr) {
+      if (expr != null) {
+        expr.accept(this);
+      }
+    }
+
+    private void visit(List<Stmt> statements) {
+      for (Stmt statement : statements) {
+        statement.accept(this);
+      }
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+      write(0, stmt.slot);
+      functions[stmt.slot] = stmt;
+      depth++;
+      inFunction = true;
+      visit(stmt.body);
+      inFunction = false;
+      depth--;
+      return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+      visit(stmt.value);
+      return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+      depth++;
+      visit(stmt.statements);
+      depth--;
+      return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+      visit(stmt.initializer);
+      write(0, stmt.slot);
+      return null;
+    }
+
+    @Override
+    public Void visitInputStmt(Stmt.Input stmt) {
+      visit(stmt.prompt);
+      write(stmt.depth, stmt.slot);
+      return null;
+    }
+
+    @Override
+    public Void visitFromStmt(Stmt.From stmt) {
+      visit(stmt.start);
+      visit(stmt.end);
+      write(0, stmt.slot);
+      stmt.body.accept(this);
+      return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+      visit(stmt.condition);
+      stmt.body.accept(this);
+      return null;
+    }
+
+    @Override
+    public Void visitSpawnStmt(Stmt.Spawn stmt) {
+      stmt.body.accept(this);
+      return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+      visit(stmt.condition);
+      stmt.thenBranch.accept(this);
+      if (stmt.elseBranch != null) {
+        stmt.elseBranch.accept(this);
+      }
+      return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+      visit(stmt.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+      visit(stmt.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+      use(expr.depth, expr.slot);
+      return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+      visit(expr.value);
+      write(expr.depth, expr.slot);
+      return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+      visit(expr.left);
+      visit(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+      visit(expr.left);
+      visit(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+      visit(expr.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+      return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+      visit(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitPackLiteralExpr(Expr.PackLiteral expr) {
+      for (Expr element : expr.elements) {
+        visit(element);
+      }
+      return null;
+    }
+
+    @Override
+    public Void visitIndexGetExpr(Expr.IndexGet expr) {
+      visit(expr.object);
+      visit(expr.index);
+      return null;
+    }
+
+    @Override
+    public Void visitIndexSetExpr(Expr.IndexSet expr) {
+      visit(expr.object);
+      visit(expr.index);
+      visit(expr.value);
+      return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+      visit(expr.callee);
+      for (Expr argument : expr.arguments) {
+        visit(argument);
+      }
+      return null;
+    }
+  }
+}
@@ -1,132 +1,292 @@
 package com.bimbok.compiler;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.List;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.charset.Charset;
 
 public class Main {
+  static final String VERSION = "1.0";
+
+  // --vm: compile to bytecode and run it on the VM instead of walking the tree
+  private static boolean useVm = false;
+  // --dump-ast: print the tree before and after the Optimizer (to stderr)
+  private static boolean dumpAst = false;
+  // --no-cache: always scan and parse, don't read or write the AstCache
+  private static boolean useCache = true;
+  // --profile: time every line of the script, see Profiler (null when off)
+  private static Profiler profiler = null;
+
   public static void main(String[] args) throws IOException {
-    if (args.length > 1) {
-      System.out.println("Usage: sizuka [script]");
-      System.exit(64);
-    } else if (args.length == 1) {
-      // If a file is passed (e.g., test.siz), run the file!
-      runFile(args[0]);
-    } else {
-      // Otherwise, open the interactive shell
-      runPrompt();
+    // Buffered stdout, see Output
+    Output.install();
+    // SIZUKA_METRICS: counters over JMX
+    if (Metrics.ENABLED) {
+      Metrics.install();
+    }
+
+    if (args.length > 0 && args[0].equals("compile")) {
+      compileCommand(args);
+      return;
+    }
+
+    String script = null;
+    for (String arg : args) {
+      if (arg.equals("--vm")) {
+        useVm = true;
+      } else if (arg.equals("--dump-ast")) {
+        dumpAst = true;
+      } else if (arg.equals("--no-cache")) {
+        useCache = false;
+      } else if (arg.equals("--batch")) {
+        Input.setBatch();
+      } else if (arg.equals("--profile")) {
+        profiler = new Profiler();
+      } else if (script == null && !arg.startsWith("--")) {
+        script = arg;
+      } else {
+        usage();
+      }
+    }
+    // The profiler watches the tree-walker run a script
+    if (profiler != null && (useVm || script == null)) {
+      usage();
+    }
+
+    if (profiler != null) {
+      interpreter = profiler.interpreter();
+    }
+
+    // On a thread with a stack big enough for deep recursion, see Values.STACK_SIZE
+    String path = script;
+    try {
+      Values.onBigStack(() -> {
+        try {
+          if (path != null) {
+            // If a file is passed (e.g., test.siz), run the file!
+            runFile(path);
+          } else {
+            // Otherwise, open the interactive shell
+            runPrompt();
+          }
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
     }
   }
 
   // NEW: Method to read and execute a whole file
   private static void runFile(String path) throws IOException {
     byte[] bytes = Files.readAllBytes(Paths.get(path));
-    String source = new String(bytes, Charset.defaultCharset());
-    run(source);
+
+    // Seen this exact script before? Then the tree is ready, skip the front end.
+    // (--dump-ast wants to watch the front end, so it always goes through it.)
+    boolean cached = useCache && !dumpAst;
+    List<Stmt> statements = cached ? AstCache.load(bytes) : null;
+    boolean loaded = statements != null;
+    if (statements == null) {
+      String source = new String(bytes, Charset.defaultCharset());
+      Scanner scanner = new Scanner(source);
+      Parser parser = new Parser(Events.scan(scanner, path));
+      statements = Events.parse(() -> prepare(parser, true));
+      // A script with errors isn't cached, so they're reported on every run
+      if (cached && statements != null && !scanner.hadError() && !parser.hadError()) {
+        AstCache.store(bytes, statements);
+      }
+    }
+    if (statements != null) {
+      List<Stmt> program = statements;
+      Events.run(path, useVm ? "vm" : "interpreter", loaded, () -> execute(program));
+    }
+    if (profiler != null) {
+      report(path, new String(bytes, Charset.defaultCharset()));
+    }
+    // Top-level off-heap packs live until the script is done
+    OffHeap.closeAll();
   }
 
-  // This creates an interactive shell (REPL)
-  private static void runPrompt() throws IOException {
-    InputStreamReader input = new InputStreamReader(System.in);
-    BufferedReader reader = new BufferedReader(input);
+  // Hottest lines to stderr, the whole tree to <script>.collapsed
+  private static void report(String path, String source) throws IOException {
+    Output.flush();
+    profiler.report(System.err, source, 20);
+
+    String script = Paths.get(path).getFileName().toString();
+    String name = script.endsWith(".siz") ? script.substring(0, script.length() - 4) : script;
+    Path collapsed = Paths.get(name + ".collapsed");
+    profiler.writeCollapsed(collapsed, script);
+    System.err.println("Flame graph data written to " + collapsed);
+  }
+
+  private static void usage() {
+    System.out.println("Usage: sizuka [--vm] [--dump-ast] [--no-cache] [--batch] [script]");
+    System.out.println("       sizuka --profile [--dump-ast] [--no-cache] [--batch] script");
+    System.out.println("       sizuka compile script [-o output.jar] [--dump-ast]");
+    System.exit(64);
+  }
+
+  // sizuka compile foo.siz [-o foo.jar]
+  private static void compileCommand(String[] args) throws IOException {
+    String script = null;
+    String output = null;
+    for (int i = 1; i < args.length; i++) {
+      if (args[i].equals("-o") && i + 1 < args.length) {
+        output = args[++i];
+      } else if (args[i].equals("--dump-ast")) {
+        dumpAst = true;
+      } else if (script == null && !args[i].startsWith("-")) {
+        script = args[i];
+      } else {
+        System.out.println("Usage: sizuka compile script [-o output.jar] [--dump-ast]");
+        System.exit(64);
+      }
+    }
+    if (script == null) {
+      System.out.println("Usage: sizuka compile script [-o output.jar] [--dump-ast]");
+      System.exit(64);
+    }
+
+    Path path = Paths.get(script);
+    String className = JvmCompiler.classNameFor(path);
+    if (output == null) {
+      output = className + ".jar";
+    }
+
+    String source = new String(Files.readAllBytes(path), Charset.defaultCharset());
+    Parser parser = new Parser(new Scanner(source).scan());
+    List<Stmt> statements = parser.parse();
+
+    // Unlike the REPL we don't run what did parse: a half-compiled program is no use
+    if (parser.hadError()) {
+      System.exit(65);
+    }
+    statements = optimize(statements);
+
+    Resolver scriptResolver = new Resolver();
+    scriptResolver.resolve(statements);
+    TypeInference inference = new TypeInference(true);
+    inference.infer(statements, scriptResolver.globalCount());
+
+    byte[] classBytes;
+    try {
+      classBytes = new JvmCompiler(statements, inference.globalNumbers()).compile(className);
+    } catch (RuntimeException error) {
+      // Something only the interpreter can run (a spawn)
+      System.err.println(Colors.RED + error.getMessage() + Colors.RESET);
+      System.exit(65);
+      return;
+    }
+    JvmCompiler.writeJar(Paths.get(output), className, classBytes);
+    System.out.println(Colors.GREEN + "Wrote " + output + Colors.RESET);
+  }
 
-    System.out.println(Colors.PURPLE_BOLD + "Sizuka v1.0" + Colors.RESET);
+  // This creates an interactive shell (REPL)
+  private static void runPrompt() {
+    System.out.println(Colors.PURPLE_BOLD + "Sizuka v" + VERSION + Colors.RESET);
 
-    StringBuilder buffer = new StringBuilder();
+    // Scanned line by line as it's typed (or pasted)
+    ReplInput buffer = new ReplInput();
 
     for (;;) {
-      if (buffer.length() == 0) {
+      if (buffer.isEmpty()) {
         System.out.print(Colors.GREEN_BOLD + "> " + Colors.RESET);
       } else {
         System.out.print(Colors.GREEN_BOLD + "| " + Colors.RESET);
       }
-      String line = reader.readLine();
+      Output.flush();
+      String line = Input.readLine();
       if (line == null)
         break;
 
       String command = line.trim();
 
-      if (buffer.length() == 0 && command.equals("exit")) {
+      if (buffer.isEmpty() && command.equals("exit")) {
         System.out.println(Colors.PURPLE + "Bye bye! See you soon!  " + Colors.RESET);
         break;
       }
 
-      if (buffer.length() == 0 && command.equals("clear")) {
+      if (buffer.isEmpty() && command.equals("clear")) {
         System.out.print("\033[H\033[2J");
         System.out.flush();
         continue;
       }
 
-      buffer.append(line).append("\n");
+      buffer.add(line);
 
-      if (!isComplete(buffer.toString())) {
+      if (!buffer.isComplete()) {
         continue;
       }
 
-      run(buffer.toString());
-      buffer.setLength(0);
+      run(buffer.take(), false);
     }
+    // ...or, in the REPL, until the session is
+    OffHeap.closeAll();
   }
 
-  // Create one interpreter to reuse
-  private static final Interpreter interpreter = new Interpreter();
+  // Create one interpreter to reuse (one that times itself with --profile)
+  private static Interpreter interpreter = new Interpreter();
+  // ...and one resolver, so globals from earlier REPL lines keep their slots
+  private static final Resolver resolver = new Resolver();
+  // The VM keeps its own globals, so it is reused the same way
+  private static final VM vm = new VM();
 
-  private static void run(String source) {
-    Scanner scanner = new Scanner(source);
-    List<Token> tokens = scanner.scanTokens();
+  private static void run(TokenStream tokens, boolean wholeProgram) {
+    List<Stmt> statements = Events.parse(() -> prepare(new Parser(tokens), wholeProgram));
+    if (statements != null) {
+      execute(statements);
+    }
+  }
 
-    Parser parser = new Parser(tokens);
+  // Parse, optimize, resolve and infer: the tree ready to run, or null if
+  // there's nothing to run.
+  // wholeProgram: the tokens are the entire script (a file, not a REPL line)
+  private static List<Stmt> prepare(Parser parser, boolean wholeProgram) {
+    long start = Metrics.ENABLED ? System.nanoTime() : 0;
     List<Stmt> statements = parser.parse(); // Changed to List<Stmt>
 
     // Stop if there was a syntax error
     if (statements == null || statements.isEmpty())
-      return;
+      return null;
 
-    // EXECUTE THE LIST!
-    interpreter.interpret(statements);
-  }
+    // Fold constants and drop dead branches
+    statements = optimize(statements);
 
-  private static boolean isComplete(String source) {
-    Scanner scanner = new Scanner(source);
-    List<Token> tokens = scanner.scanTokens();
-    int parenBalance = 0;
-    int braceBalance = 0;
-    Token last = null;
-
-    for (Token token : tokens) {
-      switch (token.type) {
-        case LEFT_PAREN:
-          parenBalance++;
-          break;
-        case RIGHT_PAREN:
-          parenBalance--;
-          break;
-        case LEFT_BRACE:
-          braceBalance++;
-          break;
-        case RIGHT_BRACE:
-          braceBalance--;
-          break;
-        case EOF:
-          break;
-        default:
-          last = token;
-          break;
-      }
+    // Bind every variable to a (depth, slot) before running
+    resolver.resolve(statements);
+    // ...and find the variables that can stay plain doubles
+    new TypeInference(wholeProgram).infer(statements, resolver.globalCount());
+    if (Metrics.ENABLED) {
+      Metrics.parsed(System.nanoTime() - start);
     }
+    return statements;
+  }
 
-    if (parenBalance > 0 || braceBalance > 0) {
-      return false;
+  private static void execute(List<Stmt> statements) {
+    long start = Metrics.ENABLED ? System.nanoTime() : 0;
+    // EXECUTE THE LIST!
+    if (useVm) {
+      vm.interpret(statements);
+    } else {
+      interpreter.interpret(statements);
     }
-
-    if (last != null && last.type == TokenType.ELSE) {
-      return false;
+    if (Metrics.ENABLED) {
+      Metrics.executed(System.nanoTime() - start);
     }
+  }
 
-    return true;
+  private static List<Stmt> optimize(List<Stmt> statements) {
+    if (dumpAst) {
+      System.err.print("--- AST ---\n" + new AstPrinter().print(statements));
+    }
+    statements = new Optimizer().optimize(statements);
+    if (dumpAst) {
+      System.err.print("--- Optimized AST ---\n" + new AstPrinter().print(statements));
+    }
+    return statements;
   }
 }
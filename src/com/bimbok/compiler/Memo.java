@@ -0,0 +1,194 @@
+package com.bimbok.compiler;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// The cache behind a "memo fun": results by argument values, least recently
+// used thrown out first once it holds more than its size.
+//
+// Every engine asks it the same way: key() for the arguments, get() before
+// running the body, put() after. Public because the compiled jars use it too.
+//
+// The map is a LinkedHashMap in access order, which moves an entry on every
+// get(), so all of it is behind the lock, not just the writes. The body runs
+// outside the lock: a memo fun calling itself (fib) only takes it for the
+// lookups.
+public final class Memo {
+  // The size when "memo fun" doesn't give one
+  public static final int DEFAULT_SIZE = 10_000;
+
+  // What get() says when there's nothing cached (null is a real result, "nil")
+  public static final Object MISSING = new Object();
+
+  // Every memo fun together, for Metrics
+  private static final LongAdder totalHits = new LongAdder();
+  private static final LongAdder totalMisses = new LongAdder();
+
+  private final String name;
+  private final int size;
+  private final Entries entries;
+  private long hits = 0;
+  private long misses = 0;
+
+  public Memo(String name, int size) {
+    this.name = name;
+    this.size = size;
+    this.entries = new Entries(size);
+  }
+
+  // The key for these arguments, null when they can't be one: a pack can
+  // change after the call, so a call with one is never cached.
+  //
+  // Numbers only (the usual case) get a key of their bits, without boxing
+  // anything or asking every argument for its hashCode.
+  public static Object key(Object[] arguments) {
+    long[] bits = new long[arguments.length];
+    for (int i = 0; i < arguments.length; i++) {
+      if (!(arguments[i] instanceof Double number)) {
+        return valueKey(arguments);
+      }
+      bits[i] = Double.doubleToLongBits(number);
+    }
+    return new NumberKey(bits);
+  }
+
+  private static Object valueKey(Object[] arguments) {
+    Object[] values = new Object[arguments.length];
+    for (int i = 0; i < arguments.length; i++) {
+      Object value = arguments[i];
+      if (value instanceof List || value instanceof OffHeapPack) {
+        return null;
+      }
+      // "ab" + "c" and "abc" are the same argument
+      values[i] = value instanceof Rope ? value.toString() : value;
+    }
+    return new ValueKey(values);
+  }
+
+  public synchronized Object get(Object key) {
+    Object value = entries.getOrDefault(key, MISSING);
+    if (value == MISSING) {
+      misses++;
+      totalMisses.increment();
+    } else {
+      hits++;
+      totalHits.increment();
+    }
+    return value;
+  }
+
+  public synchronized void put(Object key, Object value) {
+    entries.put(key, value);
+  }
+
+  synchronized long hits() {
+    return hits;
+  }
+
+  synchronized long misses() {
+    return misses;
+  }
+
+  synchronized int cached() {
+    return entries.size();
+  }
+
+  String name() {
+    return name;
+  }
+
+  int size() {
+    return size;
+  }
+
+  static long totalHits() {
+    return totalHits.sum();
+  }
+
+  static long totalMisses() {
+    return totalMisses.sum();
+  }
+
+  static void resetTotals() {
+    totalHits.reset();
+    totalMisses.reset();
+  }
+
+  // (The nested classes are package-private, not private, so JvmCompiler can
+  // name them to put them in the jar.)
+  static final class Entries extends LinkedHashMap<Object, Object> {
+    // (LinkedHashMap is Serializable; this never is, but javac wants one)
+    private static final long serialVersionUID = 1L;
+
+    private final int size;
+
+    Entries(int size) {
+      super(16, 0.75f, true);
+      this.size = size;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Object, Object> eldest) {
+      return size() > size;
+    }
+  }
+
+  // The same test as == on numbers, except that doubleToLongBits tells 0 from
+  // -0 (which only matters for 1 / x) and every NaN is the same key
+  static final class NumberKey {
+    private final long[] bits;
+    private final int hash;
+
+    NumberKey(long[] bits) {
+      this.bits = bits;
+      long h = bits.length;
+      for (long b : bits) {
+        h = mix(h ^ b);
+      }
+      this.hash = (int) h;
+    }
+
+    // Whole numbers keep everything in the top bits of a double, the low ones
+    // are all 0; this spreads them over the whole int (Murmur3's finalizer)
+    private static long mix(long h) {
+      h ^= h >>> 33;
+      h *= 0xff51afd7ed558ccdL;
+      h ^= h >>> 33;
+      h *= 0xc4ceb9fe1a85ec53L;
+      return h ^ (h >>> 33);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof NumberKey key && Arrays.equals(bits, key.bits);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  static final class ValueKey {
+    private final Object[] values;
+    private final int hash;
+
+    ValueKey(Object[] values) {
+      this.values = values;
+      this.hash = Arrays.hashCode(values);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof ValueKey key && Arrays.equals(values, key.values);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+}
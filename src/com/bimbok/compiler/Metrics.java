@@ -0,0 +1,224 @@
+package com.bimbok.compiler;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Live counters for a long running interpreter, over JMX: set SIZUKA_METRICS
+// and point jconsole (or anything JMX) at com.bimbok.sizuka:type=Metrics.
+//
+// The counters are LongAdders, not AtomicLongs: every statement and every
+// variable lookup bumps one, and with several interpreters running at once a
+// single shared counter would have all of them fighting over one cache line.
+//
+// Off (the default) it costs nothing. ENABLED is final, so the JIT drops every
+// "if (Metrics.ENABLED)" from the hot paths, and java.management isn't loaded.
+final class Metrics implements MetricsMXBean {
+  static final boolean ENABLED = enabled();
+
+  private static final LongAdder statements = new LongAdder();
+  private static final LongAdder environments = new LongAdder();
+  private static final LongAdder lookups = new LongAdder();
+  private static final LongAdder lookupDepth = new LongAdder();
+  private static final LongAdder packElements = new LongAdder();
+  private static final LongAdder boxedNumbers = new LongAdder();
+  private static final Histogram parseTimes = new Histogram();
+  private static final Histogram executeTimes = new Histogram();
+
+  private Metrics() {
+  }
+
+  // Puts the MBean on the platform MBean server (once, and only when ENABLED)
+  static synchronized void install() {
+    try {
+      ObjectName name = new ObjectName("com.bimbok.sizuka:type=Metrics");
+      if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new Metrics(), name);
+      }
+    } catch (JMException error) {
+      // Not worth stopping the script for
+      System.err.println("Could not register the metrics MBean: " + error.getMessage());
+    }
+  }
+
+  // --- Updated from the Interpreter and Environment ---
+
+  static void statement() {
+    statements.increment();
+  }
+
+  static void environment() {
+    environments.increment();
+  }
+
+  static void lookup(int depth) {
+    lookups.increment();
+    // Most lookups are in the innermost frame, no need to add 0
+    if (depth > 0) {
+      lookupDepth.add(depth);
+    }
+  }
+
+  static void packElements(int count) {
+    packElements.add(count);
+  }
+
+  static void boxed() {
+    boxedNumbers.increment();
+  }
+
+  static void parsed(long nanos) {
+    parseTimes.record(nanos);
+  }
+
+  static void executed(long nanos) {
+    executeTimes.record(nanos);
+  }
+
+  // --- MetricsMXBean ---
+
+  @Override
+  public long getStatementsExecuted() {
+    return statements.sum();
+  }
+
+  @Override
+  public long getEnvironmentsCreated() {
+    return environments.sum();
+  }
+
+  @Override
+  public long getVariableLookups() {
+    return lookups.sum();
+  }
+
+  @Override
+  public double getAverageLookupDepth() {
+    long count = lookups.sum();
+    return count == 0 ? 0 : (double) lookupDepth.sum() / count;
+  }
+
+  @Override
+  public long getPackElementsAllocated() {
+    return packElements.sum();
+  }
+
+  @Override
+  public long getBoxedNumbersCreated() {
+    return boxedNumbers.sum();
+  }
+
+  @Override
+  public long getParses() {
+    return parseTimes.count();
+  }
+
+  @Override
+  public long getParseTimeTotalMillis() {
+    return parseTimes.totalMillis();
+  }
+
+  @Override
+  public Map<String, Long> getParseTimeHistogram() {
+    return parseTimes.buckets();
+  }
+
+  @Override
+  public long getExecutions() {
+    return executeTimes.count();
+  }
+
+  @Override
+  public long getExecuteTimeTotalMillis() {
+    return executeTimes.totalMillis();
+  }
+
+  @Override
+  public Map<String, Long> getExecuteTimeHistogram() {
+    return executeTimes.buckets();
+  }
+
+  @Override
+  public long getMemoHits() {
+    return Memo.totalHits();
+  }
+
+  @Override
+  public long getMemoMisses() {
+    return Memo.totalMisses();
+  }
+
+  @Override
+  public void reset() {
+    statements.reset();
+    environments.reset();
+    lookups.reset();
+    lookupDepth.reset();
+    packElements.reset();
+    boxedNumbers.reset();
+    parseTimes.reset();
+    executeTimes.reset();
+    Memo.resetTotals();
+  }
+
+  // Durations counted in powers of ten: under 1 ms, under 10 ms, ... 10 s and up
+  private static class Histogram {
+    private static final long[] LIMITS = { 1_000_000L, 10_000_000L, 100_000_000L, 1_000_000_000L, 10_000_000_000L };
+    private static final String[] LABELS = { "< 1 ms", "< 10 ms", "< 100 ms", "< 1 s", "< 10 s", ">= 10 s" };
+
+    private final LongAdder[] counts = new LongAdder[LABELS.length];
+    private final LongAdder totalNanos = new LongAdder();
+
+    Histogram() {
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] = new LongAdder();
+      }
+    }
+
+    void record(long nanos) {
+      int bucket = 0;
+      while (bucket < LIMITS.length && nanos >= LIMITS[bucket]) {
+        bucket++;
+      }
+      counts[bucket].increment();
+      totalNanos.add(nanos);
+    }
+
+    long count() {
+      long count = 0;
+      for (LongAdder bucket : counts) {
+        count += bucket.sum();
+      }
+      return count;
+    }
+
+    long totalMillis() {
+      return totalNanos.sum() / 1_000_000;
+    }
+
+    Map<String, Long> buckets() {
+      Map<String, Long> buckets = new LinkedHashMap<>();
+      for (int i = 0; i < counts.length; i++) {
+        buckets.put(LABELS[i], counts[i].sum());
+      }
+      return buckets;
+    }
+
+    void reset() {
+      for (LongAdder bucket : counts) {
+        bucket.reset();
+      }
+      totalNanos.reset();
+    }
+  }
+
+  // Anything but unset, empty or "0" turns it on
+  private static boolean enabled() {
+    String configured = System.getenv("SIZUKA_METRICS");
+    return configured != null && !configured.isBlank() && !configured.trim().equals("0");
+  }
+}
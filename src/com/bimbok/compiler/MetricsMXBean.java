@@ -0,0 +1,43 @@
+package com.bimbok.compiler;
+
+import java.util.Map;
+
+// What Metrics shows over JMX, as com.bimbok.sizuka:type=Metrics.
+// (JMX only looks at public interfaces, hence the public.)
+public interface MetricsMXBean {
+  long getStatementsExecuted();
+
+  long getEnvironmentsCreated();
+
+  // Every read or write of a variable
+  long getVariableLookups();
+
+  // How many frames up a lookup went on average (0: the innermost block)
+  double getAverageLookupDepth();
+
+  long getPackElementsAllocated();
+
+  long getBoxedNumbersCreated();
+
+  long getParses();
+
+  long getParseTimeTotalMillis();
+
+  // Parses per time bucket ("< 1 ms", "< 10 ms", ...)
+  Map<String, Long> getParseTimeHistogram();
+
+  long getExecutions();
+
+  long getExecuteTimeTotalMillis();
+
+  Map<String, Long> getExecuteTimeHistogram();
+
+  // Calls of "memo fun"s answered from the cache, and those that ran the body
+  // (every memo fun together)
+  long getMemoHits();
+
+  long getMemoMisses();
+
+  // Everything back to 0
+  void reset();
+}
@@ -0,0 +1,23 @@
+package com.bimbok.compiler;
+
+import java.util.function.Function;
+
+// A function written in Java that scripts can call, like pack(10, 0)
+final class NativeFunction {
+  final String name;
+  private final Function<Object[], Object> body;
+
+  NativeFunction(String name, Function<Object[], Object> body) {
+    this.name = name;
+    this.body = body;
+  }
+
+  Object call(Object[] arguments) {
+    return body.apply(arguments);
+  }
+
+  @Override
+  public String toString() {
+    return "<native fn " + name + ">";
+  }
+}
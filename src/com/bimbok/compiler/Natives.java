@@ -0,0 +1,243 @@
+package com.bimbok.compiler;
+
+import java.util.List;
+
+// The globals every script starts with. The Resolver hands them the first
+// global slots, in this order, so every engine finds them in the same place.
+//
+// The pack built-ins work on the pack's own storage (the double[] of a
+// number Pack, the memory of an off-heap one) instead of going element by
+// element through an index expression the way a script's loop would.
+// sort, reverse and fill change the pack in place and hand it back.
+//
+// channel, send, receive and close are how spawned tasks talk, see Channel.
+public final class Natives {
+  static final String[] NAMES = { "pack", "offheap", "len", "sort", "sum", "min", "max", "reverse", "fill",
+      "indexOf", "channel", "send", "receive", "close" };
+
+  private static final Object[] VALUES = {
+      new NativeFunction("pack", Natives::pack),
+      OffHeap.MARKER,
+      new NativeFunction("len", Natives::len),
+      new NativeFunction("sort", Natives::sort),
+      new NativeFunction("sum", Natives::sum),
+      new NativeFunction("min", arguments -> extreme("min", arguments, true)),
+      new NativeFunction("max", arguments -> extreme("max", arguments, false)),
+      new NativeFunction("reverse", Natives::reverse),
+      new NativeFunction("fill", Natives::fill),
+      new NativeFunction("indexOf", Natives::indexOf),
+      new NativeFunction("channel", Natives::channel),
+      new NativeFunction("send", Natives::send),
+      new NativeFunction("receive", Natives::receive),
+      new NativeFunction("close", Natives::close),
+  };
+
+  private Natives() {
+  }
+
+  public static Object value(int slot) {
+    return VALUES[slot];
+  }
+
+  // pack(size, fill) or pack(size, fill, offheap)
+  private static Object pack(Object[] arguments) {
+    if (arguments.length != 2 && arguments.length != 3) {
+      throw new RuntimeException("pack() takes a size, a fill value and optionally offheap.");
+    }
+
+    Object sizeValue = arguments[0];
+    if (!(sizeValue instanceof Double) || (double) sizeValue < 0
+        || (double) sizeValue != Math.floor((double) sizeValue) || (double) sizeValue > Integer.MAX_VALUE) {
+      throw new RuntimeException("Pack size must be a whole number, 0 or more.");
+    }
+    int size = (int) (double) sizeValue;
+
+    if (arguments.length == 3) {
+      if (arguments[2] != OffHeap.MARKER) {
+        throw new RuntimeException("The third argument of pack() can only be offheap.");
+      }
+      if (!(arguments[1] instanceof Double)) {
+        throw new RuntimeException("Off-heap packs can only hold numbers.");
+      }
+      Events.packAllocated(size, Double.BYTES, true);
+      return OffHeap.allocate(size, (double) arguments[1]);
+    }
+    // Numbers go in a double[], anything else in an Object[] (4 byte references)
+    Events.packAllocated(size, arguments[1] instanceof Double ? Double.BYTES : 4, false);
+    return Pack.filled(size, arguments[1]);
+  }
+
+  // len(pack) or len(string)
+  private static Object len(Object[] arguments) {
+    checkCount("len", arguments, 1);
+    Object value = arguments[0];
+    if (value instanceof List) {
+      return (double) ((List<?>) value).size();
+    }
+    if (Values.isString(value)) {
+      return (double) value.toString().length();
+    }
+    throw new RuntimeException("len() needs a pack or a string.");
+  }
+
+  // sort(pack): numbers smallest first, or strings in alphabetical order
+  private static Object sort(Object[] arguments) {
+    List<Object> pack = packArgument("sort", arguments, 1);
+    if (pack instanceof Pack) {
+      ((Pack) pack).sort();
+    } else if (pack instanceof OffHeapPack) {
+      ((OffHeapPack) pack).sort();
+    } else {
+      throw new RuntimeException("sort() can't sort this pack.");
+    }
+    return pack;
+  }
+
+  private static Object sum(Object[] arguments) {
+    List<Object> pack = packArgument("sum", arguments, 1);
+    double total = 0;
+    for (int i = 0; i < pack.size(); i++) {
+      total += numberAt("sum", pack, i);
+    }
+    return total;
+  }
+
+  // min(pack) / max(pack), or of two or more numbers: min(a, b)
+  private static Object extreme(String name, Object[] arguments, boolean min) {
+    if (arguments.length == 0) {
+      throw new RuntimeException(name + "() needs a pack or some numbers.");
+    }
+    List<Object> pack;
+    if (arguments.length == 1) {
+      pack = packArgument(name, arguments, 1);
+      if (pack.isEmpty()) {
+        throw new RuntimeException(name + "() of an empty pack.");
+      }
+    } else {
+      pack = List.of(arguments);
+    }
+    double result = numberAt(name, pack, 0);
+    for (int i = 1; i < pack.size(); i++) {
+      double number = numberAt(name, pack, i);
+      result = min ? Math.min(result, number) : Math.max(result, number);
+    }
+    return result;
+  }
+
+  private static Object reverse(Object[] arguments) {
+    List<Object> pack = packArgument("reverse", arguments, 1);
+    if (pack instanceof Pack) {
+      ((Pack) pack).reverse();
+      return pack;
+    }
+    for (int i = 0, j = pack.size() - 1; i < j; i++, j--) {
+      pack.set(i, pack.set(j, pack.get(i)));
+    }
+    return pack;
+  }
+
+  // fill(pack, value): every element becomes value
+  private static Object fill(Object[] arguments) {
+    List<Object> pack = packArgument("fill", arguments, 2);
+    if (pack instanceof Pack) {
+      ((Pack) pack).fill(arguments[1]);
+      return pack;
+    }
+    for (int i = 0; i < pack.size(); i++) {
+      pack.set(i, arguments[1]);
+    }
+    return pack;
+  }
+
+  // indexOf(pack, value): where the first element == value is, -1 if none is
+  private static Object indexOf(Object[] arguments) {
+    List<Object> pack = packArgument("indexOf", arguments, 2);
+    Object value = arguments[1];
+    if (pack instanceof Pack && ((Pack) pack).isNumeric()) {
+      if (!(value instanceof Double)) {
+        return -1.0;
+      }
+      Pack numbers = (Pack) pack;
+      // The same test as Double.equals, which == uses
+      long bits = Double.doubleToLongBits((double) value);
+      for (int i = 0; i < numbers.size(); i++) {
+        if (Double.doubleToLongBits(numbers.getNumber(i)) == bits) {
+          return (double) i;
+        }
+      }
+      return -1.0;
+    }
+    for (int i = 0; i < pack.size(); i++) {
+      if (Values.isEqual(pack.get(i), value)) {
+        return (double) i;
+      }
+    }
+    return -1.0;
+  }
+
+  // channel(size): holds up to size values before send() has to wait
+  private static Object channel(Object[] arguments) {
+    checkCount("channel", arguments, 1);
+    Object size = arguments[0];
+    if (!(size instanceof Double) || (double) size < 1 || (double) size != Math.floor((double) size)
+        || (double) size > Integer.MAX_VALUE) {
+      throw new RuntimeException("Channel size must be a whole number, at least 1.");
+    }
+    return new Channel((int) (double) size);
+  }
+
+  // send(channel, value): waits while the channel is full
+  private static Object send(Object[] arguments) {
+    channelArgument("send", arguments, 2).send(arguments[1]);
+    return null;
+  }
+
+  // receive(channel): waits while it's empty; nil once it's closed and empty
+  private static Object receive(Object[] arguments) {
+    return channelArgument("receive", arguments, 1).receive();
+  }
+
+  private static Object close(Object[] arguments) {
+    channelArgument("close", arguments, 1).close();
+    return null;
+  }
+
+  private static Channel channelArgument(String name, Object[] arguments, int count) {
+    checkCount(name, arguments, count);
+    if (!(arguments[0] instanceof Channel)) {
+      throw new RuntimeException(name + "() needs a channel.");
+    }
+    return (Channel) arguments[0];
+  }
+
+  private static void checkCount(String name, Object[] arguments, int count) {
+    if (arguments.length != count) {
+      throw new RuntimeException(name + "() takes " + count + (count == 1 ? " argument." : " arguments."));
+    }
+  }
+
+  // The first argument, which has to be a pack
+  @SuppressWarnings("unchecked")
+  private static List<Object> packArgument(String name, Object[] arguments, int count) {
+    checkCount(name, arguments, count);
+    if (!(arguments[0] instanceof List)) {
+      throw new RuntimeException(name + "() needs a pack.");
+    }
+    return (List<Object>) arguments[0];
+  }
+
+  // Element i, without boxing it when the pack keeps it unboxed
+  private static double numberAt(String name, List<Object> pack, int index) {
+    if (pack instanceof Pack && ((Pack) pack).isNumeric()) {
+      return ((Pack) pack).getNumber(index);
+    }
+    if (pack instanceof OffHeapPack) {
+      return ((OffHeapPack) pack).getNumber(index);
+    }
+    Object element = pack.get(index);
+    if (!(element instanceof Double)) {
+      throw new RuntimeException(name + "() only works on numbers.");
+    }
+    return (double) element;
+  }
+}
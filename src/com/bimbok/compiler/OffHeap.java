@@ -0,0 +1,115 @@
+package com.bimbok.compiler;
+
+import java.lang.foreign.Arena;
+import java.util.ArrayList;
+import java.util.List;
+
+// Keeps track of the memory behind off-heap packs so it's freed at a known
+// point instead of whenever the GC gets around to it.
+//
+// Each pack gets its own Arena, owned by the block that was running when it
+// was made: when that block ends, the memory goes with it. Packs made at the
+// top level live until the program ends. The engines only mark blocks that
+// contain a call (Stmt.Block.hasCalls), since nothing else can make a pack.
+//
+// Every thread keeps its own stack of blocks: the tasks of a "par from" run
+// their blocks on the pool's threads, at the same time as each other.
+public final class OffHeap {
+  // The value of the "offheap" global
+  static final OffHeap MARKER = new OffHeap();
+
+  // (Package-private, not private, so JvmCompiler can put it in the jar)
+  static final class Scopes {
+    final List<Arena> arenas = new ArrayList<>();
+    final List<Integer> owners = new ArrayList<>();
+    int depth = 0;
+  }
+
+  private static final ThreadLocal<Scopes> scopes = ThreadLocal.withInitial(Scopes::new);
+
+  private OffHeap() {
+  }
+
+  @Override
+  public String toString() {
+    return "offheap";
+  }
+
+  // Shared, not confined: the pack can be handed to another thread
+  static OffHeapPack allocate(int size, double fill) {
+    Scopes current = scopes.get();
+    Arena arena = Arena.ofShared();
+    OffHeapPack pack = new OffHeapPack(arena, size, fill);
+    current.arenas.add(arena);
+    current.owners.add(current.depth);
+    return pack;
+  }
+
+  public static void enterScope() {
+    scopes.get().depth++;
+  }
+
+  public static void exitScope() {
+    Scopes current = scopes.get();
+    freeAbove(current, current.depth - 1);
+    current.depth--;
+  }
+
+  // send(): the pack no longer belongs to a block of this thread. False when
+  // none of them owned it (a pack made elsewhere, just passed along).
+  static boolean release(OffHeapPack pack) {
+    Scopes current = scopes.get();
+    int i = current.arenas.lastIndexOf(pack.arena);
+    if (i < 0) {
+      return false;
+    }
+    current.arenas.remove(i);
+    current.owners.remove(i);
+    return true;
+  }
+
+  // receive(): ...it belongs to the block it was received in instead
+  static void adopt(OffHeapPack pack) {
+    Scopes current = scopes.get();
+    current.arenas.add(pack.arena);
+    current.owners.add(current.depth);
+  }
+
+  // A tail call "return f(x)" leaves the blocks it's in before f runs, and x
+  // may be a pack one of them made: what they own goes to the block the
+  // function was called from instead, and is freed when that one ends.
+  // (Public for the jars too.)
+  public static void handOver(int blocks) {
+    Scopes current = scopes.get();
+    List<Integer> owners = current.owners;
+    int caller = current.depth - blocks;
+    // The newest arenas are always the innermost blocks'
+    for (int i = owners.size() - 1; i >= 0 && owners.get(i) > caller; i--) {
+      owners.set(i, caller);
+    }
+  }
+
+  // After a runtime error: whatever blocks were running are gone now
+  public static void unwind() {
+    Scopes current = scopes.get();
+    freeAbove(current, 0);
+    current.depth = 0;
+  }
+
+  // The program is over
+  public static void closeAll() {
+    Scopes current = scopes.get();
+    freeAbove(current, -1);
+    current.depth = 0;
+  }
+
+  // Frees every arena owned by a block deeper than the given depth.
+  // They're always the newest ones, since blocks end in reverse order.
+  private static void freeAbove(Scopes current, int keepDepth) {
+    List<Integer> owners = current.owners;
+    while (!owners.isEmpty() && owners.get(owners.size() - 1) > keepDepth) {
+      owners.remove(owners.size() - 1);
+      current.arenas.remove(current.arenas.size() - 1).close();
+    }
+  }
+}
@@ -0,0 +1,109 @@
+package com.bimbok.compiler;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+// A number pack that lives outside the Java heap ("pack(n, 0, offheap)"), for
+// data the heap can't hold. Elements are read and written in place; nothing
+// is ever copied back onto the heap.
+final class OffHeapPack extends AbstractList<Object> implements RandomAccess {
+  private final MemorySegment segment;
+  private final int size;
+  // Whoever owns it frees it, see OffHeap
+  final Arena arena;
+
+  OffHeapPack(Arena arena, int size, double fill) {
+    this.arena = arena;
+    this.size = size;
+    try {
+      this.segment = arena.allocate(ValueLayout.JAVA_DOUBLE.byteSize() * size, ValueLayout.JAVA_DOUBLE.byteAlignment());
+    } catch (OutOfMemoryError full) {
+      // The JVM caps native memory at -XX:MaxDirectMemorySize (by default the heap size)
+      arena.close();
+      throw new RuntimeException("Not enough memory for an off-heap pack of " + size + " numbers.");
+    }
+    if (fill != 0 || Double.doubleToRawLongBits(fill) != 0) {
+      for (long i = 0; i < size; i++) {
+        segment.setAtIndex(ValueLayout.JAVA_DOUBLE, i, fill);
+      }
+    }
+  }
+
+  double getNumber(int index) {
+    try {
+      return segment.getAtIndex(ValueLayout.JAVA_DOUBLE, index);
+    } catch (IllegalStateException closed) {
+      throw freed();
+    }
+  }
+
+  void setNumber(int index, double value) {
+    try {
+      segment.setAtIndex(ValueLayout.JAVA_DOUBLE, index, value);
+    } catch (IllegalStateException closed) {
+      throw freed();
+    }
+  }
+
+  // sort(): a heapsort, in place. Slower than the parallel sort a heap pack
+  // gets, but the numbers never have to fit on the heap.
+  // (Double.compare is the order Arrays.sort uses: -0 before 0, NaN last.)
+  void sort() {
+    for (int i = size / 2 - 1; i >= 0; i--) {
+      siftDown(i, size);
+    }
+    for (int end = size - 1; end > 0; end--) {
+      double largest = getNumber(0);
+      setNumber(0, getNumber(end));
+      setNumber(end, largest);
+      siftDown(0, end);
+    }
+  }
+
+  private void siftDown(int root, int end) {
+    double value = getNumber(root);
+    for (;;) {
+      int child = 2 * root + 1;
+      if (child >= end) {
+        break;
+      }
+      if (child + 1 < end && Double.compare(getNumber(child + 1), getNumber(child)) > 0) {
+        child++;
+      }
+      double larger = getNumber(child);
+      if (Double.compare(larger, value) <= 0) {
+        break;
+      }
+      setNumber(root, larger);
+      root = child;
+    }
+    setNumber(root, value);
+  }
+
+  private static RuntimeException freed() {
+    return new RuntimeException("This off-heap pack was already freed (its block has ended).");
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public Object get(int index) {
+    return getNumber(index);
+  }
+
+  @Override
+  public Object set(int index, Object value) {
+    if (!(value instanceof Double)) {
+      throw new RuntimeException("Off-heap packs can only hold numbers.");
+    }
+    double old = getNumber(index);
+    setNumber(index, (double) value);
+    return old;
+  }
+}
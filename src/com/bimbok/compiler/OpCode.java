@@ -0,0 +1,134 @@
+package com.bimbok.compiler;
+
+// The instruction set of the bytecode VM. Operands follow the opcode in the
+// code array, one int each, so the VM never has to stitch bytes back together.
+final class OpCode {
+  private OpCode() {
+  }
+
+  // --- Values ---
+  static final int CONSTANT = 0; // constant index -> push it
+  static final int NIL = 1;
+  static final int TRUE = 2;
+  static final int FALSE = 3;
+  static final int POP = 4;
+  static final int DUP = 5;
+
+  // --- Variables ---
+  static final int GET_LOCAL = 6; // slot
+  static final int SET_LOCAL = 7; // slot, leaves the value on the stack ("a = b = 5")
+  static final int STORE_LOCAL = 8; // slot, pops the value
+  static final int GET_GLOBAL = 9; // slot, name constant (for "Undefined variable")
+  static final int SET_GLOBAL = 10; // slot, name constant (for the par loop error)
+  static final int STORE_GLOBAL = 11; // slot, name constant
+
+  // --- Math & logic ---
+  static final int ADD = 12;
+  static final int SUBTRACT = 13;
+  static final int MULTIPLY = 14;
+  static final int DIVIDE = 15;
+  static final int MODULO = 16;
+  static final int GREATER = 17;
+  static final int GREATER_EQUAL = 18;
+  static final int LESS = 19;
+  static final int LESS_EQUAL = 20;
+  static final int EQUAL = 21;
+  static final int NOT_EQUAL = 22;
+  static final int NEGATE = 23;
+  static final int NOT = 24;
+
+  // --- Control flow ---
+  static final int JUMP = 25; // forward offset
+  static final int JUMP_IF_FALSE = 26; // forward offset, pops the condition
+  static final int LOOP = 27; // backward offset
+
+  // --- "from start to end as i" ---
+  // The counter and the end are two hidden number locals. variable is the
+  // loop variable's number operand, or -1 when it isn't numeric: then the
+  // body starts by storing the counter into it itself.
+  static final int FROM_INIT = 28; // slot: pops end and start into slot and slot + 1
+  static final int FROM_TEST = 29; // slot, variable, exit offset: jumps out if counter > end, else counter -> variable
+  // slot, variable, back offset: counter++, and while it's <= end, counter -> variable and jump back
+  static final int FROM_LOOP = 30;
+
+  // --- Statements ---
+  static final int PRINT = 31;
+  static final int INPUT = 32; // 1 if a prompt is on the stack -> pushes what was read
+
+  // --- Packs ---
+  static final int PACK = 33; // element count
+  static final int INDEX_GET = 34;
+  static final int INDEX_SET = 35;
+
+  static final int RETURN = 40; // end of the script
+
+  // --- Superinstructions: "if a < b" / "while a < b" without building a Boolean ---
+  static final int JUMP_IF_NOT_GREATER = 36; // forward offset, pops both sides
+  static final int JUMP_IF_NOT_GREATER_EQUAL = 37;
+  static final int JUMP_IF_NOT_LESS = 38;
+  static final int JUMP_IF_NOT_LESS_EQUAL = 39;
+
+  // --- Calls ---
+  static final int CALL = 41; // argument count: callee and arguments -> result
+  static final int SCOPE_ENTER = 42; // a block that might make off-heap packs starts (see OffHeap)
+  static final int SCOPE_EXIT = 43; // ...and ends, freeing them
+  static final int RETURN_VALUE = 44; // leave a function, its value is on the stack
+  // argument count, then how many off-heap scopes the return leaves: "return
+  // f(x)", f takes over this frame. Always followed by those SCOPE_EXITs and
+  // a RETURN_VALUE, for when the VM makes it a plain CALL instead.
+  static final int TAIL_CALL = 45;
+
+  // --- "par from" ---
+  // The VM runs it as a plain loop, but between these a function the body
+  // calls can't set a global or read input, like on the tree-walker
+  static final int PAR_ENTER = 46;
+  static final int PAR_EXIT = 47;
+
+  // offset past the body, which follows and ends in a RETURN: starts a task
+  // running the body, and jumps over it
+  static final int SPAWN = 48;
+
+  // --- Numbers ---
+  // For what the TypeInference proved only ever holds numbers: worked out
+  // straight in the double twins, no stack in between. Their operands are
+  // number operands (below), each naming a local, a global or a constant.
+  static final int NUM_MOVE = 49; // target, source
+  static final int NUM_ADD = 50; // target, a, b
+  static final int NUM_SUBTRACT = 51;
+  static final int NUM_MULTIPLY = 52;
+  static final int NUM_DIVIDE = 53;
+  static final int NUM_MODULO = 54;
+  static final int NUM_NEGATE = 55; // target, a
+  static final int NUM_POP = 56; // target: off the stack (the usual cast error if it isn't a number)
+  // slot, name constant, source: a function setting a numeric global (checked like SET_GLOBAL)
+  static final int NUM_SET_GLOBAL = 57;
+  // a, b, offset: "if a < b" and friends, which jump when it's false...
+  static final int NUM_JUMP_IF_NOT_GREATER = 58;
+  static final int NUM_JUMP_IF_NOT_GREATER_EQUAL = 59;
+  static final int NUM_JUMP_IF_NOT_LESS = 60;
+  static final int NUM_JUMP_IF_NOT_LESS_EQUAL = 61;
+  static final int NUM_JUMP_IF_EQUAL = 62;
+  static final int NUM_JUMP_IF_NOT_EQUAL = 63;
+  // ...and "while a < b", tested at the bottom of the loop, which jumps back when it's true
+  static final int NUM_JUMP_IF_GREATER = 64;
+  static final int NUM_JUMP_IF_GREATER_EQUAL = 65;
+  static final int NUM_JUMP_IF_LESS = 66;
+  static final int NUM_JUMP_IF_LESS_EQUAL = 67;
+  // index: INDEX_GET and INDEX_SET with the index as a number operand
+  static final int INDEX_GET_NUMBER = 68;
+  static final int INDEX_SET_NUMBER = 69;
+
+  // A number operand: index << 2 | kind
+  static final int LOCAL = 0; // a slot of the frame
+  static final int GLOBAL = 1; // a global slot
+  static final int CONSTANT_NUMBER = 2; // a constant
+  // A slot holding any value, like a parameter: read with the cast the
+  // Interpreter does, and the same error if it isn't a number
+  static final int LOCAL_VALUE = 3;
+  // A target is never a constant, so there kind 2 means "push it" instead
+  static final int PUSH = 2;
+
+  static int operand(int kind, int index) {
+    return index << 2 | kind;
+  }
+}
@@ -0,0 +1,413 @@
+package com.bimbok.compiler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Runs right after the Parser and hands back a simpler tree:
+//  - "(2 * 60) * 1000" becomes 120000 (Binary/Unary/Logical over literals)
+//  - a "say" constant nobody ever reassigns is replaced by its value where it's read
+//  - "if (false) {...}" loses the branch that can't run
+//  - Grouping nodes are dropped, the tree already holds the precedence
+//
+// It works on names, the same way the Resolver will, so it has to make the
+// same scope decisions: a "say" declares in the innermost scope, anything
+// else looks outwards and falls back to an implicit global.
+//
+// Anything that would fail at run time ("a" - 1) is left alone, so the error
+// still happens when (and if) that line runs.
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+  private static class Variable {
+    final Scope owner;
+    int writes = 0;
+    // Index of the "say" in its scope's statement list, -1 if it isn't sitting right there
+    int sayIndex = -1;
+    // A read that might come before the "say" (it would see "Undefined variable")
+    boolean readEarly = false;
+    Object value;
+    boolean known = false;
+
+    Variable(Scope owner) {
+      this.owner = owner;
+    }
+
+    boolean isConstant() {
+      return writes == 1 && sayIndex >= 0 && !readEarly;
+    }
+  }
+
+  private static class Scope {
+    final Map<String, Variable> names = new HashMap<>();
+    // Which statement of this scope's list we're in, and that statement itself
+    int index = -1;
+    Stmt current;
+  }
+
+  // Only used by the first pass. The second one looks variables up in found.
+  private final List<Scope> scopes = new ArrayList<>();
+  private final Map<Object, Variable> found = new IdentityHashMap<>();
+  private boolean rewriting = false;
+
+  List<Stmt> optimize(List<Stmt> statements) {
+    // Pass 1: count the writes to every variable and see where it's read
+    scopes.add(new Scope());
+    walk(statements);
+    scopes.clear();
+
+    // Pass 2: rebuild the tree
+    rewriting = true;
+    return walk(statements);
+  }
+
+  private List<Stmt> walk(List<Stmt> statements) {
+    List<Stmt> result = new ArrayList<>();
+    for (int i = 0; i < statements.size(); i++) {
+      if (!rewriting) {
+        Scope scope = scopes.get(scopes.size() - 1);
+        scope.index = i;
+        scope.current = statements.get(i);
+      }
+      Stmt statement = statements.get(i).accept(this);
+      if (statement != null) {
+        result.add(statement);
+      }
+    }
+    return result;
+  }
+
+  private Expr optimize(Expr expr) {
+    return expr == null ? null : expr.accept(this);
+  }
+
+  // A statement that is itself a branch or a loop body can't just disappear
+  private Stmt optimizeBranch(Stmt stmt) {
+    Stmt result = stmt.accept(this);
+    return result != null ? result : sameLine(stmt, new Stmt.Block(new ArrayList<>()));
+  }
+
+  // A rebuilt statement still starts where the original did
+  private static <T extends Stmt> T sameLine(Stmt original, T rebuilt) {
+    rebuilt.line = original.line;
+    return rebuilt;
+  }
+
+  // --- Scopes (same rules as the Resolver) ---
+
+  private Variable declare(Token name) {
+    Scope scope = scopes.get(scopes.size() - 1);
+    Variable variable = scope.names.get(name.lexeme);
+    if (variable == null) {
+      variable = new Variable(scope);
+      scope.names.put(name.lexeme, variable);
+    }
+    return variable;
+  }
+
+  private Variable lookup(Token name) {
+    for (int i = scopes.size() - 1; i >= 0; i--) {
+      Variable variable = scopes.get(i).names.get(name.lexeme);
+      if (variable != null) {
+        return variable;
+      }
+    }
+
+    // An implicit global (or one from an earlier REPL line): never a constant
+    Variable variable = new Variable(scopes.get(0));
+    variable.writes = 2;
+    scopes.get(0).names.put(name.lexeme, variable);
+    return variable;
+  }
+
+  // --- Statements ---
+
+  @Override
+  public Stmt visitVarStmt(Stmt.Var stmt) {
+    Expr initializer = optimize(stmt.initializer);
+
+    if (!rewriting) {
+      Variable variable = declare(stmt.name);
+      variable.writes++;
+      Scope scope = scopes.get(scopes.size() - 1);
+      // Only a "say" right in the statement list is sure to have run before what follows it
+      if (scope.current == stmt && stmt.initializer != null) {
+        variable.sayIndex = scope.index;
+      }
+      found.put(stmt, variable);
+      return stmt;
+    }
+
+    Variable variable = found.get(stmt);
+    if (variable.isConstant() && initializer instanceof Expr.Literal) {
+      variable.value = ((Expr.Literal) initializer).value;
+      variable.known = true;
+    }
+    return sameLine(stmt, new Stmt.Var(stmt.name, initializer));
+  }
+
+  @Override
+  public Stmt visitInputStmt(Stmt.Input stmt) {
+    Expr prompt = optimize(stmt.prompt);
+    if (!rewriting) {
+      lookup(stmt.name).writes++;
+      return stmt;
+    }
+    return sameLine(stmt, new Stmt.Input(stmt.name, prompt));
+  }
+
+  @Override
+  public Stmt visitFromStmt(Stmt.From stmt) {
+    Expr start = optimize(stmt.start);
+    Expr end = optimize(stmt.end);
+    // The loop variable goes in the enclosing scope, and it changes every time round
+    if (!rewriting) {
+      declare(stmt.loopVar).writes += 2;
+    }
+    Stmt body = optimizeBranch(stmt.body);
+    return rewriting ? sameLine(stmt, new Stmt.From(start, end, stmt.loopVar, body, stmt.parallel)) : stmt;
+  }
+
+  @Override
+  public Stmt visitWhileStmt(Stmt.While stmt) {
+    Expr condition = optimize(stmt.condition);
+    Stmt body = optimizeBranch(stmt.body);
+    return rewriting ? sameLine(stmt, new Stmt.While(condition, body)) : stmt;
+  }
+
+  @Override
+  public Stmt visitSpawnStmt(Stmt.Spawn stmt) {
+    Stmt body = optimizeBranch(stmt.body);
+    return rewriting ? sameLine(stmt, new Stmt.Spawn(body)) : stmt;
+  }
+
+  @Override
+  public Stmt visitIfStmt(Stmt.If stmt) {
+    Expr condition = optimize(stmt.condition);
+
+    // The condition is known: only one branch can ever run
+    if (rewriting && condition instanceof Expr.Literal) {
+      if (Values.isTruthy(((Expr.Literal) condition).value)) {
+        return stmt.thenBranch.accept(this);
+      }
+      return stmt.elseBranch != null ? stmt.elseBranch.accept(this) : null;
+    }
+
+    Stmt thenBranch = optimizeBranch(stmt.thenBranch);
+    Stmt elseBranch = stmt.elseBranch != null ? optimizeBranch(stmt.elseBranch) : null;
+    return rewriting ? sameLine(stmt, new Stmt.If(condition, thenBranch, elseBranch)) : stmt;
+  }
+
+  @Override
+  public Stmt visitBlockStmt(Stmt.Block stmt) {
+    if (rewriting) {
+      return sameLine(stmt, new Stmt.Block(walk(stmt.statements)));
+    }
+    scopes.add(new Scope());
+    walk(stmt.statements);
+    scopes.remove(scopes.size() - 1);
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitFunctionStmt(Stmt.Function stmt) {
+    if (rewriting) {
+      return sameLine(stmt, new Stmt.Function(stmt.name, stmt.params, walk(stmt.body), stmt.memoSize));
+    }
+    // Neither the function nor its parameters are ever constants: a
+    // parameter is written by every call
+    declare(stmt.name).writes += 2;
+    scopes.add(new Scope());
+    for (Token param : stmt.params) {
+      declare(param).writes += 2;
+    }
+    walk(stmt.body);
+    scopes.remove(scopes.size() - 1);
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitReturnStmt(Stmt.Return stmt) {
+    Expr value = optimize(stmt.value);
+    return rewriting ? sameLine(stmt, new Stmt.Return(stmt.keyword, value)) : stmt;
+  }
+
+  @Override
+  public Stmt visitPrintStmt(Stmt.Print stmt) {
+    Expr expression = optimize(stmt.expression);
+    return rewriting ? sameLine(stmt, new Stmt.Print(expression)) : stmt;
+  }
+
+  @Override
+  public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+    Expr expression = optimize(stmt.expression);
+    return rewriting ? sameLine(stmt, new Stmt.Expression(expression)) : stmt;
+  }
+
+  // --- Expressions ---
+
+  @Override
+  public Expr visitVariableExpr(Expr.Variable expr) {
+    if (!rewriting) {
+      Variable variable = lookup(expr.name);
+      found.put(expr, variable);
+      if (variable.owner.index <= variable.sayIndex) {
+        variable.readEarly = true;
+      }
+      return expr;
+    }
+
+    Variable variable = found.get(expr);
+    if (variable.isConstant() && variable.known) {
+      return new Expr.Literal(variable.value);
+    }
+    return new Expr.Variable(expr.name);
+  }
+
+  @Override
+  public Expr visitAssignExpr(Expr.Assign expr) {
+    Expr value = optimize(expr.value);
+    if (!rewriting) {
+      lookup(expr.name).writes++;
+      return expr;
+    }
+    return new Expr.Assign(expr.name, value);
+  }
+
+  @Override
+  public Expr visitGroupingExpr(Expr.Grouping expr) {
+    // The parentheses already did their job when the tree was built
+    return optimize(expr.expression);
+  }
+
+  @Override
+  public Expr visitLiteralExpr(Expr.Literal expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitBinaryExpr(Expr.Binary expr) {
+    Expr left = optimize(expr.left);
+    Expr right = optimize(expr.right);
+    if (!rewriting) {
+      return expr;
+    }
+
+    if (left instanceof Expr.Literal && right instanceof Expr.Literal) {
+      Object a = ((Expr.Literal) left).value;
+      Object b = ((Expr.Literal) right).value;
+      try {
+        Object folded = fold(expr.operator.type, a, b);
+        if (folded != null) {
+          return new Expr.Literal(folded);
+        }
+      } catch (RuntimeException error) {
+        // Let it fail when it runs, like it always did
+      }
+    }
+    return new Expr.Binary(left, expr.operator, right);
+  }
+
+  // Same rules as Interpreter.genericBinary; null if it isn't something we fold
+  private static Object fold(TokenType operator, Object left, Object right) {
+    switch (operator) {
+      case MINUS:
+        return (double) left - (double) right;
+      case STAR:
+        return (double) left * (double) right;
+      case SLASH:
+        return (double) left / (double) right;
+      case MODULO:
+        return Values.remainder((double) left, (double) right);
+      case PLUS:
+        // A literal is always a plain String
+        Object sum = Values.add(left, right);
+        return sum instanceof Rope ? sum.toString() : sum;
+      case GREATER:
+        return (double) left > (double) right;
+      case GREATER_EQUAL:
+        return (double) left >= (double) right;
+      case LESS:
+        return (double) left < (double) right;
+      case LESS_EQUAL:
+        return (double) left <= (double) right;
+      case BANG_EQUAL:
+        return !Values.isEqual(left, right);
+      case EQUAL_EQUAL:
+        return Values.isEqual(left, right);
+      default:
+        return null;
+    }
+  }
+
+  @Override
+  public Expr visitUnaryExpr(Expr.Unary expr) {
+    Expr right = optimize(expr.right);
+    if (!rewriting) {
+      return expr;
+    }
+
+    if (right instanceof Expr.Literal) {
+      Object value = ((Expr.Literal) right).value;
+      if (expr.operator.type == TokenType.MINUS && value instanceof Double) {
+        return new Expr.Literal(-(double) value);
+      }
+      if (expr.operator.type == TokenType.BANG) {
+        return new Expr.Literal(!Values.isTruthy(value));
+      }
+    }
+    return new Expr.Unary(expr.operator, right);
+  }
+
+  @Override
+  public Expr visitLogicalExpr(Expr.Logical expr) {
+    Expr left = optimize(expr.left);
+
+    // "false and x" never looks at x, "true and x" is just x
+    if (rewriting && left instanceof Expr.Literal) {
+      boolean truthy = Values.isTruthy(((Expr.Literal) left).value);
+      boolean isOr = expr.operator.type == TokenType.OR;
+      if (truthy == isOr) {
+        return left;
+      }
+      return optimize(expr.right);
+    }
+
+    Expr right = optimize(expr.right);
+    return rewriting ? new Expr.Logical(left, expr.operator, right) : expr;
+  }
+
+  @Override
+  public Expr visitPackLiteralExpr(Expr.PackLiteral expr) {
+    List<Expr> elements = new ArrayList<>();
+    for (Expr element : expr.elements) {
+      elements.add(optimize(element));
+    }
+    return rewriting ? new Expr.PackLiteral(elements) : expr;
+  }
+
+  @Override
+  public Expr visitIndexGetExpr(Expr.IndexGet expr) {
+    Expr object = optimize(expr.object);
+    Expr index = optimize(expr.index);
+    return rewriting ? new Expr.IndexGet(object, expr.bracket, index) : expr;
+  }
+
+  @Override
+  public Expr visitIndexSetExpr(Expr.IndexSet expr) {
+    Expr object = optimize(expr.object);
+    Expr index = optimize(expr.index);
+    Expr value = optimize(expr.value);
+    return rewriting ? new Expr.IndexSet(object, expr.bracket, index, value) : expr;
+  }
+
+  @Override
+  public Expr visitCallExpr(Expr.Call expr) {
+    Expr callee = optimize(expr.callee);
+    List<Expr> arguments = new ArrayList<>();
+    for (Expr argument : expr.arguments) {
+      arguments.add(optimize(argument));
+    }
+    return rewriting ? new Expr.Call(callee, expr.paren, arguments) : expr;
+  }
+}
@@ -0,0 +1,93 @@
+package com.bimbok.compiler;
+
+import java.io.BufferedOutputStream;
+import java.io.Console;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Where "out" (and everything else on stdout) goes. The stock System.out
+// flushes on every newline, which is one write() syscall per "out": a script
+// printing millions of lines spent most of its time there.
+//
+// install() swaps in a stream with a big buffer that is flushed:
+//  - when the program ends (normally, by System.exit or by an error)
+//  - before we wait for input, so a prompt is always on screen
+//  - every SIZUKA_FLUSH_MS milliseconds (100 if not set), so a long running
+//    script still shows its progress. 0 goes back to flushing every line.
+final class Output {
+  private static final int BUFFER_SIZE = 1 << 16;
+  private static final long DEFAULT_FLUSH_MS = 100;
+
+  // For isTerminal()
+  static final int STDIN = 0;
+  static final int STDOUT = 1;
+
+  private static boolean installed = false;
+
+  private Output() {
+  }
+
+  // Is this one stream (STDIN or STDOUT) a terminal? Console.isTerminal()
+  // only says whether both are, so "cat data | sizuka s.siz" would lose its
+  // colors. On Linux the file descriptor's link says where it goes; anywhere
+  // else it falls back to asking about both.
+  static boolean isTerminal(int fd) {
+    try {
+      String target = Files.readSymbolicLink(Path.of("/proc/self/fd/" + fd)).toString();
+      return target.startsWith("/dev/pts/") || target.startsWith("/dev/tty") || target.equals("/dev/console");
+    } catch (IOException | UnsupportedOperationException | SecurityException e) {
+      Console console = System.console();
+      return console != null && console.isTerminal();
+    }
+  }
+
+  static synchronized void install() {
+    if (installed) {
+      return;
+    }
+    installed = true;
+
+    long interval = flushInterval();
+    PrintStream buffered = new PrintStream(
+        new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), BUFFER_SIZE),
+        interval == 0, System.out.charset());
+    System.setOut(buffered);
+
+    Runtime.getRuntime().addShutdownHook(new Thread(buffered::flush));
+    if (interval > 0) {
+      Thread flusher = new Thread(() -> {
+        try {
+          for (;;) {
+            Thread.sleep(interval);
+            buffered.flush();
+          }
+        } catch (InterruptedException e) {
+          // Only happens when the JVM is on its way out, the hook flushes
+        }
+      }, "sizuka-flush");
+      flusher.setDaemon(true);
+      flusher.start();
+    }
+  }
+
+  // Everything written so far goes out now
+  static void flush() {
+    System.out.flush();
+  }
+
+  private static long flushInterval() {
+    String configured = System.getenv("SIZUKA_FLUSH_MS");
+    if (configured != null) {
+      try {
+        return Math.max(0, Long.parseLong(configured.trim()));
+      } catch (NumberFormatException e) {
+        // Not a number: use the default
+      }
+    }
+    return DEFAULT_FLUSH_MS;
+  }
+}
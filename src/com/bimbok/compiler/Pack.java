@@ -0,0 +1,259 @@
+package com.bimbok.compiler;
+
+import java.lang.invoke.VarHandle;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+// A Sizuka pack. While everything in it is a number it keeps them in a plain
+// double[]: 8 bytes an element instead of a pointer plus a Double object.
+// The first non-number stored switches it to an Object[] for good.
+//
+// It's still a List, so printing ("[1.0, 2.0]") and == (element by element)
+// work exactly like the ArrayList packs did.
+//
+// The tasks of a par loop (or spawned ones) can write the same pack at once,
+// so the switch happens under the pack's lock, and every method reads the
+// field it uses once: a task may find numbers gone between two reads.
+final class Pack extends AbstractList<Object> implements RandomAccess {
+  // Exactly one of these is in use: numbers while the pack is all numbers.
+  // Both are null for a moment while generalize() switches them over.
+  private double[] numbers;
+  private Object[] objects;
+
+  // Set before the first par loop or spawn starts its tasks (Thread.start
+  // and the pool's fork make sure they see it). Until then no pack is ever
+  // written from two threads, and a number write skips the fence below.
+  static boolean shared = false;
+
+  private Pack(double[] numbers, Object[] objects) {
+    this.numbers = numbers;
+    this.objects = objects;
+  }
+
+  // Takes ownership of the array
+  static Pack of(Object[] elements) {
+    for (Object element : elements) {
+      if (!(element instanceof Double)) {
+        for (int i = 0; i < elements.length; i++) {
+          elements[i] = flatten(elements[i]);
+        }
+        return new Pack(null, elements);
+      }
+    }
+
+    double[] numbers = new double[elements.length];
+    for (int i = 0; i < numbers.length; i++) {
+      numbers[i] = (double) elements[i];
+    }
+    return new Pack(numbers, null);
+  }
+
+  // pack(size, fill)
+  static Pack filled(int size, Object fill) {
+    if (fill instanceof Double) {
+      double[] numbers = new double[size];
+      Arrays.fill(numbers, (double) fill);
+      return new Pack(numbers, null);
+    }
+    Object[] objects = new Object[size];
+    Arrays.fill(objects, flatten(fill));
+    return new Pack(null, objects);
+  }
+
+  boolean isNumeric() {
+    return numbers != null;
+  }
+
+  // Only when isNumeric(). (Another task may have switched it since: then
+  // the element is read from objects.)
+  double getNumber(int index) {
+    double[] numbers = this.numbers;
+    if (numbers != null) {
+      return numbers[index];
+    }
+    return (double) objects()[index];
+  }
+
+  void setNumber(int index, double value) {
+    double[] numbers = this.numbers;
+    if (numbers != null) {
+      numbers[index] = value;
+      if (shared) {
+        recheck(numbers, index, value);
+      }
+    } else {
+      objects()[index] = value;
+    }
+  }
+
+  @Override
+  public int size() {
+    double[] numbers = this.numbers;
+    return numbers != null ? numbers.length : objects().length;
+  }
+
+  @Override
+  public Object get(int index) {
+    double[] numbers = this.numbers;
+    if (numbers != null) {
+      return numbers[index];
+    }
+    return objects()[index];
+  }
+
+  @Override
+  public Object set(int index, Object value) {
+    Object old = get(index);
+    if (value instanceof Double) {
+      setNumber(index, (double) value);
+      return old;
+    }
+    if (numbers != null) {
+      synchronized (this) {
+        generalize();
+        objects[index] = flatten(value);
+      }
+      return old;
+    }
+    objects()[index] = flatten(value);
+    return old;
+  }
+
+  // sort(): a number pack goes to Arrays.parallelSort, which sorts small
+  // arrays in place and splits big ones over the common ForkJoinPool.
+  // Otherwise it has to be all numbers or all strings.
+  void sort() {
+    double[] numbers = this.numbers;
+    if (numbers != null) {
+      Arrays.parallelSort(numbers);
+      return;
+    }
+    Object[] objects = objects();
+    boolean allNumbers = true;
+    boolean allStrings = true;
+    for (Object element : objects) {
+      allNumbers &= element instanceof Double;
+      allStrings &= element instanceof String;
+    }
+    if (allNumbers) {
+      Arrays.parallelSort(objects, (a, b) -> Double.compare((double) a, (double) b));
+    } else if (allStrings) {
+      Arrays.parallelSort(objects, (a, b) -> ((String) a).compareTo((String) b));
+    } else {
+      throw new RuntimeException("sort() needs a pack of all numbers or all strings.");
+    }
+  }
+
+  void reverse() {
+    double[] numbers = this.numbers;
+    if (numbers != null) {
+      for (int i = 0, j = numbers.length - 1; i < j; i++, j--) {
+        double swap = numbers[i];
+        numbers[i] = numbers[j];
+        numbers[j] = swap;
+      }
+      return;
+    }
+    Object[] objects = objects();
+    for (int i = 0, j = objects.length - 1; i < j; i++, j--) {
+      Object swap = objects[i];
+      objects[i] = objects[j];
+      objects[j] = swap;
+    }
+  }
+
+  void fill(Object value) {
+    double[] numbers = this.numbers;
+    if (numbers != null && value instanceof Double) {
+      Arrays.fill(numbers, (double) value);
+      return;
+    }
+    if (numbers != null) {
+      synchronized (this) {
+        generalize();
+      }
+    }
+    Arrays.fill(objects(), flatten(value));
+  }
+
+  // Packs hold plain Strings, so comparing two packs (String.equals) still works
+  private static Object flatten(Object value) {
+    return value instanceof Rope ? value.toString() : value;
+  }
+
+  // From here on it holds anything. Only under the lock, and only the first
+  // task to get there switches it.
+  //
+  // numbers goes null before the copy, with a fence in between; a number
+  // write fences between writing and looking at numbers again (recheck). So
+  // either the copy sees the write or the writer sees numbers gone, and
+  // writes again into objects. Meanwhile anyone finding both null waits for
+  // the lock in objects().
+  private void generalize() {
+    double[] numbers = this.numbers;
+    if (numbers == null) {
+      return;
+    }
+    this.numbers = null;
+    VarHandle.fullFence();
+    Object[] objects = new Object[numbers.length];
+    for (int i = 0; i < numbers.length; i++) {
+      objects[i] = numbers[i];
+    }
+    VarHandle.releaseFence();
+    this.objects = objects;
+  }
+
+  private void recheck(double[] numbers, int index, double value) {
+    VarHandle.fullFence();
+    if (this.numbers != numbers) {
+      synchronized (this) {
+        objects[index] = value;
+      }
+    }
+  }
+
+  private Object[] objects() {
+    Object[] objects = this.objects;
+    if (objects == null) {
+      synchronized (this) {
+        objects = this.objects;
+      }
+    }
+    return objects;
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    // Two number packs: compare the doubles directly (same rule as Double.equals)
+    double[] numbers = this.numbers;
+    double[] theirs = other instanceof Pack ? ((Pack) other).numbers : null;
+    if (numbers != null && theirs != null) {
+      if (theirs.length != numbers.length) {
+        return false;
+      }
+      for (int i = 0; i < numbers.length; i++) {
+        if (Double.doubleToLongBits(numbers[i]) != Double.doubleToLongBits(theirs[i])) {
+          return false;
+        }
+      }
+      return true;
+    }
+    return super.equals(other);
+  }
+
+  @Override
+  public int hashCode() {
+    double[] numbers = this.numbers;
+    if (numbers != null) {
+      // What List.hashCode would give for the boxed elements
+      int hash = 1;
+      for (double number : numbers) {
+        hash = 31 * hash + Double.hashCode(number);
+      }
+      return hash;
+    }
+    return Arrays.hashCode(objects());
+  }
+}
@@ -1,14 +1,29 @@
 package com.bimbok.compiler;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import static com.bimbok.compiler.TokenType.*;
 
 class Parser {
-  private final List<Token> tokens;
+  private final TokenStream tokens;
   private int current = 0;
-
-  Parser(List<Token> tokens) {
+  private boolean hadError = false;
+  // The last Token made by previous(), since it's often asked for twice
+  private int madeIndex = -1;
+  private Token made;
+  // Inside a function body, where "return" is allowed
+  private boolean inFunction = false;
+  // Inside the body of a "par from" or a "spawn": the names each of its
+  // blocks declared so far, innermost last. Those are the only variables the
+  // body may assign, everything else is shared with code running at the same
+  // time.
+  private List<Set<String>> parScopes = null;
+  // Which one we're in, for the errors: "a par loop" or "spawn"
+  private String parKind = null;
+
+  Parser(TokenStream tokens) {
     this.tokens = tokens;
   }
 
@@ -16,7 +31,7 @@ class Parser {
   List<Stmt> parse() {
     List<Stmt> statements = new ArrayList<>();
     while (!isAtEnd()) {
-      Stmt statement = declaration();
+      Stmt statement = declaration(true);
       if (statement != null) { // Only add it if it's real!
         statements.add(statement);
       }
@@ -24,13 +39,23 @@ class Parser {
     return statements;
   }
 
+  // True if parse() had to skip anything because of a syntax error
+  boolean hadError() {
+    return hadError;
+  }
+
   // --- Statement Layers ---
 
-  // 1. Declaration: "say a = 10" or just a statement
-  private Stmt declaration() {
+  // 1. Declaration: "say a = 10", "fun f() { ... }" / "memo fun f() { ... }" (only at
+  // the top level) or just a statement
+  private Stmt declaration(boolean topLevel) {
     try {
       if (match(SAY))
         return varDeclaration();
+      if (topLevel && match(FUN))
+        return function(0);
+      if (topLevel && match(MEMO))
+        return memoFunction();
       return statement();
     } catch (ParseError error) {
       synchronize(); // Panic mode recovery
@@ -40,20 +65,89 @@ class Parser {
 
   // Handle: say name = value
   private Stmt varDeclaration() {
-    Token name = consume(IDENTIFIER, "Expect variable name.");
+    consume(IDENTIFIER, "Expect variable name.");
+    Token name = previous();
 
     Expr initializer = null;
     if (match(EQUALS)) {
       initializer = expression();
     }
+    declareInPar(name);
 
-    return new Stmt.Var(name, initializer);
+    Stmt statement = new Stmt.Var(name, initializer);
+    statement.line = name.line;
+    return statement;
+  }
+
+  // Handle: memo fun name(a) { body } or memo(500) fun ... (at most 500 results kept)
+  private Stmt memoFunction() {
+    int size = Memo.DEFAULT_SIZE;
+    if (match(LEFT_PAREN)) {
+      consume(NUMBER, "Expect cache size after 'memo('.");
+      double value = (double) tokens.literal(current - 1);
+      if (value < 1 || value != Math.floor(value) || value > Integer.MAX_VALUE) {
+        throw error(previous(), "Cache size must be a whole number, at least 1.");
+      }
+      size = (int) value;
+      consume(RIGHT_PAREN, "Expect ')' after cache size.");
+    }
+    consume(FUN, "Expect 'fun' after 'memo'.");
+    return function(size);
+  }
+
+  // Handle: fun name(a, b) { body }
+  // memoSize: how many results to cache, 0 for a plain fun
+  private Stmt function(int memoSize) {
+    consume(IDENTIFIER, "Expect function name.");
+    Token name = previous();
+    consume(LEFT_PAREN, "Expect '(' after function name.");
+    List<Token> params = new ArrayList<>();
+    if (!check(RIGHT_PAREN)) {
+      do {
+        consume(IDENTIFIER, "Expect parameter name.");
+        Token param = previous();
+        // Parameter i is slot i of the frame, two of the same name can't both be
+        for (Token other : params) {
+          if (other.lexeme.equals(param.lexeme)) {
+            throw error(param, "Duplicate parameter '" + param.lexeme + "'.");
+          }
+        }
+        params.add(param);
+      } while (match(COMMA));
+    }
+    consume(RIGHT_PAREN, "Expect ')' after parameters.");
+    consume(LEFT_BRACE, "Expect '{' before function body.");
+
+    List<Stmt> body;
+    inFunction = true;
+    try {
+      body = block();
+    } finally {
+      inFunction = false;
+    }
+
+    Stmt statement = new Stmt.Function(name, params, body, memoSize);
+    statement.line = name.line;
+    return statement;
   }
 
   // 2. Statement: "out ..." or "1+1"
   private Stmt statement() {
+    int line = tokens.line(current);
+    Stmt statement = bareStatement();
+    statement.line = line;
+    return statement;
+  }
+
+  private Stmt bareStatement() {
     if (match(FROM))
-      return fromStatement();
+      return fromStatement(false);
+    if (match(PAR)) {
+      consume(FROM, "Expect 'from' after 'par'.");
+      return fromStatement(true);
+    }
+    if (match(SPAWN))
+      return new Stmt.Spawn(isolatedBody("spawn"));
     if (match(WHILE))
       return whileStatement();
     if (match(IF))
@@ -63,6 +157,10 @@ class Parser {
     if (match(LEFT_BRACE))
       return new Stmt.Block(block());
     if (match(IN)) return inputStatement();
+    if (match(RETURN))
+      return returnStatement();
+    if (check(FUN) || check(MEMO))
+      throw error(peek(), "Functions can only be declared at the top level.");
     return expressionStatement();
   }
 
@@ -74,6 +172,10 @@ class Parser {
 
   // Handle: in "Prompt" a OR in a
   private Stmt inputStatement() {
+    Token keyword = previous();
+    if (parScopes != null && !parKind.equals("spawn")) {
+      throw error(keyword, "Can't read input inside a par loop.");
+    }
     Expr prompt = null;
 
     // If we see a string immediately after 'in', save it as the prompt
@@ -82,20 +184,86 @@ class Parser {
     }
 
     // After the optional prompt, we MUST have the variable name
-    Token name = consume(IDENTIFIER, "Expect variable name after 'in'.");
+    consume(IDENTIFIER, "Expect variable name after 'in'.");
+    Token name = previous();
+    // A spawned task can wait on input, but only into its own variables
+    if (parScopes != null && !declaredInPar(name.lexeme)) {
+      throw error(name, sharedMessage(name));
+    }
 
     return new Stmt.Input(name, prompt);
   }
 
-  // Handle: from start to end as i { body }
-  private Stmt fromStatement() {
+  // Handle: return value?
+  private Stmt returnStatement() {
+    Token keyword = previous();
+    if (!inFunction) {
+      throw error(keyword, "Can't return from top-level code.");
+    }
+    if (parScopes != null) {
+      throw error(keyword, "Can't return from inside " + parKind + ".");
+    }
+
+    // The value is optional, and has to start on the same line as the "return"
+    Expr value = null;
+    if (!isAtEnd() && !check(RIGHT_BRACE) && tokens.line(current) == keyword.line) {
+      value = expression();
+    }
+    return new Stmt.Return(keyword, value);
+  }
+
+  // Handle: from start to end as i { body }, or par from ... (parallel)
+  private Stmt fromStatement(boolean parallel) {
     Expr start = expression();
     consume(TO, "Expect 'to' after start expression.");
     Expr end = expression();
     consume(AS, "Expect 'as' after end expression.");
-    Token loopVar = consume(IDENTIFIER, "Expect loop variable name.");
-    Stmt body = statement();
-    return new Stmt.From(start, end, loopVar, body);
+    consume(IDENTIFIER, "Expect loop variable name.");
+    Token loopVar = previous();
+    declareInPar(loopVar);
+    if (!parallel) {
+      return new Stmt.From(start, end, loopVar, statement(), false);
+    }
+    return new Stmt.From(start, end, loopVar, isolatedBody("a par loop"), true);
+  }
+
+  // The body of a par loop or a spawn. It starts with nothing of its own:
+  // even the variables of a par or spawn around it are shared.
+  private Stmt isolatedBody(String kind) {
+    List<Set<String>> outerScopes = parScopes;
+    String outerKind = parKind;
+    parScopes = new ArrayList<>();
+    parKind = kind;
+    try {
+      return statement();
+    } finally {
+      parScopes = outerScopes;
+      parKind = outerKind;
+    }
+  }
+
+  // A "say" or loop variable: if we're in a par or spawn body, one it may assign
+  private void declareInPar(Token name) {
+    if (parScopes != null && !parScopes.isEmpty()) {
+      parScopes.get(parScopes.size() - 1).add(name.lexeme);
+    }
+  }
+
+  // Assigning (or reading input into) a variable the body doesn't own
+  private String sharedMessage(Token name) {
+    if (parKind.equals("spawn")) {
+      return "Can't assign to '" + name.lexeme + "' inside spawn: send it over a channel instead.";
+    }
+    return "Can't assign to '" + name.lexeme + "' inside a par loop: every iteration shares it.";
+  }
+
+  private boolean declaredInPar(String name) {
+    for (Set<String> scope : parScopes) {
+      if (scope.contains(name)) {
+        return true;
+      }
+    }
+    return false;
   }
 
   // Handle: 1 + 1 (just calculating)
@@ -141,42 +309,116 @@ class Parser {
   // Handle: { declaration* }
   private List<Stmt> block() {
     List<Stmt> statements = new ArrayList<>();
+    List<Set<String>> scopes = parScopes;
+    if (scopes != null) {
+      scopes.add(new HashSet<>());
+    }
+    try {
+      while (!check(RIGHT_BRACE) && !isAtEnd()) {
+        Stmt statement = declaration(false);
+        if (statement != null) {
+          statements.add(statement);
+        }
+      }
 
-    while (!check(RIGHT_BRACE) && !isAtEnd()) {
-      Stmt statement = declaration();
-      if (statement != null) {
-        statements.add(statement);
+      consume(RIGHT_BRACE, "Expect '}' after block.");
+    } finally {
+      if (scopes != null) {
+        scopes.remove(scopes.size() - 1);
       }
     }
-
-    consume(RIGHT_BRACE, "Expect '}' after block.");
     return statements;
   }
 
-  // --- Expression Layers (Same as before) ---
+  // --- Expressions ---
+  // One precedence-climbing loop instead of a method per level: each
+  // binary operator's precedence comes from PRECEDENCE, so "a + b" costs
+  // one call, not a trip down or -> and -> equality -> ... -> primary.
+
+  private static final int NONE = 0;
+  private static final int ASSIGNMENT = 1; // =  (right to left)
+  private static final int OR_LEVEL = 2; // or
+  private static final int AND_LEVEL = 3; // and
+  private static final int EQUALITY = 4; // == !=
+  private static final int COMPARISON = 5; // > >= < <=
+  private static final int TERM = 6; // + -
+  private static final int FACTOR = 7; // * / %
+  private static final int UNARY = 8; // - !  (prefix, binds tighter than any of the above)
+
+  // How tightly each token binds as an infix operator, NONE if it isn't one
+  private static final int[] PRECEDENCE = new int[TokenType.values().length];
+
+  static {
+    PRECEDENCE[EQUALS.ordinal()] = ASSIGNMENT;
+    PRECEDENCE[OR.ordinal()] = OR_LEVEL;
+    PRECEDENCE[AND.ordinal()] = AND_LEVEL;
+    PRECEDENCE[BANG_EQUAL.ordinal()] = EQUALITY;
+    PRECEDENCE[EQUAL_EQUAL.ordinal()] = EQUALITY;
+    PRECEDENCE[GREATER.ordinal()] = COMPARISON;
+    PRECEDENCE[GREATER_EQUAL.ordinal()] = COMPARISON;
+    PRECEDENCE[LESS.ordinal()] = COMPARISON;
+    PRECEDENCE[LESS_EQUAL.ordinal()] = COMPARISON;
+    PRECEDENCE[PLUS.ordinal()] = TERM;
+    PRECEDENCE[MINUS.ordinal()] = TERM;
+    PRECEDENCE[STAR.ordinal()] = FACTOR;
+    PRECEDENCE[SLASH.ordinal()] = FACTOR;
+    PRECEDENCE[MODULO.ordinal()] = FACTOR;
+  }
 
-  private Expr term() {
-    Expr expr = factor();
-    while (match(PLUS, MINUS)) {
-      Token operator = previous();
-      Expr right = factor();
-      expr = new Expr.Binary(expr, operator, right);
-    }
-    return expr;
+  private Expr expression() {
+    return parsePrecedence(ASSIGNMENT);
   }
 
-  private Expr factor() {
+  // Parses an expression made of operators that bind at least as tightly as minimum
+  private Expr parsePrecedence(int minimum) {
     Expr expr = unary();
-    while (match(STAR, SLASH, MODULO)) {
-      Token operator = previous();
-      Expr right = unary();
-      expr = new Expr.Binary(expr, operator, right);
+
+    while (true) {
+      TokenType type = tokens.type(current);
+      int precedence = PRECEDENCE[type.ordinal()];
+      if (precedence == NONE || precedence < minimum) {
+        return expr;
+      }
+      advance();
+
+      if (type == EQUALS) {
+        expr = assignment(expr, current - 1);
+      } else {
+        Token operator = previous();
+        // Left to right: the right side may only hold tighter operators
+        Expr right = parsePrecedence(precedence + 1);
+        if (type == OR || type == AND) {
+          expr = new Expr.Logical(expr, operator, right);
+        } else {
+          expr = new Expr.Binary(expr, operator, right);
+        }
+      }
     }
-    return expr;
+  }
+
+  // Right after the "=": "a = b = 5" assigns right to left
+  private Expr assignment(Expr target, int equals) {
+    Expr value = parsePrecedence(ASSIGNMENT);
+
+    if (target instanceof Expr.Variable) {
+      Token name = ((Expr.Variable) target).name;
+      if (parScopes != null && !declaredInPar(name.lexeme)) {
+        throw error(name, sharedMessage(name));
+      }
+      return new Expr.Assign(name, value);
+    } else if (target instanceof Expr.IndexGet) {
+      Expr.IndexGet get = (Expr.IndexGet) target;
+      return new Expr.IndexSet(get.object, get.bracket, get.index, value);
+    }
+
+    // Only made into a Token now that it's an error
+    throw error(tokens.token(equals), "Invalid assignment target.");
   }
 
   private Expr unary() {
-    if (match(MINUS, BANG)) {
+    TokenType type = tokens.type(current);
+    if (type == MINUS || type == BANG) {
+      advance();
       Token operator = previous();
       Expr right = unary();
       return new Expr.Unary(operator, right);
@@ -193,6 +435,8 @@ class Parser {
         Expr index = expression();
         consume(RIGHT_BRACKET, "Expect ']' after pack index.");
         expr = new Expr.IndexGet(expr, bracket, index);
+      } else if (match(LEFT_PAREN)) {
+        expr = finishCall(expr);
       } else {
         break;
       }
@@ -201,6 +445,19 @@ class Parser {
     return expr;
   }
 
+  // Right after the "(" of "pack(10, 0)"
+  private Expr finishCall(Expr callee) {
+    List<Expr> arguments = new ArrayList<>();
+    if (!check(RIGHT_PAREN)) {
+      do {
+        arguments.add(expression());
+      } while (match(COMMA));
+    }
+    consume(RIGHT_PAREN, "Expect ')' after arguments.");
+    Token paren = previous();
+    return new Expr.Call(callee, paren, arguments);
+  }
+
   private Expr primary() {
     if (match(FALSE))
       return new Expr.Literal(false);
@@ -208,11 +465,12 @@ class Parser {
     if (match(TRUE))
       return new Expr.Literal(true);
 
-    if (match(STRING, NUMBER))
-      return new Expr.Literal(previous().literal);
+    // What a bare "return" gives, and receive() from a closed channel
+    if (match(NIL))
+      return new Expr.Literal(null);
 
-    if (match(NUMBER))
-      return new Expr.Literal(previous().literal);
+    if (match(STRING) || match(NUMBER))
+      return new Expr.Literal(tokens.literal(current - 1));
 
     // NEW: We can now read variables like "a" or "score"
     if (match(IDENTIFIER))
@@ -240,143 +498,85 @@ class Parser {
 
   // --- Helpers ---
 
-  private boolean match(TokenType... types) {
-    for (TokenType type : types) {
-      if (check(type)) {
-        advance();
-        return true;
-      }
+  private boolean match(TokenType type) {
+    if (check(type)) {
+      advance();
+      return true;
     }
     return false;
   }
 
-  private Token consume(TokenType type, String message) {
-    if (check(type))
-      return advance();
+  // Use previous() afterwards if you need the Token itself
+  private void consume(TokenType type, String message) {
+    if (check(type)) {
+      advance();
+      return;
+    }
     throw error(peek(), message);
   }
 
   private boolean check(TokenType type) {
     if (isAtEnd())
       return false;
-    return peek().type == type;
+    return tokens.type(current) == type;
   }
 
-  private Token advance() {
+  private void advance() {
     if (!isAtEnd())
       current++;
-    return previous();
   }
 
   private boolean isAtEnd() {
-    return peek().type == EOF;
+    return tokens.type(current) == EOF;
   }
 
+  // These two make a Token object, so only call them for tokens that end up
+  // in the tree (or in an error message)
   private Token peek() {
-    return tokens.get(current);
+    return tokens.token(current);
   }
 
   private Token previous() {
-    return tokens.get(current - 1);
+    if (madeIndex != current - 1) {
+      madeIndex = current - 1;
+      made = tokens.token(madeIndex);
+    }
+    return made;
   }
 
   private ParseError error(Token token, String message) {
     System.err.println("[Line " + token.line + "] Error: " + message);
+    hadError = true;
     return new ParseError();
   }
 
   private void synchronize() {
     advance();
     while (!isAtEnd()) {
-      if (previous().type == EOF)
+      if (tokens.type(current - 1) == EOF)
         return; // Simple recovery
-      switch (peek().type) {
+      switch (tokens.type(current)) {
         case SAY:
         case OUT:
         case IF:
         case ELSE:
+        case MEMO:
+        case PAR:
+        case SPAWN:
+        case RETURN:
           return;
+        case FUN:
+          // Not the "fun" of a "memo fun" the error was already about
+          TokenType before = tokens.type(current - 1);
+          if (before != MEMO && before != RIGHT_PAREN) {
+            return;
+          }
+          break;
       }
       advance();
     }
   }
 
-  // 1. Expression now starts at the top: Assignment
-  private Expr expression() {
-    return assignment();
-  }
-
-  private Expr assignment() {
-    Expr expr = or();
-
-    if (match(EQUALS)) {
-      Token equals = previous();
-      Expr value = assignment(); // Recursive for a = b = 5
-
-      if (expr instanceof Expr.Variable) {
-        Token name = ((Expr.Variable) expr).name;
-        return new Expr.Assign(name, value);
-      } else if (expr instanceof Expr.IndexGet) {
-        Expr.IndexGet get = (Expr.IndexGet) expr;
-        return new Expr.IndexSet(get.object, get.bracket, get.index, value);
-      }
-
-      throw error(equals, "Invalid assignment target.");
-    }
-
-    return expr;
-  }
-
-  private Expr or() {
-    Expr expr = and();
-
-    while (match(OR)) {
-      Token operator = previous();
-      Expr right = and();
-      expr = new Expr.Logical(expr, operator, right);
-    }
-
-    return expr;
-  }
-
-  private Expr and() {
-    Expr expr = equality();
-
-    while (match(AND)) {
-      Token operator = previous();
-      Expr right = equality();
-      expr = new Expr.Logical(expr, operator, right);
-    }
-
-    return expr;
-  }
-
-  // 2. Equality: Checks for == and !=
-  private Expr equality() {
-    Expr expr = comparison();
-
-    while (match(BANG_EQUAL, EQUAL_EQUAL)) {
-      Token operator = previous();
-      Expr right = comparison();
-      expr = new Expr.Binary(expr, operator, right);
-    }
-
-    return expr;
-  }
-
-  // 3. Comparison: Checks for >, <, >=, <=
-  private Expr comparison() {
-    Expr expr = term();
-
-    while (match(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL)) {
-      Token operator = previous();
-      Expr right = term();
-      expr = new Expr.Binary(expr, operator, right);
-    }
-
-    return expr;
-  }
-
   private static class ParseError extends RuntimeException {
   }
 }
@@ -0,0 +1,195 @@
+package com.bimbok.compiler;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// --profile: times every statement the Interpreter runs and adds it up per
+// source line.
+//  - count: how many times a statement on that line ran
+//  - self: time spent on the line itself (its expressions, an "out", ...)
+//  - total: self plus the statements nested under it (a loop's body)
+//
+// It also keeps the tree of which line ran inside which, so at the end it can
+// write a "collapsed stack" file (one "a;b;c time" per line) that flame graph
+// tools (flamegraph.pl, speedscope, ...) read.
+//
+// Expressions don't carry a line of their own; their time goes to the
+// statement they're part of.
+//
+// None of this costs anything without --profile: the timing lives in a
+// subclass of the Interpreter that isn't even loaded then.
+final class Profiler {
+  // One node of the tree: a line, reached through its parents
+  private static class Frame {
+    final int line;
+    final Frame parent;
+    final Map<Integer, Frame> children = new HashMap<>();
+    long self = 0;
+
+    Frame(int line, Frame parent) {
+      this.line = line;
+      this.parent = parent;
+    }
+  }
+
+  // Per line, indexed by line number
+  private long[] counts = new long[64];
+  private long[] selfTimes = new long[64];
+  private long[] totalTimes = new long[64];
+  // How many statements on this line are running right now. A line inside
+  // itself (a one-line loop) only adds to its total on the way out of the outer one.
+  private int[] active = new int[64];
+
+  // The statements running right now: when each started, and how long the
+  // statements nested in it took so far
+  private long[] starts = new long[64];
+  private long[] childTimes = new long[64];
+  private int depth = 0;
+
+  private final Frame root = new Frame(0, null);
+  private Frame current = root;
+  private Interpreter interpreter = null;
+
+  // An Interpreter that reports to this profiler
+  Interpreter interpreter() {
+    interpreter = new ProfilingInterpreter(this);
+    return interpreter;
+  }
+
+  private static class ProfilingInterpreter extends Interpreter {
+    private final Profiler profiler;
+
+    ProfilingInterpreter(Profiler profiler) {
+      this.profiler = profiler;
+    }
+
+    // One stack of running statements: "par from" runs one iteration at a time
+    @Override
+    boolean parallel() {
+      return false;
+    }
+
+    @Override
+    void execute(Stmt stmt) {
+      // A block is only its statements; "while (x) {" is one line, not two
+      if (stmt instanceof Stmt.Block) {
+        super.execute(stmt);
+        return;
+      }
+      profiler.enter(stmt.line);
+      try {
+        super.execute(stmt);
+      } finally {
+        profiler.exit();
+      }
+    }
+  }
+
+  void enter(int line) {
+    Frame frame = current.children.get(line);
+    if (frame == null) {
+      frame = new Frame(line, current);
+      current.children.put(line, frame);
+    }
+    current = frame;
+
+    if (line >= counts.length) {
+      int size = Math.max(line + 1, counts.length * 2);
+      counts = Arrays.copyOf(counts, size);
+      selfTimes = Arrays.copyOf(selfTimes, size);
+      totalTimes = Arrays.copyOf(totalTimes, size);
+      active = Arrays.copyOf(active, size);
+    }
+    counts[line]++;
+    active[line]++;
+
+    if (depth == starts.length) {
+      starts = Arrays.copyOf(starts, depth * 2);
+      childTimes = Arrays.copyOf(childTimes, depth * 2);
+    }
+    childTimes[depth] = 0;
+    starts[depth++] = System.nanoTime();
+  }
+
+  void exit() {
+    long elapsed = System.nanoTime() - starts[--depth];
+    long self = elapsed - childTimes[depth];
+    if (depth > 0) {
+      childTimes[depth - 1] += elapsed;
+    }
+
+    int line = current.line;
+    selfTimes[line] += self;
+    current.self += self;
+    if (--active[line] == 0) {
+      totalTimes[line] += elapsed;
+    }
+    current = current.parent;
+  }
+
+  // The hottest lines first (by self time), with the source next to them
+  void report(PrintStream out, String source, int limit) {
+    String[] lines = source.split("\r?\n", -1);
+    List<Integer> ran = new ArrayList<>();
+    long everything = 0;
+    for (int line = 1; line < counts.length; line++) {
+      if (counts[line] > 0) {
+        ran.add(line);
+        everything += selfTimes[line];
+      }
+    }
+    ran.sort((a, b) -> Long.compare(selfTimes[b], selfTimes[a]));
+
+    out.println("--- Profile: hottest lines by self time ---");
+    out.printf("%6s %12s %10s %6s %10s  %s%n", "line", "count", "self ms", "self%", "total ms", "source");
+    for (int i = 0; i < ran.size() && i < limit; i++) {
+      int line = ran.get(i);
+      String text = line <= lines.length ? lines[line - 1].trim() : "";
+      out.printf("%6d %12d %10.3f %5.1f%% %10.3f  %s%n", line, counts[line], selfTimes[line] / 1e6,
+          everything > 0 ? 100.0 * selfTimes[line] / everything : 0.0, totalTimes[line] / 1e6, text);
+    }
+    if (ran.size() > limit) {
+      out.println("(" + (ran.size() - limit) + " more lines)");
+    }
+
+    List<Memo> memos = interpreter == null ? List.of() : interpreter.memos();
+    if (!memos.isEmpty()) {
+      out.println("--- Memo caches ---");
+      out.printf("%-16s %12s %12s %6s %16s%n", "fun", "hits", "misses", "hit%", "cached");
+      for (Memo memo : memos) {
+        long calls = memo.hits() + memo.misses();
+        out.printf("%-16s %12d %12d %5.1f%% %16s%n", memo.name(), memo.hits(), memo.misses(),
+            calls > 0 ? 100.0 * memo.hits() / calls : 0.0, memo.cached() + "/" + memo.size());
+      }
+    }
+  }
+
+  // "script.siz:3;script.siz:7;script.siz:9 1234": one line per path through
+  // the tree, weighted by its self time in microseconds
+  void writeCollapsed(Path file, String script) throws IOException {
+    try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+      for (Frame frame : root.children.values()) {
+        writeCollapsed(writer, frame, script + ":" + frame.line, script);
+      }
+    }
+  }
+
+  private void writeCollapsed(Writer writer, Frame frame, String path, String script) throws IOException {
+    long micros = frame.self / 1000;
+    if (micros > 0) {
+      writer.write(path + " " + micros + "\n");
+    }
+    for (Frame child : frame.children.values()) {
+      writeCollapsed(writer, child, path + ";" + script + ":" + child.line, script);
+    }
+  }
+}
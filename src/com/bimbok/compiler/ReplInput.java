@@ -0,0 +1,71 @@
+package com.bimbok.compiler;
+
+// What the REPL has read so far for the entry it's building. Each line is
+// scanned once, as it comes in, and the bracket counts are kept up to date
+// from just the new tokens. Pasting a 5,000 line block used to rescan the
+// whole buffer after every line.
+//
+// When the entry is complete its tokens go straight to the Parser.
+final class ReplInput {
+  private StringBuilder buffer = new StringBuilder();
+  private Scanner scanner = new Scanner(buffer);
+  // Tokens before this one have already been counted
+  private int counted = 0;
+  private int parenBalance = 0;
+  private int braceBalance = 0;
+  private TokenType last = null;
+
+  boolean isEmpty() {
+    return buffer.length() == 0;
+  }
+
+  void add(String line) {
+    buffer.append(line).append('\n');
+    scanner.scanMore();
+
+    TokenStream tokens = scanner.tokens();
+    for (; counted < tokens.size(); counted++) {
+      switch (tokens.type(counted)) {
+        case LEFT_PAREN:
+          parenBalance++;
+          break;
+        case RIGHT_PAREN:
+          parenBalance--;
+          break;
+        case LEFT_BRACE:
+          braceBalance++;
+          break;
+        case RIGHT_BRACE:
+          braceBalance--;
+          break;
+        default:
+          last = tokens.type(counted);
+          break;
+      }
+    }
+  }
+
+  // Open brackets, an open string or a dangling "else" mean there's more to come
+  boolean isComplete() {
+    if (parenBalance > 0 || braceBalance > 0) {
+      return false;
+    }
+    if (scanner.inString()) {
+      return false;
+    }
+    return last != TokenType.ELSE;
+  }
+
+  // The finished entry's tokens; starts over for the next one
+  TokenStream take() {
+    TokenStream tokens = scanner.finish();
+    // A fresh buffer: the tokens still point into the old one
+    buffer = new StringBuilder();
+    scanner = new Scanner(buffer);
+    counted = 0;
+    parenBalance = 0;
+    braceBalance = 0;
+    last = null;
+    return tokens;
+  }
+}
@@ -0,0 +1,261 @@
+package com.bimbok.compiler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Walks the AST once before running it and works out, for every variable use,
+// how many scopes up it lives (depth) and which slot of that frame holds it.
+// The Interpreter then reads frames by index instead of hashing names.
+class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+  // scopes.get(0) is the global scope. It survives between REPL lines,
+  // so "say a = 1" on one line is still visible on the next.
+  private final List<Map<String, Integer>> scopes = new ArrayList<>();
+  // The blocks we're inside of, innermost last
+  private final List<Stmt.Block> blocks = new ArrayList<>();
+
+  Resolver() {
+    scopes.add(new HashMap<>());
+    // The built-ins take the first global slots, see Natives
+    for (String name : Natives.NAMES) {
+      scopes.get(0).put(name, scopes.get(0).size());
+    }
+  }
+
+  // How many global slots have been handed out so far
+  int globalCount() {
+    return scopes.get(0).size();
+  }
+
+  void resolve(List<Stmt> statements) {
+    for (Stmt statement : statements) {
+      resolve(statement);
+    }
+  }
+
+  private void resolve(Stmt stmt) {
+    stmt.accept(this);
+  }
+
+  private void resolve(Expr expr) {
+    expr.accept(this);
+  }
+
+  // "say x" always creates the variable in the innermost scope.
+  // Saying the same name twice in one scope just reuses the slot.
+  private int declare(Token name) {
+    Map<String, Integer> scope = scopes.get(scopes.size() - 1);
+    Integer slot = scope.get(name.lexeme);
+    if (slot == null) {
+      slot = scope.size();
+      scope.put(name.lexeme, slot);
+    }
+    return slot;
+  }
+
+  // Finds the closest scope that knows the name. If none does, the variable
+  // becomes a global (same as Environment.assign used to do for "oops I forgot say").
+  private int[] lookup(Token name) {
+    for (int i = scopes.size() - 1; i >= 0; i--) {
+      Integer slot = scopes.get(i).get(name.lexeme);
+      if (slot != null) {
+        return new int[] { scopes.size() - 1 - i, slot };
+      }
+    }
+
+    Map<String, Integer> globals = scopes.get(0);
+    int slot = globals.size();
+    globals.put(name.lexeme, slot);
+    return new int[] { scopes.size() - 1, slot };
+  }
+
+  // --- Statements ---
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    scopes.add(new HashMap<>());
+    blocks.add(stmt);
+    resolve(stmt.statements);
+    blocks.remove(blocks.size() - 1);
+    stmt.slotCount = scopes.remove(scopes.size() - 1).size();
+    return null;
+  }
+
+  // Parameters take the first slots of the call's frame, the body's own
+  // "say"s the ones after. The body gets no block frame of its own.
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    // Declared before the body is resolved, so the body can call itself
+    stmt.slot = declare(stmt.name);
+    scopes.add(new HashMap<>());
+    for (Token param : stmt.params) {
+      declare(param);
+    }
+    resolve(stmt.body);
+    stmt.slotCount = scopes.remove(scopes.size() - 1).size();
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value != null) {
+      resolve(stmt.value);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    // Resolve the initializer first: in "say a = a + 1" the right side
+    // still sees the outer "a".
+    if (stmt.initializer != null) {
+      resolve(stmt.initializer);
+    }
+    stmt.slot = declare(stmt.name);
+    return null;
+  }
+
+  @Override
+  public Void visitInputStmt(Stmt.Input stmt) {
+    if (stmt.prompt != null) {
+      resolve(stmt.prompt);
+    }
+    int[] location = lookup(stmt.name);
+    stmt.depth = location[0];
+    stmt.slot = location[1];
+    return null;
+  }
+
+  @Override
+  public Void visitFromStmt(Stmt.From stmt) {
+    resolve(stmt.start);
+    resolve(stmt.end);
+    stmt.slot = declare(stmt.loopVar);
+    resolve(stmt.body);
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    resolve(stmt.condition);
+    resolve(stmt.body);
+    return null;
+  }
+
+  // The body is resolved where it is written; the Interpreter runs it in a
+  // copy of the frames around it, which keeps every (depth, slot) the same
+  @Override
+  public Void visitSpawnStmt(Stmt.Spawn stmt) {
+    resolve(stmt.body);
+    return null;
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    resolve(stmt.condition);
+    resolve(stmt.thenBranch);
+    if (stmt.elseBranch != null) {
+      resolve(stmt.elseBranch);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    resolve(stmt.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    resolve(stmt.expression);
+    return null;
+  }
+
+  // --- Expressions ---
+
+  @Override
+  public Void visitVariableExpr(Expr.Variable expr) {
+    int[] location = lookup(expr.name);
+    expr.depth = location[0];
+    expr.slot = location[1];
+    return null;
+  }
+
+  @Override
+  public Void visitAssignExpr(Expr.Assign expr) {
+    resolve(expr.value);
+    int[] location = lookup(expr.name);
+    expr.depth = location[0];
+    expr.slot = location[1];
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpr(Expr.Binary expr) {
+    resolve(expr.left);
+    resolve(expr.right);
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpr(Expr.Logical expr) {
+    resolve(expr.left);
+    resolve(expr.right);
+    return null;
+  }
+
+  @Override
+  public Void visitGroupingExpr(Expr.Grouping expr) {
+    resolve(expr.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitLiteralExpr(Expr.Literal expr) {
+    return null;
+  }
+
+  @Override
+  public Void visitUnaryExpr(Expr.Unary expr) {
+    resolve(expr.right);
+    return null;
+  }
+
+  @Override
+  public Void visitPackLiteralExpr(Expr.PackLiteral expr) {
+    for (Expr element : expr.elements) {
+      resolve(element);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitIndexGetExpr(Expr.IndexGet expr) {
+    resolve(expr.object);
+    resolve(expr.index);
+    return null;
+  }
+
+  @Override
+  public Void visitIndexSetExpr(Expr.IndexSet expr) {
+    resolve(expr.object);
+    resolve(expr.index);
+    resolve(expr.value);
+    return null;
+  }
+
+  @Override
+  public Void visitCallExpr(Expr.Call expr) {
+    resolve(expr.callee);
+    for (Expr argument : expr.arguments) {
+      resolve(argument);
+    }
+    // Whatever it makes (an off-heap pack, say) belongs to this block
+    if (!blocks.isEmpty()) {
+      blocks.get(blocks.size() - 1).hasCalls = true;
+    }
+    return null;
+  }
+}
@@ -0,0 +1,78 @@
+package com.bimbok.compiler;
+
+// A long string built with "+". Scripts see a plain string, but
+// "s = s + line" in a loop appends in place instead of copying all of s
+// each time round.
+//
+// Every rope made by appending to this one shares its buffer and only looks
+// at its own prefix of it. The buffer never changes, it only grows, so the
+// older ropes stay valid. Only the rope that ends where the buffer ends gets
+// to append in place; appending to an older one copies its prefix first.
+//
+// Short strings are left as Strings, a copy is cheaper than a rope for those.
+final class Rope {
+  static final int MIN_LENGTH = 256;
+
+  private final StringBuilder buffer;
+  private final int length;
+  // The flat String, made the first time someone looks
+  private String flat;
+
+  private Rope(StringBuilder buffer, int length) {
+    this.buffer = buffer;
+    this.length = length;
+  }
+
+  // left + right, where at least one side is a string
+  static Object concat(Object left, Object right) {
+    if (left instanceof Rope) {
+      return ((Rope) left).append(Values.stringify(right));
+    }
+    String text = Values.stringify(left) + Values.stringify(right);
+    if (text.length() < MIN_LENGTH) {
+      return text;
+    }
+    return new Rope(new StringBuilder(text), text.length());
+  }
+
+  private Rope append(String text) {
+    synchronized (buffer) {
+      if (buffer.length() == length) {
+        buffer.append(text);
+        return new Rope(buffer, buffer.length());
+      }
+    }
+
+    // Someone already appended to this rope: branch off with our own copy
+    StringBuilder copy = new StringBuilder(Math.max(length + text.length(), 2 * length));
+    synchronized (buffer) {
+      copy.append(buffer, 0, length);
+    }
+    copy.append(text);
+    return new Rope(copy, copy.length());
+  }
+
+  @Override
+  public String toString() {
+    if (flat == null) {
+      synchronized (buffer) {
+        flat = buffer.substring(0, length);
+      }
+    }
+    return flat;
+  }
+
+  // Equal to a String with the same text, so "==" can't tell them apart
+  @Override
+  public boolean equals(Object other) {
+    if (other instanceof Rope || other instanceof String) {
+      return toString().equals(other.toString());
+    }
+    return false;
+  }
+
+  @Override
+  public int hashCode() {
+    return toString().hashCode();
+  }
+}
@@ -1,50 +1,93 @@
 package com.bimbok.compiler;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 public class Scanner {
-  private final String source;
-  private final List<Token> tokens = new ArrayList<>();
+  // A String for a file. For the REPL, a buffer that keeps growing a line at a time.
+  private final CharSequence source;
+  private final TokenStream tokens;
   private int start = 0;
   private int current = 0;
   private int line = 1;
+  // Only the REPL scans in pieces: there the end of the text isn't the end of the input
+  private final boolean incremental;
+  // The piece so far ended inside a string, start is still its opening quote
+  private boolean inString = false;
+  // Something was reported (the tokens are still usable, minus the bad bits)
+  private boolean hadError = false;
 
-  // This map tells the scanner which words are special
-  private static final Map<String, TokenType> keywords;
-
-  static {
-    keywords = new HashMap<>();
-    keywords.put("say", TokenType.SAY);
-    keywords.put("out", TokenType.OUT);
-    keywords.put("if", TokenType.IF);
-    keywords.put("else", TokenType.ELSE);
-    keywords.put("and", TokenType.AND);
-    keywords.put("or", TokenType.OR);
-    keywords.put("true", TokenType.TRUE);
-    keywords.put("false", TokenType.FALSE);
-    keywords.put("in", TokenType.IN);
-    keywords.put("from", TokenType.FROM);
-    keywords.put("to", TokenType.TO);
-    keywords.put("as", TokenType.AS);
-    keywords.put("while", TokenType.WHILE);
+  public Scanner(String source) {
+    this.source = source;
+    this.tokens = new TokenStream(source);
+    this.incremental = false;
   }
 
-  public Scanner(String source) {
+  // The REPL's scanner: append a line to the buffer, then scanMore()
+  Scanner(StringBuilder source) {
     this.source = source;
+    this.tokens = new TokenStream(source);
+    this.incremental = true;
   }
 
-  public List<Token> scanTokens() {
+  // The compact form the Parser reads, see TokenStream
+  TokenStream scan() {
     while (!isAtEnd()) {
       start = current;
       scanToken();
     }
-    tokens.add(new Token(TokenType.EOF, "", null, line));
+    tokens.add(TokenType.EOF, current, 0, line);
     return tokens;
   }
 
+  // Scans whatever was appended since the last call. Every character is only
+  // looked at once, however many lines the input ends up being.
+  void scanMore() {
+    if (inString) {
+      inString = false;
+      string();
+    }
+    while (!isAtEnd()) {
+      start = current;
+      scanToken();
+    }
+  }
+
+  boolean hadError() {
+    return hadError;
+  }
+
+  // Is the text so far stopped in the middle of a string?
+  boolean inString() {
+    return inString;
+  }
+
+  // The tokens scanned so far, EOF not added yet
+  TokenStream tokens() {
+    return tokens;
+  }
+
+  // Done: the tokens (with their EOF) for the Parser
+  TokenStream finish() {
+    if (inString) {
+      System.err.println("Unterminated string.");
+      hadError = true;
+      inString = false;
+    }
+    tokens.add(TokenType.EOF, current, 0, line);
+    return tokens;
+  }
+
+  // Every token as a full Token object
+  public List<Token> scanTokens() {
+    TokenStream stream = scan();
+    List<Token> list = new ArrayList<>(stream.size());
+    for (int i = 0; i < stream.size(); i++) {
+      list.add(stream.token(i));
+    }
+    return list;
+  }
+
   private void scanToken() {
     char c = advance();
     switch (c) {
@@ -138,6 +181,7 @@ public class Scanner {
           identifier();
         } else {
           System.err.println("Unexpected character: " + c);
+          hadError = true;
         }
         break;
     }
@@ -156,8 +200,8 @@ public class Scanner {
         advance();
     }
 
-    // 3. CHANGE THIS LINE: Parse as Double, not Integer
-    addToken(TokenType.NUMBER, Double.parseDouble(source.substring(start, current)));
+    // 3. Parsed as a Double, but only once the Parser asks for the Token
+    addToken(TokenType.NUMBER);
   }
 
   private char peekNext() {
@@ -171,12 +215,89 @@ public class Scanner {
     while (isAlphaNumeric(peek()))
       advance();
 
-    String text = source.substring(start, current);
-    TokenType type = keywords.get(text);
-    if (type == null)
-      type = TokenType.IDENTIFIER;
+    addToken(keyword(start, current - start));
+  }
+
+  // Which keyword (if any) the word at start is, straight from the source.
+  // No substring, no map: switch on the first letter and compare in place.
+  private TokenType keyword(int start, int length) {
+    switch (source.charAt(start)) {
+      case 'a':
+        if (isWord(start, length, "and"))
+          return TokenType.AND;
+        if (isWord(start, length, "as"))
+          return TokenType.AS;
+        break;
+      case 'e':
+        if (isWord(start, length, "else"))
+          return TokenType.ELSE;
+        break;
+      case 'f':
+        if (isWord(start, length, "false"))
+          return TokenType.FALSE;
+        if (isWord(start, length, "from"))
+          return TokenType.FROM;
+        if (isWord(start, length, "fun"))
+          return TokenType.FUN;
+        break;
+      case 'i':
+        if (isWord(start, length, "if"))
+          return TokenType.IF;
+        if (isWord(start, length, "in"))
+          return TokenType.IN;
+        break;
+      case 'm':
+        if (isWord(start, length, "memo"))
+          return TokenType.MEMO;
+        break;
+      case 'n':
+        if (isWord(start, length, "nil"))
+          return TokenType.NIL;
+        break;
+      case 'p':
+        if (isWord(start, length, "par"))
+          return TokenType.PAR;
+        break;
+      case 'o':
+        if (isWord(start, length, "or"))
+          return TokenType.OR;
+        if (isWord(start, length, "out"))
+          return TokenType.OUT;
+        break;
+      case 'r':
+        if (isWord(start, length, "return"))
+          return TokenType.RETURN;
+        break;
+      case 's':
+        if (isWord(start, length, "say"))
+          return TokenType.SAY;
+        if (isWord(start, length, "spawn"))
+          return TokenType.SPAWN;
+        break;
+      case 't':
+        if (isWord(start, length, "true"))
+          return TokenType.TRUE;
+        if (isWord(start, length, "to"))
+          return TokenType.TO;
+        break;
+      case 'w':
+        if (isWord(start, length, "while"))
+          return TokenType.WHILE;
+        break;
+    }
+    return TokenType.IDENTIFIER;
+  }
 
-    addToken(type);
+  private boolean isWord(int start, int length, String word) {
+    if (length != word.length()) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (source.charAt(start + i) != word.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
   }
 
   // --- Low level helper methods ---
@@ -205,12 +326,7 @@ public class Scanner {
   }
 
   private void addToken(TokenType type) {
-    addToken(type, null);
-  }
-
-  private void addToken(TokenType type, Object literal) {
-    String text = source.substring(start, current);
-    tokens.add(new Token(type, text, literal, line));
+    tokens.add(type, start, current - start, line);
   }
 
   // Add this with other helper methods like number()
@@ -223,15 +339,20 @@ public class Scanner {
     }
 
     if (isAtEnd()) {
+      if (incremental) {
+        // The rest of it may be on the next line
+        inString = true;
+        return;
+      }
       System.err.println("Unterminated string.");
+      hadError = true;
       return;
     }
 
     advance(); // The closing "
 
-    // Trim the surrounding quotes
-    String value = source.substring(start + 1, current - 1);
-    addToken(TokenType.STRING, value);
+    // The quotes get trimmed off when the Token is made
+    addToken(TokenType.STRING);
   }
 
   // Helper to check for two-character operators like '!='
@@ -3,6 +3,9 @@ package com.bimbok.compiler;
 import java.util.List;
 
 abstract class Stmt {
+  // The line it starts on (set by the Parser), for --profile
+  int line = 0;
+
   abstract <R> R accept(Visitor<R> visitor);
 
   interface Visitor<R> {
@@ -18,6 +21,9 @@ abstract class Stmt {
     R visitInputStmt(Input stmt);
     R visitFromStmt(From stmt);
     R visitWhileStmt(While stmt);
+    R visitFunctionStmt(Function stmt);
+    R visitReturnStmt(Return stmt);
+    R visitSpawnStmt(Spawn stmt);
   }
 
   // 1. "out 10;"
@@ -38,6 +44,8 @@ abstract class Stmt {
   static class Var extends Stmt {
     final Token name;
     final Expr initializer;
+    int slot = -1; // Slot in the current frame (set by the Resolver)
+    boolean numeric = false; // Kept as a plain double (set by TypeInference)
 
     Var(Token name, Expr initializer) {
       this.name = name;
@@ -85,6 +93,9 @@ abstract class Stmt {
   // 5. "{ ... }"
   static class Block extends Stmt {
     final List<Stmt> statements;
+    int slotCount = 0; // How many locals this block declares (set by the Resolver)
+    boolean[] numbers = null; // Which of them are plain doubles, null if none (set by TypeInference)
+    boolean hasCalls = false; // Something in it (outside nested blocks) is a call, see OffHeap (set by the Resolver)
 
     Block(List<Stmt> statements) {
       this.statements = statements;
@@ -99,6 +110,9 @@ abstract class Stmt {
   static class Input extends Stmt {
     final Token name;
     final Expr prompt;
+    // "in" assigns like "=", so it is resolved the same way
+    int depth = -1;
+    int slot = -1;
 
     Input(Token name, Expr prompt) {
       this.name = name;
@@ -117,12 +131,18 @@ abstract class Stmt {
     final Expr end;
     final Token loopVar;
     final Stmt body;
+    // "par from": iterations may run at the same time, on several threads
+    // (the Parser checked the body only assigns its own variables)
+    final boolean parallel;
+    int slot = -1; // The loop variable lives in the enclosing frame (set by the Resolver)
+    boolean numeric = false; // Kept as a plain double (set by TypeInference)
 
-    From(Expr start, Expr end, Token loopVar, Stmt body) {
+    From(Expr start, Expr end, Token loopVar, Stmt body, boolean parallel) {
       this.start = start;
       this.end = end;
       this.loopVar = loopVar;
       this.body = body;
+      this.parallel = parallel;
     }
 
     @Override
@@ -146,4 +166,61 @@ abstract class Stmt {
       return visitor.visitWhileStmt(this);
     }
   }
+
+  // 9. "fun name(a, b) { body }" (only at the top level)
+  static class Function extends Stmt {
+    final Token name;
+    final List<Token> params;
+    final List<Stmt> body;
+    int slot = -1; // The global holding the function (set by the Resolver)
+    // A call's frame: the parameters in slots 0..n-1, then the body's own
+    // locals (set by the Resolver)
+    int slotCount = 0;
+    boolean[] numbers = null; // Which of them are plain doubles, null if none (set by TypeInference)
+    final int memoSize; // "memo fun": how many results to cache, 0 for a plain fun
+
+    Function(Token name, List<Token> params, List<Stmt> body, int memoSize) {
+      this.name = name;
+      this.params = params;
+      this.body = body;
+      this.memoSize = memoSize;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitFunctionStmt(this);
+    }
+  }
+
+  // 10. "return value" (only inside a function). "return f(x)" is a tail
+  // call: the engines drop the caller's frame before making it.
+  static class Return extends Stmt {
+    final Token keyword;
+    final Expr value; // null for a bare "return"
+
+    Return(Token keyword, Expr value) {
+      this.keyword = keyword;
+      this.value = value;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitReturnStmt(this);
+    }
+  }
+
+  // 11. "spawn { body }": the body runs on a thread of its own while the
+  // script carries on (the Parser checked it only assigns its own variables)
+  static class Spawn extends Stmt {
+    final Stmt body;
+
+    Spawn(Stmt body) {
+      this.body = body;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitSpawnStmt(this);
+    }
+  }
 }
@@ -0,0 +1,72 @@
+package com.bimbok.compiler;
+
+import java.util.Arrays;
+
+// What the Scanner produces: every token as four ints (type, where it starts
+// in the source, how long it is, its line) in parallel arrays. Nothing is
+// copied out of the source while scanning. The Parser only turns a token into
+// a real Token (lexeme String, parsed literal) when it keeps it in the tree,
+// so keywords and punctuation never cost an object.
+final class TokenStream {
+  private static final TokenType[] TYPES = TokenType.values();
+
+  // Only ever appended to (the REPL's buffer), so the offsets stay good
+  private final CharSequence source;
+  private int[] types = new int[64];
+  private int[] starts = new int[64];
+  private int[] lengths = new int[64];
+  private int[] lines = new int[64];
+  private int count = 0;
+
+  TokenStream(CharSequence source) {
+    this.source = source;
+  }
+
+  void add(TokenType type, int start, int length, int line) {
+    if (count == types.length) {
+      int size = count * 2;
+      types = Arrays.copyOf(types, size);
+      starts = Arrays.copyOf(starts, size);
+      lengths = Arrays.copyOf(lengths, size);
+      lines = Arrays.copyOf(lines, size);
+    }
+    types[count] = type.ordinal();
+    starts[count] = start;
+    lengths[count] = length;
+    lines[count] = line;
+    count++;
+  }
+
+  int size() {
+    return count;
+  }
+
+  TokenType type(int index) {
+    return TYPES[types[index]];
+  }
+
+  int line(int index) {
+    return lines[index];
+  }
+
+  // Makes the Token (and its strings) for one entry
+  Token token(int index) {
+    int start = starts[index];
+    String lexeme = source.subSequence(start, start + lengths[index]).toString();
+    return new Token(type(index), lexeme, literal(index), lines[index]);
+  }
+
+  // The value of a NUMBER or STRING token, null for anything else
+  Object literal(int index) {
+    int start = starts[index];
+    switch (type(index)) {
+      case NUMBER:
+        return Double.parseDouble(source.subSequence(start, start + lengths[index]).toString());
+      case STRING:
+        // Without the quotes
+        return source.subSequence(start + 1, start + lengths[index] - 1).toString();
+      default:
+        return null;
+    }
+  }
+}
@@ -10,9 +10,14 @@ public enum TokenType {
   OR,
   IN,
   FROM,
+  PAR,
   TO,
   AS,
   WHILE,
+  FUN,
+  MEMO,
+  RETURN,
+  SPAWN,
   COMMA,
   LEFT_BRACKET,
   RIGHT_BRACKET,
@@ -42,7 +47,7 @@ public enum TokenType {
 
   // 6. Data Types
   STRING,
-  TRUE, FALSE,
+  TRUE, FALSE, NIL,
 
   // 7. End of file
   EOF
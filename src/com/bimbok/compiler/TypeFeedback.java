@@ -0,0 +1,15 @@
+package com.bimbok.compiler;
+
+// What a Binary or IndexGet site has seen so far. The Interpreter keeps
+// this on the node itself: a site starts UNINITIALIZED, settles on the operand
+// types it meets first, and drops to GENERIC for good once they change.
+final class TypeFeedback {
+  private TypeFeedback() {
+  }
+
+  static final int UNINITIALIZED = 0;
+  static final int NUMBERS = 1; // every operand was a number
+  static final int STRINGS = 2; // "+" with a string on at least one side
+  static final int PACK = 3; // pack[number]
+  static final int GENERIC = 4; // mixed types: the full checks every time
+}
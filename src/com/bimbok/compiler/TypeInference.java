@@ -0,0 +1,441 @@
+package com.bimbok.compiler;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Runs after the Resolver and works out which variables only ever hold numbers,
+// so the Interpreter and JvmCompiler can keep them as plain doubles instead of
+// boxing a new Double on every "i = i + 1".
+//
+// A variable counts as numeric when every write to it is a number ("say",
+// "=", or a "from" loop) and every read is certain to come after a write, so
+// nobody can ever see it undefined. "in" can give a string, so anything read
+// with "in" stays boxed.
+//
+// In the REPL the next line can still assign anything to a global, so globals
+// are only considered when we see the whole program at once.
+class TypeInference implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+  private static class Variable {
+    // Every value written to it; null for a write that might not be a number
+    final List<Expr> writes = new ArrayList<>();
+    boolean fromLoop = false;
+    // Index (in the declaring statement list) of the first plain "say"
+    int firstSay = Integer.MAX_VALUE;
+    // Indexes of reads that happen outside a loop over this variable
+    final List<Integer> reads = new ArrayList<>();
+    boolean numeric = true;
+  }
+
+  private static class Frame {
+    final Variable[] variables;
+    final boolean eligible;
+    // Which statement of this frame's list we're in, and that statement itself
+    int index = -1;
+    Stmt current;
+
+    Frame(int size, boolean eligible) {
+      this.variables = new Variable[size];
+      this.eligible = eligible;
+    }
+
+    Variable at(int slot) {
+      if (variables[slot] == null) {
+        variables[slot] = new Variable();
+      }
+      return variables[slot];
+    }
+  }
+
+  private final boolean wholeProgram;
+  private final List<Frame> frames = new ArrayList<>();
+  private final List<Variable> all = new ArrayList<>();
+  private final Set<Variable> loopsOpen = new HashSet<>();
+  // The second pass (writing the answers onto the tree) needs the same frames
+  // and variables the first one found
+  private final Map<Stmt.Block, Frame> blockFrames = new IdentityHashMap<>();
+  private final Map<Stmt.Function, Frame> functionFrames = new IdentityHashMap<>();
+  private final Map<Expr, Variable> uses = new IdentityHashMap<>();
+  private boolean annotating = false;
+  private boolean[] globalNumbers = new boolean[0];
+
+  TypeInference(boolean wholeProgram) {
+    this.wholeProgram = wholeProgram;
+  }
+
+  // Which global slots hold plain numbers (all false in the REPL)
+  boolean[] globalNumbers() {
+    return globalNumbers;
+  }
+
+  void infer(List<Stmt> statements, int globalCount) {
+    Frame globals = new Frame(globalCount, wholeProgram);
+    frames.add(globals);
+    walk(globals, statements);
+    frames.clear();
+
+    for (Variable variable : all) {
+      if (!variable.fromLoop && variable.firstSay == Integer.MAX_VALUE) {
+        // Never declared with "say": an implicit global, could be read before it's set
+        variable.numeric = false;
+      }
+      for (int read : variable.reads) {
+        if (read <= variable.firstSay) {
+          variable.numeric = false;
+        }
+      }
+    }
+
+    // Writing a non-number to one variable can make an expression that
+    // feeds another one non-numeric too, so go until nothing changes.
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (Variable variable : all) {
+        if (variable.numeric && !allNumbers(variable.writes)) {
+          variable.numeric = false;
+          changed = true;
+        }
+      }
+    }
+
+    annotating = true;
+    frames.add(globals);
+    walk(globals, statements);
+    frames.clear();
+    annotating = false;
+
+    boolean[] numbers = numbersOf(globals, globalCount);
+    globalNumbers = numbers != null ? numbers : new boolean[globalCount];
+  }
+
+  private void walk(Frame frame, List<Stmt> statements) {
+    for (int i = 0; i < statements.size(); i++) {
+      frame.index = i;
+      frame.current = statements.get(i);
+      statements.get(i).accept(this);
+    }
+  }
+
+  private boolean allNumbers(List<Expr> writes) {
+    for (Expr value : writes) {
+      if (value == null || !isNumber(value)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // True if this expression can only ever produce a number (or fail trying)
+  private boolean isNumber(Expr expr) {
+    if (expr instanceof Expr.Literal) {
+      return ((Expr.Literal) expr).value instanceof Double;
+    }
+    if (expr instanceof Expr.Grouping) {
+      return isNumber(((Expr.Grouping) expr).expression);
+    }
+    if (expr instanceof Expr.Variable || expr instanceof Expr.Assign) {
+      Variable variable = uses.get(expr);
+      return variable != null && variable.numeric;
+    }
+    if (expr instanceof Expr.Unary) {
+      return ((Expr.Unary) expr).operator.type == TokenType.MINUS;
+    }
+    if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary) expr;
+      switch (binary.operator.type) {
+        case MINUS:
+        case STAR:
+        case SLASH:
+        case MODULO:
+          return true;
+        case PLUS:
+          // Could be string concatenation
+          return isNumber(binary.left) && isNumber(binary.right);
+        default:
+          return false;
+      }
+    }
+    if (expr instanceof Expr.Logical) {
+      // "a or b" gives back one of its operands
+      Expr.Logical logical = (Expr.Logical) expr;
+      return isNumber(logical.left) && isNumber(logical.right);
+    }
+    return false;
+  }
+
+  private Frame frameAt(int depth) {
+    return frames.get(frames.size() - 1 - depth);
+  }
+
+  // Looks up the variable at (depth, slot). Returns null if it's not a candidate.
+  private Variable variable(int depth, int slot) {
+    Frame frame = frameAt(depth);
+    if (!frame.eligible) {
+      return null;
+    }
+    Variable variable = frame.variables[slot];
+    if (variable == null) {
+      variable = frame.at(slot);
+      if (!annotating) {
+        all.add(variable);
+      }
+    }
+    return variable;
+  }
+
+  private boolean isNumeric(int depth, int slot) {
+    Variable variable = variable(depth, slot);
+    return variable != null && variable.numeric;
+  }
+
+  private void write(int depth, int slot, Expr value) {
+    Variable variable = variable(depth, slot);
+    if (variable != null && !annotating) {
+      variable.writes.add(value);
+    }
+  }
+
+  // Which slots of a frame ended up numeric, or null if none did
+  private static boolean[] numbersOf(Frame frame, int size) {
+    boolean[] numbers = null;
+    for (int slot = 0; slot < size; slot++) {
+      Variable variable = frame.variables[slot];
+      if (frame.eligible && variable != null && variable.numeric) {
+        if (numbers == null) {
+          numbers = new boolean[size];
+        }
+        numbers[slot] = true;
+      }
+    }
+    return numbers;
+  }
+
+  // --- Statements ---
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    Frame frame = blockFrames.get(stmt);
+    if (frame == null) {
+      frame = new Frame(stmt.slotCount, true);
+      blockFrames.put(stmt, frame);
+    }
+    frames.add(frame);
+    walk(frame, stmt.statements);
+    frames.remove(frames.size() - 1);
+
+    if (annotating) {
+      stmt.numbers = numbersOf(frame, stmt.slotCount);
+    }
+    return null;
+  }
+
+  // The body is looked at like a block with the parameters already in it.
+  // Those can be anything a caller passes, so they're never numeric.
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    write(0, stmt.slot, null);
+
+    Frame frame = functionFrames.get(stmt);
+    if (frame == null) {
+      frame = new Frame(stmt.slotCount, true);
+      functionFrames.put(stmt, frame);
+    }
+    frames.add(frame);
+    for (int slot = 0; slot < stmt.params.size(); slot++) {
+      write(0, slot, null);
+    }
+    walk(frame, stmt.body);
+    frames.remove(frames.size() - 1);
+
+    if (annotating) {
+      stmt.numbers = numbersOf(frame, stmt.slotCount);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value != null) {
+      stmt.value.accept(this);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    if (stmt.initializer != null) {
+      stmt.initializer.accept(this);
+    }
+    write(0, stmt.slot, stmt.initializer);
+
+    Frame frame = frameAt(0);
+    Variable variable = variable(0, stmt.slot);
+    // Only a "say" sitting right in the statement list is sure to run
+    if (variable != null && frame.current == stmt) {
+      variable.firstSay = Math.min(variable.firstSay, frame.index);
+    }
+    stmt.numeric = isNumeric(0, stmt.slot);
+    return null;
+  }
+
+  @Override
+  public Void visitInputStmt(Stmt.Input stmt) {
+    if (stmt.prompt != null) {
+      stmt.prompt.accept(this);
+    }
+    write(stmt.depth, stmt.slot, null);
+    return null;
+  }
+
+  @Override
+  public Void visitFromStmt(Stmt.From stmt) {
+    stmt.start.accept(this);
+    stmt.end.accept(this);
+
+    Variable variable = variable(0, stmt.slot);
+    if (variable != null) {
+      variable.fromLoop = true;
+      loopsOpen.add(variable);
+    }
+    stmt.body.accept(this);
+    loopsOpen.remove(variable);
+
+    stmt.numeric = isNumeric(0, stmt.slot);
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    stmt.condition.accept(this);
+    stmt.body.accept(this);
+    return null;
+  }
+
+  @Override
+  public Void visitSpawnStmt(Stmt.Spawn stmt) {
+    stmt.body.accept(this);
+    return null;
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    stmt.condition.accept(this);
+    stmt.thenBranch.accept(this);
+    if (stmt.elseBranch != null) {
+      stmt.elseBranch.accept(this);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    stmt.expression.accept(this);
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    stmt.expression.accept(this);
+    return null;
+  }
+
+  // --- Expressions ---
+  // Children first, so isNumber() can look at their flags.
+
+  @Override
+  public Void visitVariableExpr(Expr.Variable expr) {
+    Variable variable = variable(expr.depth, expr.slot);
+    if (variable != null && !annotating) {
+      uses.put(expr, variable);
+      if (!loopsOpen.contains(variable)) {
+        variable.reads.add(frameAt(expr.depth).index);
+      }
+    }
+    expr.numeric = isNumeric(expr.depth, expr.slot);
+    return null;
+  }
+
+  @Override
+  public Void visitAssignExpr(Expr.Assign expr) {
+    expr.value.accept(this);
+    write(expr.depth, expr.slot, expr.value);
+    Variable variable = variable(expr.depth, expr.slot);
+    if (variable != null && !annotating) {
+      uses.put(expr, variable);
+    }
+    expr.numeric = isNumeric(expr.depth, expr.slot);
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpr(Expr.Binary expr) {
+    expr.left.accept(this);
+    expr.right.accept(this);
+    expr.numeric = isNumber(expr);
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpr(Expr.Logical expr) {
+    expr.left.accept(this);
+    expr.right.accept(this);
+    expr.numeric = isNumber(expr);
+    return null;
+  }
+
+  @Override
+  public Void visitGroupingExpr(Expr.Grouping expr) {
+    expr.expression.accept(this);
+    expr.numeric = isNumber(expr);
+    return null;
+  }
+
+  @Override
+  public Void visitLiteralExpr(Expr.Literal expr) {
+    expr.numeric = isNumber(expr);
+    return null;
+  }
+
+  @Override
+  public Void visitUnaryExpr(Expr.Unary expr) {
+    expr.right.accept(this);
+    expr.numeric = isNumber(expr);
+    return null;
+  }
+
+  @Override
+  public Void visitPackLiteralExpr(Expr.PackLiteral expr) {
+    for (Expr element : expr.elements) {
+      element.accept(this);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitIndexGetExpr(Expr.IndexGet expr) {
+    expr.object.accept(this);
+    expr.index.accept(this);
+    return null;
+  }
+
+  @Override
+  public Void visitIndexSetExpr(Expr.IndexSet expr) {
+    expr.object.accept(this);
+    expr.index.accept(this);
+    expr.value.accept(this);
+    return null;
+  }
+
+  @Override
+  public Void visitCallExpr(Expr.Call expr) {
+    expr.callee.accept(this);
+    for (Expr argument : expr.arguments) {
+      argument.accept(this);
+    }
+    return null;
+  }
+}
@@ -0,0 +1,857 @@
+package com.bimbok.compiler;
+
+import java.util.Arrays;
+import java.util.List;
+
+// Runs a Chunk with one flat loop over the bytecode.
+// No recursion here, so deeply nested expressions can't blow the Java stack.
+// Calls don't recurse either: a call saves where the caller was on a stack
+// of its own and carries on in the same loop with the function's Chunk.
+// A frame is a stretch of the one value stack: its locals, then its operand
+// stack. The arguments a call pushed become the callee's first locals right
+// where they are, so a call allocates and copies nothing.
+//
+// Numbers never get boxed while they stay inside the VM: every stack slot and
+// global has a twin in a double[] and holds the NUMBER marker when the real
+// value lives there. They only become Doubles when they leave (print, packs, ...).
+// Variables the TypeInference proved numeric only ever live in the twin: the
+// NUM_ instructions read and write them there, marker and all skipped.
+//
+// A spawned task is a VM of its own on a virtual thread, running the body
+// (which the Compiler put inline) in copies of the spawner's frame and globals.
+class VM {
+  private static final Object NUMBER = new Object();
+  // Calls that aren't tail calls nest at most this deep
+  private static final int MAX_FRAMES = 1 << 20;
+
+  // Globals outlive a single Chunk so the REPL remembers them between lines
+  private Object[] globals = new Object[16];
+  private double[] globalNumbers = new double[16];
+  // Line of the instruction a runtime error came out of
+  private int errorLine = 0;
+  // The spawned tasks still running, shared by every VM of the run
+  private final Interpreter.Tasks spawned;
+
+  VM() {
+    Arrays.fill(globals, Values.UNDEFINED);
+    // The Resolver gave the built-ins the first global slots
+    for (int slot = 0; slot < Natives.NAMES.length; slot++) {
+      globals[slot] = Natives.value(slot);
+    }
+    spawned = new Interpreter.Tasks();
+  }
+
+  // A spawned task's VM: the globals as they are right now
+  private VM(VM parent) {
+    globals = parent.globals.clone();
+    globalNumbers = parent.globalNumbers.clone();
+    spawned = parent.spawned;
+  }
+
+  void interpret(List<Stmt> statements) {
+    try {
+      Chunk script = new Compiler().compile(statements);
+      // Every fun is declared at the top level, so its Chunk is one of the
+      // script's constants. Preparing them all here means calls needn't, and
+      // tasks never race to prepare one.
+      prepare(script);
+      int globalCount = script.globalCount;
+      for (Object constant : script.constants) {
+        if (constant instanceof Chunk) {
+          prepare((Chunk) constant);
+          globalCount = Math.max(globalCount, ((Chunk) constant).globalCount);
+        }
+      }
+      // Sized up front, so no instruction has to check
+      if (globalCount > globals.length) {
+        int oldSize = globals.length;
+        globals = Arrays.copyOf(globals, globalCount);
+        globalNumbers = Arrays.copyOf(globalNumbers, globalCount);
+        Arrays.fill(globals, oldSize, globalCount, Values.UNDEFINED);
+      }
+      Object[] stack = new Object[Math.max(script.maxLocals + script.maxStack, 256)];
+      run(script, 0, stack, new double[stack.length]);
+      // Like the Interpreter: done when the tasks it spawned are, unless it failed
+      spawned.awaitAll();
+    } catch (RuntimeException error) {
+      // The blocks that were running are gone, and so is their memory
+      OffHeap.unwind();
+      reportError(error);
+    }
+  }
+
+  private void reportError(RuntimeException error) {
+    Events.runtimeError(error.getMessage(), errorLine);
+    errorLine = 0;
+    System.out.println(Colors.RED + error.getMessage() + Colors.RESET);
+  }
+
+  // Runs chunk (already prepared, see interpret) from ip, its locals at the
+  // bottom of stack
+  private void run(Chunk chunk, int ip, Object[] stack, double[] numbers) {
+    int[] code = chunk.code;
+    Object[] constants = chunk.runConstants;
+    double[] constantNumbers = chunk.constantNumbers;
+    // Never resized while it runs (see interpret)
+    Object[] globals = this.globals;
+    double[] globalNumbers = this.globalNumbers;
+    // Where the running frame's locals start; its operand stack is past them
+    int fp = 0;
+    int sp = chunk.maxLocals;
+
+    // The callers of the running function: their chunk, where they were and their fp
+    Chunk[] frameChunks = new Chunk[16];
+    int[] frameIps = new int[16];
+    int[] frameFps = new int[16];
+    // A call to a memo fun that missed: its cache, and the key to put the
+    // result under once it returns (null for anything else)
+    Memo[] frameMemos = new Memo[16];
+    Object[] frameKeys = new Object[16];
+    int depth = 0;
+    // How many "par from" bodies are running. Only the functions they call
+    // (depth > 0) are checked: the Parser already kept the body's own writes
+    // to what the body owns.
+    int parLoops = 0;
+
+    try {
+      for (;;) {
+        int instruction = code[ip++];
+        switch (instruction) {
+          case OpCode.CONSTANT: {
+            int index = code[ip++];
+            stack[sp] = constants[index];
+            numbers[sp] = constantNumbers[index];
+            sp++;
+            break;
+          }
+          case OpCode.NIL:
+            stack[sp++] = null;
+            break;
+          case OpCode.TRUE:
+            stack[sp++] = true;
+            break;
+          case OpCode.FALSE:
+            stack[sp++] = false;
+            break;
+          case OpCode.POP:
+            sp--;
+            break;
+          case OpCode.DUP:
+            stack[sp] = stack[sp - 1];
+            numbers[sp] = numbers[sp - 1];
+            sp++;
+            break;
+
+          // --- Variables ---
+          case OpCode.GET_LOCAL: {
+            int slot = fp + code[ip++];
+            stack[sp] = stack[slot];
+            numbers[sp] = numbers[slot];
+            sp++;
+            break;
+          }
+          case OpCode.SET_LOCAL: {
+            int slot = fp + code[ip++];
+            stack[slot] = stack[sp - 1];
+            numbers[slot] = numbers[sp - 1];
+            break;
+          }
+          case OpCode.STORE_LOCAL: {
+            int slot = fp + code[ip++];
+            sp--;
+            stack[slot] = stack[sp];
+            numbers[slot] = numbers[sp];
+            break;
+          }
+          case OpCode.GET_GLOBAL: {
+            int slot = code[ip++];
+            int name = code[ip++];
+            Object value = globals[slot];
+            if (value == Values.UNDEFINED) {
+              throw new RuntimeException("Undefined variable '" + constants[name] + "'.");
+            }
+            stack[sp] = value;
+            numbers[sp] = globalNumbers[slot];
+            sp++;
+            break;
+          }
+          case OpCode.SET_GLOBAL: {
+            int slot = code[ip++];
+            int name = code[ip++];
+            if (parLoops > 0 && depth > 0) {
+              throw Values.sharedInPar((String) constants[name]);
+            }
+            globals[slot] = stack[sp - 1];
+            globalNumbers[slot] = numbers[sp - 1];
+            break;
+          }
+          case OpCode.STORE_GLOBAL: {
+            int slot = code[ip++];
+            int name = code[ip++];
+            if (parLoops > 0 && depth > 0) {
+              throw Values.sharedInPar((String) constants[name]);
+            }
+            sp--;
+            globals[slot] = stack[sp];
+            globalNumbers[slot] = numbers[sp];
+            break;
+          }
+
+          // --- Math & logic ---
+          // Fast path: both sides are unboxed numbers. Otherwise box them and
+          // cast like the Interpreter does, so the errors read the same.
+          case OpCode.ADD: {
+            sp--;
+            if (stack[sp - 1] == NUMBER && stack[sp] == NUMBER) {
+              numbers[sp - 1] += numbers[sp];
+            } else {
+              Object result = Values.add(value(stack, numbers, sp - 1), value(stack, numbers, sp));
+              sp = push(stack, numbers, sp - 1, result);
+            }
+            break;
+          }
+          case OpCode.SUBTRACT: {
+            sp--;
+            if (stack[sp - 1] == NUMBER && stack[sp] == NUMBER) {
+              numbers[sp - 1] -= numbers[sp];
+            } else {
+              numbers[sp - 1] = (double) value(stack, numbers, sp - 1) - (double) value(stack, numbers, sp);
+              stack[sp - 1] = NUMBER;
+            }
+            break;
+          }
+          case OpCode.MULTIPLY: {
+            sp--;
+            if (stack[sp - 1] == NUMBER && stack[sp] == NUMBER) {
+              numbers[sp - 1] *= numbers[sp];
+            } else {
+              numbers[sp - 1] = (double) value(stack, numbers, sp - 1) * (double) value(stack, numbers, sp);
+              stack[sp - 1] = NUMBER;
+            }
+            break;
+          }
+          case OpCode.DIVIDE: {
+            sp--;
+            if (stack[sp - 1] == NUMBER && stack[sp] == NUMBER) {
+              numbers[sp - 1] /= numbers[sp];
+            } else {
+              numbers[sp - 1] = (double) value(stack, numbers, sp - 1) / (double) value(stack, numbers, sp);
+              stack[sp - 1] = NUMBER;
+            }
+            break;
+          }
+          case OpCode.MODULO: {
+            sp--;
+            if (stack[sp - 1] == NUMBER && stack[sp] == NUMBER) {
+              numbers[sp - 1] = Values.remainder(numbers[sp - 1], numbers[sp]);
+            } else {
+              numbers[sp - 1] = Values.remainder((double) value(stack, numbers, sp - 1), (double) value(stack, numbers, sp));
+              stack[sp - 1] = NUMBER;
+            }
+            break;
+          }
+          case OpCode.GREATER: {
+            sp--;
+            stack[sp - 1] = number(stack, numbers, sp - 1) > number(stack, numbers, sp);
+            break;
+          }
+          case OpCode.GREATER_EQUAL: {
+            sp--;
+            stack[sp - 1] = number(stack, numbers, sp - 1) >= number(stack, numbers, sp);
+            break;
+          }
+          case OpCode.LESS: {
+            sp--;
+            stack[sp - 1] = number(stack, numbers, sp - 1) < number(stack, numbers, sp);
+            break;
+          }
+          case OpCode.LESS_EQUAL: {
+            sp--;
+            stack[sp - 1] = number(stack, numbers, sp - 1) <= number(stack, numbers, sp);
+            break;
+          }
+          case OpCode.EQUAL: {
+            sp--;
+            stack[sp - 1] = isEqual(stack, numbers, sp - 1, sp);
+            break;
+          }
+          case OpCode.NOT_EQUAL: {
+            sp--;
+            stack[sp - 1] = !isEqual(stack, numbers, sp - 1, sp);
+            break;
+          }
+          case OpCode.NEGATE:
+            numbers[sp - 1] = -number(stack, numbers, sp - 1);
+            stack[sp - 1] = NUMBER;
+            break;
+          case OpCode.NOT:
+            // A number is always truthy
+            stack[sp - 1] = stack[sp - 1] == NUMBER ? false : !Values.isTruthy(stack[sp - 1]);
+            break;
+
+          // --- Control flow ---
+          case OpCode.JUMP: {
+            int offset = code[ip++];
+            ip += offset;
+            break;
+          }
+          case OpCode.JUMP_IF_FALSE: {
+            int offset = code[ip++];
+            Object condition = stack[--sp];
+            if (condition != NUMBER && !Values.isTruthy(condition)) {
+              ip += offset;
+            }
+            break;
+          }
+          case OpCode.JUMP_IF_NOT_GREATER: {
+            int offset = code[ip++];
+            sp -= 2;
+            if (!(number(stack, numbers, sp) > number(stack, numbers, sp + 1))) {
+              ip += offset;
+            }
+            break;
+          }
+          case OpCode.JUMP_IF_NOT_GREATER_EQUAL: {
+            int offset = code[ip++];
+            sp -= 2;
+            if (!(number(stack, numbers, sp) >= number(stack, numbers, sp + 1))) {
+              ip += offset;
+            }
+            break;
+          }
+          case OpCode.JUMP_IF_NOT_LESS: {
+            int offset = code[ip++];
+            sp -= 2;
+            if (!(number(stack, numbers, sp) < number(stack, numbers, sp + 1))) {
+              ip += offset;
+            }
+            break;
+          }
+          case OpCode.JUMP_IF_NOT_LESS_EQUAL: {
+            int offset = code[ip++];
+            sp -= 2;
+            if (!(number(stack, numbers, sp) <= number(stack, numbers, sp + 1))) {
+              ip += offset;
+            }
+            break;
+          }
+          case OpCode.LOOP: {
+            int offset = code[ip++];
+            ip -= offset;
+            break;
+          }
+
+          // --- from ... to ... as ---
+          case OpCode.FROM_INIT: {
+            int slot = fp + code[ip++];
+            sp -= 2;
+            if (stack[sp] != NUMBER || stack[sp + 1] != NUMBER) {
+              throw new RuntimeException("Range must be numbers.");
+            }
+            numbers[slot] = numbers[sp];
+            numbers[slot + 1] = numbers[sp + 1];
+            break;
+          }
+          case OpCode.FROM_TEST: {
+            int slot = fp + code[ip];
+            int variable = code[ip + 1];
+            ip += 3;
+            if (!(numbers[slot] <= numbers[slot + 1])) {
+              ip += code[ip - 1];
+            } else if (variable >= 0) {
+              store(variable, numbers[slot], numbers, fp, globalNumbers);
+            }
+            break;
+          }
+          case OpCode.FROM_LOOP: {
+            int slot = fp + code[ip];
+            int variable = code[ip + 1];
+            ip += 3;
+            double counter = numbers[slot] + 1;
+            numbers[slot] = counter;
+            if (counter <= numbers[slot + 1]) {
+              if (variable >= 0) {
+                store(variable, counter, numbers, fp, globalNumbers);
+              }
+              ip += code[ip - 1];
+            }
+            break;
+          }
+
+          // --- Numbers ---
+          case OpCode.NUM_MOVE: {
+            double value = load(code[ip + 1], stack, numbers, fp, globalNumbers, constantNumbers);
+            sp = put(code[ip], value, stack, numbers, sp, fp, globalNumbers);
+            ip += 2;
+            break;
+          }
+          case OpCode.NUM_ADD: {
+            double a = load(code[ip + 1], stack, numbers, fp, globalNumbers, constantNumbers);
+            double b = load(code[ip + 2], stack, numbers, fp, globalNumbers, constantNumbers);
+            sp = put(code[ip], a + b, stack, numbers, sp, fp, globalNumbers);
+            ip += 3;
+            break;
+          }
+          case OpCode.NUM_SUBTRACT: {
+            double a = load(code[ip + 1], stack, numbers, fp, globalNumbers, constantNumbers);
+            double b = load(code[ip + 2], stack, numbers, fp, globalNumbers, constantNumbers);
+            sp = put(code[ip], a - b, stack, numbers, sp, fp, globalNumbers);
+            ip += 3;
+            break;
+          }
+          case OpCode.NUM_MULTIPLY: {
+            double a = load(code[ip + 1], stack, numbers, fp, globalNumbers, constantNumbers);
+            double b = load(code[ip + 2], stack, numbers, fp, globalNumbers, constantNumbers);
+            sp = put(code[ip], a * b, stack, numbers, sp, fp, globalNumbers);
+            ip += 3;
+            break;
+          }
+          case OpCode.NUM_DIVIDE: {
+            double a = load(code[ip + 1], stack, numbers, fp, globalNumbers, constantNumbers);
+            double b = load(code[ip + 2], stack, numbers, fp, globalNumbers, constantNumbers);
+            sp = put(code[ip], a / b, stack, numbers, sp, fp, globalNumbers);
+            ip += 3;
+            break;
+          }
+          case OpCode.NUM_MODULO: {
+            double a = load(code[ip + 1], stack, numbers, fp, globalNumbers, constantNumbers);
+            double b = load(code[ip + 2], stack, numbers, fp, globalNumbers, constantNumbers);
+            sp = put(code[ip], Values.remainder(a, b), stack, numbers, sp, fp, globalNumbers);
+            ip += 3;
+            break;
+          }
+          case OpCode.NUM_NEGATE: {
+            double a = load(code[ip + 1], stack, numbers, fp, globalNumbers, constantNumbers);
+            sp = put(code[ip], -a, stack, numbers, sp, fp, globalNumbers);
+            ip += 2;
+            break;
+          }
+          case OpCode.NUM_POP: {
+            int target = code[ip++];
+            sp--;
+            sp = put(target, number(stack, numbers, sp), stack, numbers, sp, fp, globalNumbers);
+            break;
+          }
+          case OpCode.NUM_SET_GLOBAL: {
+            int slot = code[ip];
+            int name = code[ip + 1];
+            int source = code[ip + 2];
+            ip += 3;
+            if (parLoops > 0 && depth > 0) {
+              throw Values.sharedInPar((String) constants[name]);
+            }
+            globalNumbers[slot] = load(source, stack, numbers, fp, globalNumbers, constantNumbers);
+            break;
+          }
+          // The offset counts from past the instruction, like every jump's
+          case OpCode.NUM_JUMP_IF_NOT_GREATER:
+          case OpCode.NUM_JUMP_IF_NOT_GREATER_EQUAL:
+          case OpCode.NUM_JUMP_IF_NOT_LESS:
+          case OpCode.NUM_JUMP_IF_NOT_LESS_EQUAL:
+          case OpCode.NUM_JUMP_IF_EQUAL:
+          case OpCode.NUM_JUMP_IF_NOT_EQUAL:
+          case OpCode.NUM_JUMP_IF_GREATER:
+          case OpCode.NUM_JUMP_IF_GREATER_EQUAL:
+          case OpCode.NUM_JUMP_IF_LESS:
+          case OpCode.NUM_JUMP_IF_LESS_EQUAL: {
+            double a = load(code[ip], stack, numbers, fp, globalNumbers, constantNumbers);
+            double b = load(code[ip + 1], stack, numbers, fp, globalNumbers, constantNumbers);
+            ip += 3;
+            if (jumps(instruction, a, b)) {
+              ip += code[ip - 1];
+            }
+            break;
+          }
+
+          // --- Statements ---
+          case OpCode.PRINT:
+            sp--;
+            Values.print(value(stack, numbers, sp));
+            break;
+          case OpCode.INPUT: {
+            boolean hasPrompt = code[ip++] != 0;
+            if (parLoops > 0) {
+              throw new RuntimeException(Values.PAR_INPUT);
+            }
+            String prompt = null;
+            if (hasPrompt) {
+              sp--;
+              prompt = Values.stringify(value(stack, numbers, sp));
+            }
+            sp = push(stack, numbers, sp, Values.readInput(prompt));
+            break;
+          }
+
+          // --- Packs ---
+          case OpCode.PACK: {
+            int count = code[ip++];
+            Object[] elements = new Object[count];
+            for (int i = 0; i < count; i++) {
+              elements[i] = value(stack, numbers, sp - count + i);
+            }
+            sp -= count;
+            stack[sp++] = Pack.of(elements);
+            break;
+          }
+          case OpCode.INDEX_GET:
+            sp--;
+            sp = indexGet(stack, numbers, sp - 1, stack[sp], numbers[sp]);
+            break;
+          case OpCode.INDEX_GET_NUMBER: {
+            double index = load(code[ip++], stack, numbers, fp, globalNumbers, constantNumbers);
+            sp = indexGet(stack, numbers, sp - 1, NUMBER, index);
+            break;
+          }
+          case OpCode.INDEX_SET:
+            sp -= 2;
+            sp = indexSet(stack, numbers, sp - 1, stack[sp], numbers[sp], sp + 1);
+            break;
+          case OpCode.INDEX_SET_NUMBER: {
+            double index = load(code[ip++], stack, numbers, fp, globalNumbers, constantNumbers);
+            sp--;
+            sp = indexSet(stack, numbers, sp - 1, NUMBER, index, sp);
+            break;
+          }
+
+          case OpCode.CALL:
+          case OpCode.TAIL_CALL: {
+            int count = code[ip++];
+            int scopes = instruction == OpCode.TAIL_CALL ? code[ip++] : 0;
+            // Where the callee is; the result ends up here
+            int base = sp - count - 1;
+            Object callee = stack[base];
+            if (callee instanceof Chunk) {
+              Chunk function = (Chunk) callee;
+              if (function.arity != count) {
+                throw new RuntimeException("Expected " + function.arity + " arguments but got " + count + ".");
+              }
+              Object key = null;
+              if (function.memo != null) {
+                Object[] arguments = new Object[count];
+                for (int i = 0; i < count; i++) {
+                  arguments[i] = value(stack, numbers, base + 1 + i);
+                }
+                key = Memo.key(arguments);
+                if (key != null) {
+                  Object cached = function.memo.get(key);
+                  if (cached != Memo.MISSING) {
+                    // A tail call goes on to the SCOPE_EXITs and RETURN_VALUE after it
+                    sp = push(stack, numbers, base, cached);
+                    break;
+                  }
+                }
+              }
+              // Its frame starts at the arguments, which become parameters
+              // 0..count-1 where they are
+              int calleeFp = base + 1;
+              // A tail call reuses the caller's frame, the caller has nothing
+              // left to do. Not into a memo fun though: its frame record is
+              // where the key waits for the result.
+              if (instruction == OpCode.TAIL_CALL && function.memo == null) {
+                // It leaves the blocks the return is in, which hand what they
+                // own to the caller's: an argument may be one of their packs
+                if (scopes > 0) {
+                  OffHeap.handOver(scopes);
+                  for (int i = 0; i < scopes; i++) {
+                    OffHeap.exitScope();
+                  }
+                }
+                System.arraycopy(stack, calleeFp, stack, fp, count);
+                System.arraycopy(numbers, calleeFp, numbers, fp, count);
+                calleeFp = fp;
+              } else {
+                if (depth == frameChunks.length) {
+                  if (depth == MAX_FRAMES) {
+                    throw new RuntimeException(Values.STACK_OVERFLOW);
+                  }
+                  frameChunks = Arrays.copyOf(frameChunks, depth * 2);
+                  frameIps = Arrays.copyOf(frameIps, depth * 2);
+                  frameFps = Arrays.copyOf(frameFps, depth * 2);
+                  frameMemos = Arrays.copyOf(frameMemos, depth * 2);
+                  frameKeys = Arrays.copyOf(frameKeys, depth * 2);
+                }
+                frameChunks[depth] = chunk;
+                frameIps[depth] = ip;
+                frameFps[depth] = fp;
+                if (key != null) {
+                  frameMemos[depth] = function.memo;
+                  frameKeys[depth] = key;
+                }
+                depth++;
+              }
+
+              sp = calleeFp + function.maxLocals;
+              if (sp + function.maxStack > stack.length) {
+                int size = Math.max(stack.length * 2, sp + function.maxStack);
+                stack = Arrays.copyOf(stack, size);
+                numbers = Arrays.copyOf(numbers, size);
+              }
+              chunk = function;
+              code = function.code;
+              constants = function.runConstants;
+              constantNumbers = function.constantNumbers;
+              fp = calleeFp;
+              ip = 0;
+              break;
+            }
+
+            // A built-in
+            Object[] arguments = new Object[count];
+            for (int i = 0; i < count; i++) {
+              arguments[i] = value(stack, numbers, base + 1 + i);
+            }
+            // After a TAIL_CALL, its RETURN_VALUE returns this
+            sp = push(stack, numbers, base, Values.call(value(stack, numbers, base), arguments));
+            break;
+          }
+          case OpCode.RETURN_VALUE:
+            // The value goes where the caller wants it: where the callee was,
+            // just under the frame
+            sp--;
+            depth--;
+            if (frameKeys[depth] != null) {
+              frameMemos[depth].put(frameKeys[depth], value(stack, numbers, sp));
+              frameMemos[depth] = null;
+              frameKeys[depth] = null;
+            }
+            stack[fp - 1] = stack[sp];
+            numbers[fp - 1] = numbers[sp];
+            sp = fp;
+            chunk = frameChunks[depth];
+            code = chunk.code;
+            constants = chunk.runConstants;
+            constantNumbers = chunk.constantNumbers;
+            ip = frameIps[depth];
+            fp = frameFps[depth];
+            break;
+          case OpCode.SCOPE_ENTER:
+            OffHeap.enterScope();
+            break;
+          case OpCode.SCOPE_EXIT:
+            OffHeap.exitScope();
+            break;
+          case OpCode.PAR_ENTER:
+            parLoops++;
+            break;
+          case OpCode.PAR_EXIT:
+            parLoops--;
+            break;
+          case OpCode.SPAWN: {
+            int offset = code[ip++];
+            int size = Math.max(chunk.maxLocals + chunk.maxStack, 256);
+            spawn(chunk, ip, Arrays.copyOfRange(stack, fp, fp + size),
+                Arrays.copyOfRange(numbers, fp, fp + size));
+            ip += offset;
+            break;
+          }
+
+          case OpCode.RETURN:
+            return;
+
+          default:
+            throw new RuntimeException("Unknown opcode " + instruction + " at line " + chunk.lineAt(ip - 1) + ".");
+        }
+      }
+    } catch (RuntimeException error) {
+      // ip is past the instruction that failed (and maybe some of its
+      // operands), which all carry its line
+      errorLine = chunk.lineAt(ip - 1);
+      throw error;
+    }
+  }
+
+  // "spawn": the task starts at the body, on a stack of its own that starts
+  // with these copies of the frame's locals
+  private void spawn(Chunk chunk, int start, Object[] stack, double[] numbers) {
+    VM task = new VM(this);
+    Pack.shared = true;
+    spawned.started();
+    try {
+      Thread.ofVirtual().name("sizuka-spawn").start(() -> task.runTask(chunk, start, stack, numbers));
+    } catch (RuntimeException | Error e) {
+      spawned.finished();
+      throw e;
+    }
+  }
+
+  private void runTask(Chunk chunk, int start, Object[] stack, double[] numbers) {
+    try {
+      run(chunk, start, stack, numbers);
+    } catch (RuntimeException error) {
+      reportError(error);
+    } finally {
+      // Whatever off-heap packs it made go with it, but not the ones it sent
+      OffHeap.closeAll();
+      spawned.finished();
+    }
+  }
+
+  // Number constants are kept unboxed too
+  private static void prepare(Chunk chunk) {
+    if (chunk.runConstants != null) {
+      return;
+    }
+    Object[] constants = chunk.constants.toArray();
+    double[] constantNumbers = new double[constants.length];
+    for (int i = 0; i < constants.length; i++) {
+      if (constants[i] instanceof Double) {
+        constantNumbers[i] = (double) constants[i];
+        constants[i] = NUMBER;
+      }
+    }
+    chunk.constantNumbers = constantNumbers;
+    chunk.runConstants = constants;
+  }
+
+  // --- Boxing at the edges ---
+
+  // The real value in a slot (boxes unboxed numbers)
+  private static Object value(Object[] stack, double[] numbers, int index) {
+    Object value = stack[index];
+    return value == NUMBER ? (Object) numbers[index] : value;
+  }
+
+  // The slot as a number; anything else fails with the usual cast error
+  private static double number(Object[] stack, double[] numbers, int index) {
+    Object value = stack[index];
+    return value == NUMBER ? numbers[index] : (double) value;
+  }
+
+  // Stores a value coming back from Values, unboxing it if it's a number
+  private static int push(Object[] stack, double[] numbers, int index, Object value) {
+    if (value instanceof Double) {
+      stack[index] = NUMBER;
+      numbers[index] = (double) value;
+    } else {
+      stack[index] = value;
+    }
+    return index + 1;
+  }
+
+  // --- Packs ---
+  // The pack is at slot pack, and the result goes there too. The index is
+  // index, or number when index is the NUMBER marker.
+
+  private static int indexGet(Object[] stack, double[] numbers, int pack, Object index, double number) {
+    Object object = stack[pack];
+    if (index != NUMBER) {
+      return push(stack, numbers, pack, Values.indexGet(object, index));
+    }
+    // A number pack hands its element straight to the number stack
+    int i = (int) number;
+    if (object instanceof Pack) {
+      Pack elements = (Pack) object;
+      if (elements.isNumeric() && i >= 0 && i < elements.size()) {
+        stack[pack] = NUMBER;
+        numbers[pack] = elements.getNumber(i);
+        return pack + 1;
+      }
+    } else if (object instanceof OffHeapPack) {
+      OffHeapPack elements = (OffHeapPack) object;
+      if (i >= 0 && i < elements.size()) {
+        stack[pack] = NUMBER;
+        numbers[pack] = elements.getNumber(i);
+        return pack + 1;
+      }
+    }
+    return push(stack, numbers, pack, Values.indexGet(object, number));
+  }
+
+  // ...and the value to store is at slot value
+  private static int indexSet(Object[] stack, double[] numbers, int pack, Object index, double number, int value) {
+    Object object = stack[pack];
+    if (index == NUMBER && stack[value] == NUMBER) {
+      int i = (int) number;
+      if (object instanceof Pack) {
+        Pack elements = (Pack) object;
+        if (i >= 0 && i < elements.size()) {
+          elements.setNumber(i, numbers[value]);
+          stack[pack] = NUMBER;
+          numbers[pack] = numbers[value];
+          return pack + 1;
+        }
+      } else if (object instanceof OffHeapPack) {
+        OffHeapPack elements = (OffHeapPack) object;
+        if (i >= 0 && i < elements.size()) {
+          elements.setNumber(i, numbers[value]);
+          stack[pack] = NUMBER;
+          numbers[pack] = numbers[value];
+          return pack + 1;
+        }
+      }
+    }
+    Object result = index == NUMBER
+        ? Values.indexSet(object, number, value(stack, numbers, value))
+        : Values.indexSet(object, index, value(stack, numbers, value));
+    return push(stack, numbers, pack, result);
+  }
+
+  // Same answers as Double.equals: NaN == NaN, but 0.0 != -0.0
+  private static boolean isEqual(Object[] stack, double[] numbers, int a, int b) {
+    if (stack[a] == NUMBER && stack[b] == NUMBER) {
+      return Double.doubleToLongBits(numbers[a]) == Double.doubleToLongBits(numbers[b]);
+    }
+    return Values.isEqual(value(stack, numbers, a), value(stack, numbers, b));
+  }
+
+  // --- Number operands (see OpCode) ---
+
+  private static double load(int operand, Object[] stack, double[] numbers, int fp, double[] globalNumbers,
+      double[] constantNumbers) {
+    int index = operand >> 2;
+    int kind = operand & 3;
+    if (kind == OpCode.LOCAL) {
+      return numbers[fp + index];
+    } else if (kind == OpCode.CONSTANT_NUMBER) {
+      return constantNumbers[index];
+    } else if (kind == OpCode.GLOBAL) {
+      return globalNumbers[index];
+    }
+    return number(stack, numbers, fp + index);
+  }
+
+  private static void store(int operand, double value, double[] numbers, int fp, double[] globalNumbers) {
+    if ((operand & 3) == OpCode.LOCAL) {
+      numbers[fp + (operand >> 2)] = value;
+    } else {
+      globalNumbers[operand >> 2] = value;
+    }
+  }
+
+  // store() for an instruction whose target can be PUSH: returns the new sp
+  private static int put(int operand, double value, Object[] stack, double[] numbers, int sp, int fp,
+      double[] globalNumbers) {
+    if ((operand & 3) == OpCode.PUSH) {
+      stack[sp] = NUMBER;
+      numbers[sp] = value;
+      return sp + 1;
+    }
+    store(operand, value, numbers, fp, globalNumbers);
+    return sp;
+  }
+  // Whether a NUM_JUMP_IF_ jumps. == is Double.equals again.
+  private static boolean jumps(int instruction, double a, double b) {
+    switch (instruction) {
+      case OpCode.NUM_JUMP_IF_NOT_GREATER:
+        return !(a > b);
+      case OpCode.NUM_JUMP_IF_NOT_GREATER_EQUAL:
+        return !(a >= b);
+      case OpCode.NUM_JUMP_IF_NOT_LESS:
+        return !(a < b);
+      case OpCode.NUM_JUMP_IF_NOT_LESS_EQUAL:
+        return !(a <= b);
+      case OpCode.NUM_JUMP_IF_EQUAL:
+        return Double.doubleToLongBits(a) == Double.doubleToLongBits(b);
+      case OpCode.NUM_JUMP_IF_NOT_EQUAL:
+        return Double.doubleToLongBits(a) != Double.doubleToLongBits(b);
+      case OpCode.NUM_JUMP_IF_GREATER:
+        return a > b;
+      case OpCode.NUM_JUMP_IF_GREATER_EQUAL:
+        return a >= b;
+      case OpCode.NUM_JUMP_IF_LESS:
+        return a < b;
+      default:
+        return a <= b;
+    }
+  }
+}
@@ -0,0 +1,310 @@
+package com.bimbok.compiler;
+
+import java.util.List;
+
+// The runtime rules of Sizuka values: what's truthy, how things print,
+// how "+" and pack indexing behave. Every way of running a script
+// (tree-walker, bytecode VM, compiled .jar) goes through here so they all agree.
+// It's public because classes made by "sizuka compile" call straight into it.
+public final class Values {
+  // Marks a variable that nothing has written yet, so we can still say "Undefined variable"
+  public static final Object UNDEFINED = new Object();
+  // What every engine says when recursion that isn't a tail call goes too deep
+  public static final String STACK_OVERFLOW = "Stack overflow (too many nested calls).";
+  static final String PAR_INPUT = "Can't read input inside a par loop.";
+
+  // How many par loops a compiled jar is inside of. It runs them as plain
+  // loops, but a function their body calls still can't set a global or read
+  // input, the same as when the tree-walker really runs them in parallel.
+  private static int parLoops = 0;
+
+  private Values() {
+  }
+
+  public static boolean isTruthy(Object object) {
+    if (object == null)
+      return false;
+    if (object instanceof Boolean)
+      return (boolean) object;
+    return true;
+  }
+
+  public static boolean isEqual(Object a, Object b) {
+    // A String never equals a Rope by itself
+    if (a instanceof Rope)
+      a = a.toString();
+    if (b instanceof Rope)
+      b = b.toString();
+    if (a == null && b == null)
+      return true;
+    if (a == null)
+      return false;
+    return a.equals(b);
+  }
+
+  public static String stringify(Object object) {
+    if (object == null)
+      return "nil";
+    if (object instanceof Double) {
+      String text = object.toString();
+      if (text.endsWith(".0"))
+        text = text.substring(0, text.length() - 2);
+      return text;
+    }
+    return object.toString();
+  }
+
+  // Strings built with "+" may be Ropes, which count as strings everywhere
+  public static boolean isString(Object object) {
+    return object instanceof String || object instanceof Rope;
+  }
+
+  // Special: If either side is a String, concatenate!
+  public static Object add(Object left, Object right) {
+    if (isString(left) || isString(right)) {
+      return Rope.concat(left, right);
+    }
+    return (double) left + (double) right;
+  }
+
+  public static Object indexGet(Object object, Object indexObj) {
+    if (!(indexObj instanceof Double)) {
+      checkPack(object);
+      throw new RuntimeException("Index must be a number.");
+    }
+    return indexGet(object, (double) indexObj);
+  }
+
+  // Same as above for callers that already hold the index as a double
+  public static Object indexGet(Object object, double indexNum) {
+    List<Object> list = checkPack(object);
+    return list.get(checkIndex(list, indexNum));
+  }
+
+  public static Object indexSet(Object object, Object indexObj, Object value) {
+    if (!(indexObj instanceof Double)) {
+      checkPack(object);
+      throw new RuntimeException("Index must be a number.");
+    }
+    return indexSet(object, (double) indexObj, value);
+  }
+
+  public static Object indexSet(Object object, double indexNum, Object value) {
+    List<Object> list = checkPack(object);
+    list.set(checkIndex(list, indexNum), value);
+    return value;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<Object> checkPack(Object object) {
+    if (!(object instanceof List)) {
+      throw new RuntimeException("Only packs can be indexed.");
+    }
+    return (List<Object>) object;
+  }
+
+  private static int checkIndex(List<Object> list, double indexNum) {
+    int index = (int) indexNum;
+    if (index < 0 || index >= list.size()) {
+      throw new RuntimeException("Pack index out of bounds.");
+    }
+    return index;
+  }
+
+  // --- Operators for compiled scripts ---
+  // Same casts as the Interpreter, so a bad operand fails with the same message.
+
+  public static Object subtract(Object left, Object right) {
+    return (double) left - (double) right;
+  }
+
+  public static Object multiply(Object left, Object right) {
+    return (double) left * (double) right;
+  }
+
+  public static Object divide(Object left, Object right) {
+    return (double) left / (double) right;
+  }
+
+  public static Object modulo(Object left, Object right) {
+    return remainder((double) left, (double) right);
+  }
+
+  // Exactly a % b. Whole numbers (the usual "i % 2") go through long division
+  // though: HotSpot does a double remainder with the slow x87 fprem.
+  // Only below 2^63: past that (long) saturates to Long.MAX_VALUE, which
+  // widens back to exactly 2^63 and would pass the == checks with the wrong
+  // value. (That also keeps Long.MIN_VALUE % -1 out.)
+  public static double remainder(double a, double b) {
+    if (Math.abs(a) >= 0x1p63 || Math.abs(b) >= 0x1p63) {
+      return a % b;
+    }
+    long x = (long) a;
+    long y = (long) b;
+    if (x == a && y == b && y != 0) {
+      long r = x % y;
+      // The sign of a zero result still follows a ("-4 % 2" is -0)
+      return r == 0 ? Math.copySign(0.0, a) : r;
+    }
+    return a % b;
+  }
+
+  public static boolean greater(Object left, Object right) {
+    return (double) left > (double) right;
+  }
+
+  public static boolean greaterEqual(Object left, Object right) {
+    return (double) left >= (double) right;
+  }
+
+  public static boolean less(Object left, Object right) {
+    return (double) left < (double) right;
+  }
+
+  public static boolean lessEqual(Object left, Object right) {
+    return (double) left <= (double) right;
+  }
+
+  public static Object negate(Object right) {
+    return -(double) right;
+  }
+
+  public static List<Object> pack(Object[] elements) {
+    return Pack.of(elements);
+  }
+
+  public static Object call(Object callee, Object[] arguments) {
+    if (callee instanceof CompiledFunction) {
+      return ((CompiledFunction) callee).call(arguments);
+    }
+    if (!(callee instanceof NativeFunction)) {
+      throw new RuntimeException("Can only call functions.");
+    }
+    return ((NativeFunction) callee).call(arguments);
+  }
+
+  public static void checkRange(Object start, Object end) {
+    if (!(start instanceof Double) || !(end instanceof Double)) {
+      throw new RuntimeException("Range must be numbers.");
+    }
+  }
+
+  // A function setting a global from a par loop's body. (The Parser already
+  // stops the body itself from doing it.)
+  static RuntimeException sharedInPar(String name) {
+    return new RuntimeException("Can't assign to '" + name + "' inside a par loop: every iteration shares it.");
+  }
+
+  public static void enterPar() {
+    parLoops++;
+  }
+
+  public static void exitPar() {
+    parLoops--;
+  }
+
+  public static void checkShared(String name) {
+    if (parLoops > 0) {
+      throw sharedInPar(name);
+    }
+  }
+
+  public static Object checkDefined(Object value, String name) {
+    if (value == UNDEFINED) {
+      throw new RuntimeException("Undefined variable '" + name + "'.");
+    }
+    return value;
+  }
+
+  // The tree-walker and compiled jars recurse on the Java stack, several Java
+  // frames for each call the script makes, and the default stack (-Xss, 1 MB)
+  // runs out before a thousand levels of recursion that isn't a tail call. So
+  // scripts run on a thread with a bigger one. Only the part actually used
+  // takes memory; the rest is just address space.
+  static final long STACK_SIZE = 256L << 20;
+
+  // Runs body on a thread with that stack and waits for it. What it throws
+  // is thrown here.
+  public static void onBigStack(Runnable body) {
+    Throwable[] thrown = new Throwable[1];
+    Thread thread = new Thread(null, () -> {
+      try {
+        body.run();
+      } catch (Throwable t) {
+        thrown[0] = t;
+      }
+    }, "sizuka", STACK_SIZE);
+    thread.start();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (thrown[0] instanceof RuntimeException) {
+      throw (RuntimeException) thrown[0];
+    } else if (thrown[0] instanceof Error) {
+      throw (Error) thrown[0];
+    }
+  }
+
+  // Runs a compiled script the way Interpreter.interpret runs a parsed one
+  public static void launch(Runnable script) {
+    Output.install();
+    // The jar's main class is named after the script
+    Events.run(script.getClass().getName(), "jvm", false, () -> onBigStack(() -> {
+      try {
+        script.run();
+      } catch (RuntimeException error) {
+        Events.runtimeError(error.getMessage(), 0);
+        System.out.println(Colors.RED + error.getMessage() + Colors.RESET);
+      } catch (StackOverflowError error) {
+        // Recursion that isn't a tail call of a function to itself
+        Events.runtimeError(STACK_OVERFLOW, 0);
+        System.out.println(Colors.RED + STACK_OVERFLOW + Colors.RESET);
+      } finally {
+        OffHeap.closeAll();
+      }
+    }));
+  }
+
+  // --- "out" and "in" ---
+
+  public static void print(Object value) {
+    System.out.println(line(value));
+  }
+
+  // What "out" prints, without the line break
+  static String line(Object value) {
+    String text = stringify(value);
+    return Colors.ENABLED ? Colors.CYAN + text + Colors.RESET : text;
+  }
+
+  // prompt == null means the script didn't give one
+  public static Object readInput(String prompt) {
+    if (parLoops > 0) {
+      throw new RuntimeException(PAR_INPUT);
+    }
+    // Input from a pipe or a file: no prompts, and no flushing per line either
+    if (!Input.isBatch()) {
+      // 1. Print the prompt if the user provided one
+      if (prompt != null) {
+        System.out.print(Colors.CYAN + prompt + " " + Colors.RESET);
+      } else {
+        // If no prompt, just print a subtle ? so the user knows to type
+        System.out.print(Colors.YELLOW + "? " + Colors.RESET);
+      }
+      // (with the prompt and everything before it on screen)
+      Output.flush();
+    }
+
+    // 2. Read the user's input
+    String input = Input.readLine();
+    if (input == null) {
+      throw new RuntimeException("No more input.");
+    }
+
+    // 3. Save it as a number if it is one, so math works smoothly.
+    // If it's a word (like a name), it will stay a String.
+    return Input.parse(input);
+  }
+}